@@ -0,0 +1,980 @@
+package com.jokeren.concurrent.structures.bst;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Base of the external BSTs of this package: a ConcurrentNavigableMap
+ * ordered by the natural ordering of the keys, or by a comparator.
+ *
+ * Keys are held by leaves, an internal node routes smaller keys to its left.
+ * Two sentinel leaves of key null, which stands for infinity, keep every
+ * other leaf at depth 2 or more. A key is removed logically first, by
+ * setting the value of its leaf to null, then the subclass unlinks the leaf
+ * with its own locking protocol. So get and the iterators never lock, and
+ * put replaces the value of a present key in place with a CAS.
+ */
+public abstract class AbstractLazyBST<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+	final LazyNode root;
+	final Comparator<? super K> comparator;
+	private final SubMap<K, V> all;
+
+	AbstractLazyBST(Comparator<? super K> comparator) {
+		this.comparator = comparator;
+		root = new LazyNode(null, null, null, null, NodeType.INTERNAL);
+		root.left = new LazyNode(null, null, null, null, NodeType.LEAF);
+		root.right = new LazyNode(null, null, null, null, NodeType.LEAF);
+		all = new SubMap<K, V>(this, null, false, null, false, false);
+	}
+
+	/**
+	 * Links a new leaf for the key, unless the key has a leaf already.
+	 * @return the leaf of the key, or null once the new leaf is linked
+	 */
+	abstract LazyNode insert(K key, V value);
+
+	/**
+	 * Unlinks a leaf whose value has been set to null.
+	 */
+	abstract void unlink(LazyNode leaf);
+
+	/**
+	 * Compares a key with the key of a node, a null node key being infinity
+	 */
+	@SuppressWarnings("unchecked")
+	final int compare(Object key, Object nodeKey) {
+		if (nodeKey == null) {
+			return -1;
+		}
+		return comparator == null ? ((Comparable<Object>) key).compareTo(nodeKey)
+				: comparator.compare((K) key, (K) nodeKey);
+	}
+
+	final boolean holds(LazyNode leaf, Object key) {
+		return leaf.key != null && compare(key, leaf.key) == 0;
+	}
+
+	final boolean tooLow(Object key, K lo, boolean loInclusive) {
+		if (lo == null) {
+			return false;
+		}
+		int c = compare(key, lo);
+		return c < 0 || (c == 0 && !loInclusive);
+	}
+
+	final boolean tooHigh(Object key, K hi, boolean hiInclusive) {
+		if (hi == null) {
+			return false;
+		}
+		int c = compare(key, hi);
+		return c > 0 || (c == 0 && !hiInclusive);
+	}
+
+	final LazyNode findLeaf(Object key) {
+		LazyNode curr = root;
+		while (curr.type != NodeType.LEAF) {
+			curr = compare(key, curr.key) < 0 ? curr.left : curr.right;
+		}
+		return curr;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V doPut(K key, V value, boolean onlyIfAbsent) {
+		while (true) {
+			LazyNode leaf = insert(key, value);
+			if (leaf == null) {
+				return null;
+			}
+
+			Object v = leaf.value;
+			if (v == null) {
+				// being unlinked, wait for the leaf to go
+				Thread.yield();
+				continue;
+			}
+			if (onlyIfAbsent || leaf.casValue(v, value)) {
+				return (V) v;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V doRemove(Object key, Object value) {
+		while (true) {
+			LazyNode leaf = findLeaf(key);
+			if (!holds(leaf, key)) {
+				return null;
+			}
+
+			Object v = leaf.value;
+			if (v == null || (value != null && !value.equals(v))) {
+				return null;
+			}
+			if (leaf.casValue(v, null)) {
+				unlink(leaf);
+				return (V) v;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V doReplace(K key, Object oldValue, V newValue) {
+		while (true) {
+			LazyNode leaf = findLeaf(key);
+			if (!holds(leaf, key)) {
+				return null;
+			}
+
+			Object v = leaf.value;
+			if (v == null || (oldValue != null && !oldValue.equals(v))) {
+				return null;
+			}
+			if (leaf.casValue(v, newValue)) {
+				return (V) v;
+			}
+		}
+	}
+
+	/**
+	 * @return the first entry of the traversal, or null if none
+	 */
+	final Map.Entry<K, V> firstIn(K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+		EntryIterator it = new EntryIterator(lo, loInclusive, hi, hiInclusive, descending);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		LazyNode leaf = findLeaf(key);
+		return holds(leaf, key) ? (V) leaf.value : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		return doPut(key, value, false);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		return doPut(key, value, true);
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		return doRemove(key, null);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		return value != null && doRemove(key, value) != null;
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		return doReplace(key, null, value);
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		if (key == null || oldValue == null || newValue == null) {
+			throw new NullPointerException();
+		}
+		return doReplace(key, oldValue, newValue) != null;
+	}
+
+	/**
+	 * Counts the keys, in time linear in the size of the map
+	 */
+	@Override
+	public int size() {
+		return all.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return all.isEmpty();
+	}
+
+	@Override
+	public void clear() {
+		all.clear();
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return all.entrySet();
+	}
+
+	@Override
+	public NavigableSet<K> keySet() {
+		return all.navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return all.navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return all.descendingKeySet();
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return all.lowerEntry(key);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return all.lowerKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return all.floorEntry(key);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return all.floorKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return all.ceilingEntry(key);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return all.ceilingKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return all.higherEntry(key);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return all.higherKey(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return all.firstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return all.lastEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		return all.pollFirstEntry();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		return all.pollLastEntry();
+	}
+
+	@Override
+	public K firstKey() {
+		return all.firstKey();
+	}
+
+	@Override
+	public K lastKey() {
+		return all.lastKey();
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> descendingMap() {
+		return all.descendingMap();
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return all.subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		return all.headMap(toKey, inclusive);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		return all.tailMap(fromKey, inclusive);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+		return all.subMap(fromKey, toKey);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+		return all.headMap(toKey);
+	}
+
+	@Override
+	public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+		return all.tailMap(fromKey);
+	}
+
+	/**
+	 * In-order traversal of the leaves within the bounds, a null bound being
+	 * open. The stack holds the internal nodes whose other subtree is still
+	 * to visit. Updates only redirect a child to a new internal node above
+	 * it, to a descendant, or to new internal nodes over the same subtrees,
+	 * and never change an unlinked node, so a node unlinked meanwhile still
+	 * leads to every leaf below it that was not removed since: the traversal
+	 * is weakly consistent.
+	 */
+	final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+		private final K lo, hi;
+		private final boolean loInclusive, hiInclusive, descending;
+		private final ArrayDeque<LazyNode> stack = new ArrayDeque<LazyNode>();
+		private Map.Entry<K, V> next;
+		private K lastReturned;
+
+		EntryIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+
+			K from = descending ? hi : lo;
+			LazyNode curr = root;
+			while (curr.type != NodeType.LEAF) {
+				if (from == null ? !descending : compare(from, curr.key) < 0) {
+					if (!descending) {
+						stack.push(curr);
+					}
+					curr = curr.left;
+				} else {
+					if (descending) {
+						stack.push(curr);
+					}
+					curr = curr.right;
+				}
+			}
+			advance(curr);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance(LazyNode leaf) {
+			while (leaf != null) {
+				Object value = leaf.value;
+				// sentinels and removed leaves have no value
+				if (value != null) {
+					K key = (K) leaf.key;
+					if (descending ? tooLow(key, lo, loInclusive) : tooHigh(key, hi, hiInclusive)) {
+						break;
+					}
+					// a key may be reinserted ahead of the traversal, keep the order strict
+					if (!(descending ? tooHigh(key, hi, hiInclusive) : tooLow(key, lo, loInclusive))
+							&& (next == null || (descending ? compare(key, next.getKey()) < 0 : compare(key, next.getKey()) > 0))) {
+						next = new AbstractMap.SimpleImmutableEntry<K, V>(key, (V) value);
+						return;
+					}
+				}
+				leaf = nextLeaf();
+			}
+			next = null;
+		}
+
+		private LazyNode nextLeaf() {
+			LazyNode parent = stack.poll();
+			if (parent == null) {
+				return null;
+			}
+			LazyNode curr = descending ? parent.left : parent.right;
+			while (curr.type != NodeType.LEAF) {
+				stack.push(curr);
+				curr = descending ? curr.right : curr.left;
+			}
+			return curr;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			Map.Entry<K, V> entry = next;
+			if (entry == null) {
+				throw new NoSuchElementException();
+			}
+			lastReturned = entry.getKey();
+			advance(nextLeaf());
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned == null) {
+				throw new IllegalStateException();
+			}
+			AbstractLazyBST.this.remove(lastReturned);
+			lastReturned = null;
+		}
+	}
+
+	/**
+	 * A view of the keys within bounds, a null bound being open, in
+	 * ascending or descending order.
+	 */
+	static final class SubMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+		private final AbstractLazyBST<K, V> m;
+		private final K lo, hi;
+		private final boolean loInclusive, hiInclusive, descending;
+
+		SubMap(AbstractLazyBST<K, V> m, K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+			if (lo != null && hi != null && m.compare(lo, hi) > 0) {
+				throw new IllegalArgumentException("inconsistent range");
+			}
+			this.m = m;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+		}
+
+		private boolean inRange(Object key) {
+			return !m.tooLow(key, lo, loInclusive) && !m.tooHigh(key, hi, hiInclusive);
+		}
+
+		/**
+		 * @return whether a bound is within the view, an exclusive bound may
+		 *         be equal to an exclusive bound of the view
+		 */
+		private boolean inRange(Object key, boolean inclusive) {
+			return inclusive ? inRange(key) : !m.tooLow(key, lo, true) && !m.tooHigh(key, hi, true);
+		}
+
+		private void checkKey(Object key) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			if (!inRange(key)) {
+				throw new IllegalArgumentException("key out of range");
+			}
+		}
+
+		Iterator<Map.Entry<K, V>> entryIterator() {
+			return m.new EntryIterator(lo, loInclusive, hi, hiInclusive, descending);
+		}
+
+		/**
+		 * @return the nearest entry to key in the order of the view
+		 */
+		private Map.Entry<K, V> relative(K key, boolean inclusive, boolean after) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			if (after != descending) {
+				return m.tooLow(key, lo, loInclusive) ? m.firstIn(lo, loInclusive, hi, hiInclusive, false)
+						: m.firstIn(key, inclusive, hi, hiInclusive, false);
+			} else {
+				return m.tooHigh(key, hi, hiInclusive) ? m.firstIn(lo, loInclusive, hi, hiInclusive, true)
+						: m.firstIn(lo, loInclusive, key, inclusive, true);
+			}
+		}
+
+		private static <K> K keyOf(Map.Entry<K, ?> entry) {
+			return entry == null ? null : entry.getKey();
+		}
+
+		private static <K> K keyOrThrow(Map.Entry<K, ?> entry) {
+			if (entry == null) {
+				throw new NoSuchElementException();
+			}
+			return entry.getKey();
+		}
+
+		/**
+		 * @return the view of the keys within the bounds, given in the
+		 *         ascending order of the map, and within the bounds of this
+		 */
+		private SubMap<K, V> newSubMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			if (fromKey == null) {
+				fromKey = lo;
+				fromInclusive = loInclusive;
+			} else if (!inRange(fromKey, fromInclusive)) {
+				throw new IllegalArgumentException("key out of range");
+			}
+			if (toKey == null) {
+				toKey = hi;
+				toInclusive = hiInclusive;
+			} else if (!inRange(toKey, toInclusive)) {
+				throw new IllegalArgumentException("key out of range");
+			}
+			return new SubMap<K, V>(m, fromKey, fromInclusive, toKey, toInclusive, descending);
+		}
+
+		@Override
+		public V get(Object key) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			return inRange(key) ? m.get(key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public V put(K key, V value) {
+			checkKey(key);
+			return m.put(key, value);
+		}
+
+		@Override
+		public V putIfAbsent(K key, V value) {
+			checkKey(key);
+			return m.putIfAbsent(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			return inRange(key) ? m.remove(key) : null;
+		}
+
+		@Override
+		public boolean remove(Object key, Object value) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			return inRange(key) && m.remove(key, value);
+		}
+
+		@Override
+		public V replace(K key, V value) {
+			checkKey(key);
+			return m.replace(key, value);
+		}
+
+		@Override
+		public boolean replace(K key, V oldValue, V newValue) {
+			checkKey(key);
+			return m.replace(key, oldValue, newValue);
+		}
+
+		@Override
+		public int size() {
+			long count = 0;
+			for (Iterator<Map.Entry<K, V>> it = entryIterator(); it.hasNext(); it.next()) {
+				++count;
+			}
+			return count < Integer.MAX_VALUE ? (int) count : Integer.MAX_VALUE;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return !entryIterator().hasNext();
+		}
+
+		@Override
+		public void clear() {
+			for (Iterator<Map.Entry<K, V>> it = entryIterator(); it.hasNext();) {
+				m.remove(it.next().getKey());
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new EntrySet<K, V>(this);
+		}
+
+		@Override
+		public NavigableSet<K> keySet() {
+			return new KeySet<K>(this);
+		}
+
+		@Override
+		public NavigableSet<K> navigableKeySet() {
+			return new KeySet<K>(this);
+		}
+
+		@Override
+		public NavigableSet<K> descendingKeySet() {
+			return new KeySet<K>(descendingMap());
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			if (!descending) {
+				return m.comparator;
+			}
+			if (m.comparator == null) {
+				return Collections.<K> reverseOrder();
+			}
+			return Collections.reverseOrder(m.comparator);
+		}
+
+		@Override
+		public Map.Entry<K, V> lowerEntry(K key) {
+			return relative(key, false, false);
+		}
+
+		@Override
+		public K lowerKey(K key) {
+			return keyOf(lowerEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> floorEntry(K key) {
+			return relative(key, true, false);
+		}
+
+		@Override
+		public K floorKey(K key) {
+			return keyOf(floorEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> ceilingEntry(K key) {
+			return relative(key, true, true);
+		}
+
+		@Override
+		public K ceilingKey(K key) {
+			return keyOf(ceilingEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> higherEntry(K key) {
+			return relative(key, false, true);
+		}
+
+		@Override
+		public K higherKey(K key) {
+			return keyOf(higherEntry(key));
+		}
+
+		@Override
+		public Map.Entry<K, V> firstEntry() {
+			return m.firstIn(lo, loInclusive, hi, hiInclusive, descending);
+		}
+
+		@Override
+		public Map.Entry<K, V> lastEntry() {
+			return m.firstIn(lo, loInclusive, hi, hiInclusive, !descending);
+		}
+
+		@Override
+		public K firstKey() {
+			return keyOrThrow(firstEntry());
+		}
+
+		@Override
+		public K lastKey() {
+			return keyOrThrow(lastEntry());
+		}
+
+		@Override
+		public Map.Entry<K, V> pollFirstEntry() {
+			while (true) {
+				Map.Entry<K, V> entry = firstEntry();
+				if (entry == null || m.remove(entry.getKey(), entry.getValue())) {
+					return entry;
+				}
+			}
+		}
+
+		@Override
+		public Map.Entry<K, V> pollLastEntry() {
+			while (true) {
+				Map.Entry<K, V> entry = lastEntry();
+				if (entry == null || m.remove(entry.getKey(), entry.getValue())) {
+					return entry;
+				}
+			}
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> descendingMap() {
+			return new SubMap<K, V>(m, lo, loInclusive, hi, hiInclusive, !descending);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+			if (fromKey == null || toKey == null) {
+				throw new NullPointerException();
+			}
+			return descending ? newSubMap(toKey, toInclusive, fromKey, fromInclusive)
+					: newSubMap(fromKey, fromInclusive, toKey, toInclusive);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+			if (toKey == null) {
+				throw new NullPointerException();
+			}
+			return descending ? newSubMap(toKey, inclusive, null, false) : newSubMap(null, false, toKey, inclusive);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+			if (fromKey == null) {
+				throw new NullPointerException();
+			}
+			return descending ? newSubMap(null, false, fromKey, inclusive) : newSubMap(fromKey, inclusive, null, false);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+			return subMap(fromKey, true, toKey, false);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+			return headMap(toKey, false);
+		}
+
+		@Override
+		public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+			return tailMap(fromKey, true);
+		}
+	}
+
+	static final class EntrySet<K, V> extends AbstractSet<Map.Entry<K, V>> {
+		private final SubMap<K, V> m;
+
+		EntrySet(SubMap<K, V> m) {
+			this.m = m;
+		}
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return m.entryIterator();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			V v = m.get(e.getKey());
+			return v != null && v.equals(e.getValue());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return m.remove(e.getKey(), e.getValue());
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+		}
+	}
+
+	static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+		private final ConcurrentNavigableMap<K, ?> m;
+
+		KeySet(ConcurrentNavigableMap<K, ?> m) {
+			this.m = m;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			final Iterator<? extends Map.Entry<K, ?>> it = m.entrySet().iterator();
+			return new Iterator<K>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return it.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					it.remove();
+				}
+			};
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return m.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return m.comparator();
+		}
+
+		@Override
+		public K lower(K e) {
+			return m.lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return m.floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return m.ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return m.higherKey(e);
+		}
+
+		@Override
+		public K first() {
+			return m.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return m.lastKey();
+		}
+
+		@Override
+		public K pollFirst() {
+			Map.Entry<K, ?> e = m.pollFirstEntry();
+			return e == null ? null : e.getKey();
+		}
+
+		@Override
+		public K pollLast() {
+			Map.Entry<K, ?> e = m.pollLastEntry();
+			return e == null ? null : e.getKey();
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return new KeySet<K>(m.descendingMap());
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return new KeySet<K>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return new KeySet<K>(m.headMap(toElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return new KeySet<K>(m.tailMap(fromElement, inclusive));
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
@@ -1,105 +1,38 @@
 package com.jokeren.concurrent.structures.bst;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
+import java.util.Comparator;
 
-public class FlagNodeBST<K, V> implements Map<K, V> {
-	LazyNode root;
+public class FlagNodeBST<K, V> extends AbstractLazyBST<K, V> {
 
 	public FlagNodeBST() {
-		root = new LazyNode(Integer.MAX_VALUE, null, null, null,
-				NodeType.INTERNAL, new FlagLock());
-		LazyNode left = new LazyNode(Integer.MAX_VALUE - 1, null, null, null,
-				NodeType.LEAF, new FlagLock());
-		LazyNode right = new LazyNode(Integer.MAX_VALUE, null, null, null,
-				NodeType.LEAF, new FlagLock());
-		root.left = left;
-		root.right = right;
+		super(null);
 	}
 
-	@Override
-	public void clear() {
-		// TODO Auto-generated method stub
-
-	}
-
-	private LazyResult find(int key) {
-		LazyNode ppred = null;
-		LazyNode pred = null;
-		LazyNode curr = root;
-		boolean right = false;
-		boolean pRight = false;
-
-		while (curr.type != NodeType.LEAF) {
-			ppred = pred;
-			pRight = right;
-			pred = curr;
-			if (key < curr.key) {
-				curr = curr.left;
-				right = false;
-			} else {
-				curr = curr.right;
-				right = true;
-			}
-		}
-		return new LazyResult(ppred, pred, curr, pRight, right);
-	}
-
-	@Override
-	public boolean containsKey(Object key) {
-		// TODO Auto-generated method stub
-		int findKey = find(key.hashCode()).curr.key;
-
-		if (findKey == key.hashCode()) {
-			return true;
-		}
-
-		return false;
-	}
-
-	@Override
-	public boolean containsValue(Object value) {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public V get(Object key) {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public boolean isEmpty() {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public Set<K> keySet() {
-		// TODO Auto-generated method stub
-		return null;
+	public FlagNodeBST(Comparator<? super K> comparator) {
+		super(comparator);
 	}
 
 	@Override
-	public V put(K key, V value) {
-		// TODO Auto-generated method stub
+	LazyNode insert(K key, V value) {
 		// synchronized (this) {
 		while (true) {
-			LazyResult result = find(key.hashCode());
-			LazyNode curr = (LazyNode) result.curr;
-			LazyNode pred = (LazyNode) result.pred;
-			boolean right = result.right;
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+
+			while (curr.type != NodeType.LEAF) {
+				pred = curr;
+				if (compare(key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
 
-			if (curr.key == key.hashCode()) {
-				return null;
+			if (holds(curr, key)) {
+				return curr;
 			}
 
 			if (!pred.tryLock()) {
@@ -118,12 +51,12 @@ public class FlagNodeBST<K, V> implements Map<K, V> {
 				}
 			}
 
-			LazyNode newLazyLazyNode = new LazyNode(key.hashCode(), value,
-					null, null, NodeType.LEAF, new FlagLock());
-			LazyNode newParent = new LazyNode(0, null, null, null,
-					NodeType.INTERNAL, new FlagLock());
+			LazyNode newLazyLazyNode = new LazyNode(key, value,
+					null, null, NodeType.LEAF);
+			LazyNode newParent = new LazyNode(null, null, null, null,
+					NodeType.INTERNAL);
 
-			if (key.hashCode() < curr.key) {
+			if (compare(key, curr.key) < 0) {
 				newParent.key = curr.key;
 				newParent.left = newLazyLazyNode;
 				newParent.right = curr;
@@ -141,30 +74,36 @@ public class FlagNodeBST<K, V> implements Map<K, V> {
 
 			pred.release();
 
-			return value;
+			return null;
 		}
 		// }
 	}
 
 	@Override
-	public void putAll(Map<? extends K, ? extends V> m) {
-		// TODO Auto-generated method stub
-
-	}
-
-	@Override
-	public V remove(Object key) {
+	void unlink(LazyNode leaf) {
 		// synchronized (this) {
 		while (true) {
-			LazyResult result = find(key.hashCode());
-			LazyNode curr = (LazyNode) result.curr;
-			LazyNode pred = (LazyNode) result.pred;
-			LazyNode ppred = (LazyNode) result.ppred;
-			boolean pRight = result.pRight;
-			boolean right = result.right;
-
-			if (curr.key != key.hashCode()) {
-				return null;
+			LazyNode ppred = null;
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+			boolean pRight = false;
+
+			while (curr.type != NodeType.LEAF) {
+				ppred = pred;
+				pRight = right;
+				pred = curr;
+				if (compare(leaf.key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
+
+			if (curr != leaf) {
+				return;
 			}
 
 			if (!ppred.tryLock()) {
@@ -205,35 +144,10 @@ public class FlagNodeBST<K, V> implements Map<K, V> {
 
 			ppred.release();
 
-			return (V) curr.value;
+			return;
 		}
 
 		// }
 	}
 
-	private int numberOfKeys(LazyNode node) {
-		if (node.type == NodeType.LEAF) {
-			if (node.value == null)
-				return 0;
-			else
-				return 1;
-		} else {
-			int left = numberOfKeys(node.left);
-			int right = numberOfKeys(node.right);
-			return left + right;
-		}
-	}
-
-	@Override
-	public int size() {
-		// TODO Auto-generated method stub
-		return numberOfKeys(root);
-	}
-
-	@Override
-	public Collection<V> values() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
 }
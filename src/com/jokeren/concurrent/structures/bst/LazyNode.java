@@ -1,39 +1,124 @@
 package com.jokeren.concurrent.structures.bst;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 public class LazyNode extends Node {
 	volatile public LazyNode left;
 	volatile public LazyNode right;
-	final LockAdapter lock;
-	
-	public LazyNode(int key, Object value, LazyNode left, LazyNode right, NodeType type, LockAdapter lock) {
+
+	/**
+	 * Lock state of the node in a single word, instead of a FlagLock or
+	 * TicketLock object: bit 0 marks the node, bit 1 is the flag of the flag
+	 * lock, bits 2 to 32 hold the ticket and bits 33 to 63 the version of the
+	 * ticket lock. A tree locks its nodes either with tryLock(), or with
+	 * tryLock(version), and release() unlocks whichever is held.
+	 */
+	volatile long state;
+
+	private static final long MARK = 1L;
+	private static final long FLAG = 2L;
+	private static final int TICKET_SHIFT = 2;
+	private static final int VERSION_SHIFT = 33;
+	private static final long COUNTER_MASK = 0x7FFFFFFFL;
+
+	private static final AtomicLongFieldUpdater<LazyNode> stateUpdater = AtomicLongFieldUpdater.newUpdater(LazyNode.class, "state");
+	private static final AtomicReferenceFieldUpdater<Node, Object> valueUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+
+	public LazyNode(Object key, Object value, LazyNode left, LazyNode right, NodeType type) {
 		this.key = key;
 		this.value = value;
 		this.left = left;
 		this.right = right;
 		this.type = type;
-		this.lock = lock;
 	}
 
+	public boolean casValue(Object expect, Object update) {
+		return valueUpdater.compareAndSet(this, expect, update);
+	}
+
+	private static int ticket(long s) {
+		return (int) ((s >>> TICKET_SHIFT) & COUNTER_MASK);
+	}
+
+	private static int version(long s) {
+		return (int) ((s >>> VERSION_SHIFT) & COUNTER_MASK);
+	}
+
+	private static long withTicket(long s, int ticket) {
+		return (s & ~(COUNTER_MASK << TICKET_SHIFT)) | ((ticket & COUNTER_MASK) << TICKET_SHIFT);
+	}
+
+	private static long withVersion(long s, int version) {
+		return (s & ~(COUNTER_MASK << VERSION_SHIFT)) | ((version & COUNTER_MASK) << VERSION_SHIFT);
+	}
+
+	/**
+	 * Flag lock
+	 */
 	public boolean tryLock() {
-		return lock.tryLock();
+		while (true) {
+			long s = state;
+			if ((s & FLAG) != 0) {
+				return false;
+			}
+			// a failure may come from the mark, retry until the flag is seen
+			if (stateUpdater.compareAndSet(this, s, s | FLAG)) {
+				return true;
+			}
+		}
 	}
-	
+
+	/**
+	 * Ticket lock, succeeds if the node is unlocked and still at the version
+	 */
 	public boolean tryLock(int version) {
-		return lock.tryLock(version);
+		long s = state;
+		int t = ticket(s);
+		if (version(s) != t || t != (version & COUNTER_MASK)) {
+			return false;
+		}
+
+		return stateUpdater.compareAndSet(this, s, withTicket(s, t + 1));
 	}
-	
+
 	public void release() {
-		lock.unlock();
+		while (true) {
+			long s = state;
+			long n = (s & FLAG) != 0 ? s & ~FLAG : withVersion(s, version(s) + 1);
+			if (stateUpdater.compareAndSet(this, s, n)) {
+				return;
+			}
+		}
 	}
-	
+
 	public int getVersion() {
-		return lock.getVersion();
+		return version(state);
 	}
-	
+
 	public void revert() {
-		lock.revert();
+		while (true) {
+			long s = state;
+			if (stateUpdater.compareAndSet(this, s, withTicket(s, ticket(s) - 1))) {
+				return;
+			}
+		}
+	}
+
+	public boolean getMarked() {
+		return (state & MARK) != 0;
+	}
+
+	public void setMarked(boolean flag) {
+		while (true) {
+			long s = state;
+			if (stateUpdater.compareAndSet(this, s, flag ? s | MARK : s & ~MARK)) {
+				return;
+			}
+		}
+	}
+
+	public boolean getFlag() {
+		return (state & FLAG) != 0;
 	}
-//	public void revert() {
-//		lock.revert();
-//	}
 }
@@ -0,0 +1,260 @@
+package com.jokeren.concurrent.structures.bst;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+
+/**
+ * An external BST with relaxed AVL balance, locked like FlagNodeBST.
+ *
+ * Updates do not keep the tree balanced themselves. Once an update is done,
+ * its thread helps: it walks the path of the key bottom-up, refreshes the
+ * height hints of the internal nodes and rotates where the subtrees of a
+ * node differ by more than one. A rotation links new nodes over the same
+ * subtrees instead of changing the nodes it moves, so lock-free readers on
+ * the old nodes still reach their leaves; the old nodes stay locked, like a
+ * removed parent, so updates that found them fail and search again.
+ * Heights are hints written without locks. A rotation that fails on a lock
+ * is dropped, not recorded: the node is only checked again by a later update
+ * whose path goes through it. Without contention every update leaves its
+ * path balanced, under contention nodes off the later paths may stay out of
+ * balance.
+ */
+public class RelaxedAVLBST<K, V> extends AbstractLazyBST<K, V> {
+
+	static final class AVLNode extends LazyNode {
+		volatile int height;
+
+		AVLNode(Object key, LazyNode left, LazyNode right) {
+			super(key, null, left, right, NodeType.INTERNAL);
+			this.height = 1 + Math.max(height(left), height(right));
+		}
+	}
+
+	public RelaxedAVLBST() {
+		super(null);
+	}
+
+	public RelaxedAVLBST(Comparator<? super K> comparator) {
+		super(comparator);
+	}
+
+	static int height(LazyNode node) {
+		return node.type == NodeType.LEAF ? 0 : ((AVLNode) node).height;
+	}
+
+	@Override
+	LazyNode insert(K key, V value) {
+		while (true) {
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+
+			while (curr.type != NodeType.LEAF) {
+				pred = curr;
+				if (compare(key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
+
+			if (holds(curr, key)) {
+				return curr;
+			}
+
+			if (!pred.tryLock()) {
+				continue;
+			}
+
+			if ((right && pred.right != curr) || (!right && pred.left != curr)) {
+				pred.release();
+				continue;
+			}
+
+			LazyNode newLeaf = new LazyNode(key, value, null, null, NodeType.LEAF);
+			LazyNode newParent = compare(key, curr.key) < 0 ? new AVLNode(curr.key, newLeaf, curr)
+					: new AVLNode(key, curr, newLeaf);
+
+			if (right) {
+				pred.right = newParent;
+			} else {
+				pred.left = newParent;
+			}
+
+			pred.release();
+
+			rebalance(key);
+			return null;
+		}
+	}
+
+	@Override
+	void unlink(LazyNode leaf) {
+		while (true) {
+			LazyNode ppred = null;
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+			boolean pRight = false;
+
+			while (curr.type != NodeType.LEAF) {
+				ppred = pred;
+				pRight = right;
+				pred = curr;
+				if (compare(leaf.key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
+
+			if (curr != leaf) {
+				return;
+			}
+
+			if (!ppred.tryLock()) {
+				continue;
+			}
+			if ((pRight && ppred.right != pred) || (!pRight && ppred.left != pred)) {
+				ppred.release();
+				continue;
+			}
+
+			if (!pred.tryLock()) {
+				ppred.release();
+				continue;
+			}
+			if ((right && pred.right != curr) || (!right && pred.left != curr)) {
+				pred.release();
+				ppred.release();
+				continue;
+			}
+
+			// pred is unlinked, it stays locked
+			LazyNode sibling = right ? pred.left : pred.right;
+			if (pRight) {
+				ppred.right = sibling;
+			} else {
+				ppred.left = sibling;
+			}
+
+			ppred.release();
+
+			rebalance(leaf.key);
+			return;
+		}
+	}
+
+	/**
+	 * Returns the depth of the deepest leaf, the root being at depth 0,
+	 * walking the tree with an explicit stack. The walk is weakly consistent.
+	 */
+	public int depth() {
+		ArrayDeque<LazyNode> nodes = new ArrayDeque<LazyNode>();
+		ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+		nodes.push(root);
+		depths.push(0);
+		int depth = 0;
+		while (!nodes.isEmpty()) {
+			LazyNode node = nodes.pop();
+			int d = depths.pop();
+			if (node.type == NodeType.LEAF) {
+				depth = Math.max(depth, d);
+			} else {
+				nodes.push(node.right);
+				depths.push(d + 1);
+				nodes.push(node.left);
+				depths.push(d + 1);
+			}
+		}
+		return depth;
+	}
+
+	private void rebalance(Object key) {
+		fix(root, root.left, key);
+	}
+
+	/**
+	 * Fixes the path of key below node bottom-up, node being a child of
+	 * parent. The recursion is as deep as the path, which balancing keeps
+	 * logarithmic.
+	 */
+	private void fix(LazyNode parent, LazyNode node, Object key) {
+		if (node.type == NodeType.LEAF) {
+			return;
+		}
+		fix(node, compare(key, node.key) < 0 ? node.left : node.right, key);
+
+		AVLNode n = (AVLNode) node;
+		int balance = height(n.left) - height(n.right);
+		if ((balance > 1 || balance < -1) && rotate(parent, n, balance > 0)) {
+			return;
+		}
+		// a rotation that failed on a lock is dropped, a later update through n retries it
+		n.height = 1 + Math.max(height(n.left), height(n.right));
+	}
+
+	/**
+	 * Replaces node, a child of parent, by its rotation towards the lighter
+	 * side: a single rotation if the outer grandchild on the heavy side is
+	 * the higher one, a double rotation otherwise.
+	 * @return whether the rotation was done
+	 */
+	private boolean rotate(LazyNode parent, AVLNode node, boolean leftHeavy) {
+		if (!parent.tryLock()) {
+			return false;
+		}
+		boolean right = parent.right == node;
+		if (!right && parent.left != node) {
+			parent.release();
+			return false;
+		}
+
+		if (!node.tryLock()) {
+			parent.release();
+			return false;
+		}
+		LazyNode child = leftHeavy ? node.left : node.right;
+		if (child.type == NodeType.LEAF || !child.tryLock()) {
+			node.release();
+			parent.release();
+			return false;
+		}
+
+		LazyNode outer = leftHeavy ? child.left : child.right;
+		LazyNode inner = leftHeavy ? child.right : child.left;
+		LazyNode replacement;
+		if (height(inner) <= height(outer)) {
+			AVLNode down = leftHeavy ? new AVLNode(node.key, inner, node.right)
+					: new AVLNode(node.key, node.left, inner);
+			replacement = leftHeavy ? new AVLNode(child.key, outer, down) : new AVLNode(child.key, down, outer);
+		} else {
+			if (!inner.tryLock()) {
+				child.release();
+				node.release();
+				parent.release();
+				return false;
+			}
+			AVLNode left = leftHeavy ? new AVLNode(child.key, outer, inner.left)
+					: new AVLNode(node.key, node.left, inner.left);
+			AVLNode rightNode = leftHeavy ? new AVLNode(node.key, inner.right, node.right)
+					: new AVLNode(child.key, inner.right, outer);
+			replacement = new AVLNode(inner.key, left, rightNode);
+		}
+
+		if (right) {
+			parent.right = replacement;
+		} else {
+			parent.left = replacement;
+		}
+
+		// the replaced nodes stay locked
+		parent.release();
+		return true;
+	}
+
+}
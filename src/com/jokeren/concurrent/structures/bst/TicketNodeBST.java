@@ -1,122 +1,80 @@
 package com.jokeren.concurrent.structures.bst;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
-
-public class TicketNodeBST<K, V> implements Map<K, V> {
-	LazyNode root;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+public class TicketNodeBST<K, V> extends AbstractLazyBST<K, V> {
+	/**
+	 * Failed ticket acquisitions retried at once, then after a yield, before
+	 * an update parks for an exponentially growing time
+	 */
+	private static final int SPINS = 4;
+	private static final int YIELDS = 4;
+	private static final long MIN_PARK_NANOS = 1L << 10;
+	private static final long MAX_PARK_NANOS = 1L << 20;
 
 	public TicketNodeBST() {
-		root = new LazyNode(Integer.MAX_VALUE, null, null, null,
-				NodeType.INTERNAL, new TicketLock());
-		LazyNode left = new LazyNode(Integer.MAX_VALUE - 1, null, null, null,
-				NodeType.LEAF, new TicketLock());
-		LazyNode right = new LazyNode(Integer.MAX_VALUE, null, null, null,
-				NodeType.LEAF, new TicketLock());
-		root.left = left;
-		root.right = right;
+		super(null);
 	}
 
-	@Override
-	public void clear() {
-		// TODO Auto-generated method stub
-
+	public TicketNodeBST(Comparator<? super K> comparator) {
+		super(comparator);
 	}
 
-	private LazyResult find(int key) {
-		LazyNode ppred = null;
-		LazyNode pred = null;
-		LazyNode curr = root;
-		boolean right = false;
-		boolean pRight = false;
-		int pversion = 0;
-		int ppversion = 0;
-
-		while (curr.type != NodeType.LEAF) {
-			ppred = pred;
-			ppversion = pversion;
-			pRight = right;
-			pversion = curr.getVersion();
-			pred = curr;
-			if (key < curr.key) {
-				curr = curr.left;
-				right = false;
-			} else {
-				curr = curr.right;
-				right = true;
-			}
+	/**
+	 * Backs off after a failed ticket acquisition, so that a lock holder
+	 * which was descheduled gets to run instead of the updates waiting on it.
+	 * Reads never wait, they see removed keys through the value of the leaf.
+	 */
+	private static void backoff(int failures) {
+		if (failures < SPINS) {
+			return;
 		}
-		return new LazyResult(ppred, pred, curr, pRight, right, ppversion, pversion);
-	}
-
-	@Override
-	public boolean containsKey(Object key) {
-		// TODO Auto-generated method stub
-		int findKey = find(key.hashCode()).curr.key;
-
-		if (findKey == key.hashCode()) {
-			return true;
+		if (failures < SPINS + YIELDS) {
+			Thread.yield();
+			return;
 		}
-
-		return false;
-	}
-
-	@Override
-	public boolean containsValue(Object value) {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public V get(Object key) {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public boolean isEmpty() {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public Set<K> keySet() {
-		// TODO Auto-generated method stub
-		return null;
+		LockSupport.parkNanos(Math.min(MAX_PARK_NANOS,
+				MIN_PARK_NANOS << Math.min(failures - SPINS - YIELDS, 10)));
 	}
 
 	@Override
-	public V put(K key, V value) {
-		// TODO Auto-generated method stub
+	LazyNode insert(K key, V value) {
 		// synchronized (this) {
+		int failures = 0;
 		while (true) {
-			LazyResult result = find(key.hashCode());
-			LazyNode curr = (LazyNode) result.curr;
-			LazyNode pred = (LazyNode) result.pred;
-			boolean right = result.right;
-			int pversion = result.pverison;
-
-			if (curr.key == key.hashCode()) {
-				return null;
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+			int pversion = 0;
+
+			while (curr.type != NodeType.LEAF) {
+				pversion = curr.getVersion();
+				pred = curr;
+				if (compare(key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
+
+			if (holds(curr, key)) {
+				return curr;
 			}
 			
 			if (!pred.tryLock(pversion)) {
+				backoff(failures++);
 				continue;
 			}
 
-			LazyNode newLazyNode = new LazyNode(key.hashCode(), value,
-					null, null, NodeType.LEAF, new TicketLock());
-			LazyNode newParent = new LazyNode(0, null, null, null,
-					NodeType.INTERNAL, new TicketLock());
+			LazyNode newLazyNode = new LazyNode(key, value,
+					null, null, NodeType.LEAF);
+			LazyNode newParent = new LazyNode(null, null, null, null,
+					NodeType.INTERNAL);
 
-			if (key.hashCode() < curr.key) {
+			if (compare(key, curr.key) < 0) {
 				newParent.key = curr.key;
 				newParent.left = newLazyNode;
 				newParent.right = curr;
@@ -134,39 +92,50 @@ public class TicketNodeBST<K, V> implements Map<K, V> {
 			
 			pred.release();
 
-			return value;
+			return null;
 		}
 		// }
 	}
 
 	@Override
-	public void putAll(Map<? extends K, ? extends V> m) {
-		// TODO Auto-generated method stub
-
-	}
-
-	@Override
-	public V remove(Object key) {
+	void unlink(LazyNode leaf) {
 		// synchronized (this) {
+		int failures = 0;
 		while (true) {
-			LazyResult result = find(key.hashCode());
-			LazyNode curr = (LazyNode) result.curr;
-			LazyNode pred = (LazyNode) result.pred;
-			LazyNode ppred = (LazyNode) result.ppred;
-			boolean pRight = result.pRight;
-			boolean right = result.right;
-			int ppversion = result.ppversion;
-			int pversion = result.pverison;
-
-			if (curr.key != key.hashCode()) {
-				return null;
+			LazyNode ppred = null;
+			LazyNode pred = null;
+			LazyNode curr = root;
+			boolean right = false;
+			boolean pRight = false;
+			int pversion = 0;
+			int ppversion = 0;
+
+			while (curr.type != NodeType.LEAF) {
+				ppred = pred;
+				ppversion = pversion;
+				pRight = right;
+				pversion = curr.getVersion();
+				pred = curr;
+				if (compare(leaf.key, curr.key) < 0) {
+					curr = curr.left;
+					right = false;
+				} else {
+					curr = curr.right;
+					right = true;
+				}
+			}
+
+			if (curr != leaf) {
+				return;
 			}
 
 			if (!ppred.tryLock(ppversion)) {
+				backoff(failures++);
 				continue;
 			} else {
 				if (!pred.tryLock(pversion)) {
 					ppred.revert();
+					backoff(failures++);
 					continue;
 				}
 			}
@@ -187,35 +156,10 @@ public class TicketNodeBST<K, V> implements Map<K, V> {
 
 			ppred.release();
 
-			return (V) curr.value;
+			return;
 		}
 
 		// }
 	}
 
-	private int numberOfKeys(LazyNode node) {
-		if (node.type == NodeType.LEAF) {
-			if (node.value == null)
-				return 0;
-			else
-				return 1;
-		} else {
-			int left = numberOfKeys(node.left);
-			int right = numberOfKeys(node.right);
-			return left + right;
-		}
-	}
-
-	@Override
-	public int size() {
-		// TODO Auto-generated method stub
-		return numberOfKeys(root);
-	}
-
-	@Override
-	public Collection<V> values() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
 }
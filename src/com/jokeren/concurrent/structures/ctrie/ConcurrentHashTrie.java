@@ -5,12 +5,21 @@ package com.jokeren.concurrent.structures.ctrie;
  */
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
     /**
@@ -19,15 +28,37 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
     private final INode root;
 
     /**
-     * Width in bits
+     * Width in bits for each level (in bit progression), only the levels
+     * actually reached by the width schedule are filled
      */
-    private final byte width;
+    private final byte[] widths;
+
+    /**
+     * Level (in bit progression) of the parent for each level
+     */
+    private final byte[] parents;
+
+    /**
+     * Whether tombed nodes are left in place by deletes and compacted later
+     */
+    private final boolean lazyCompression;
+
+    /**
+     * Number of tombed nodes waiting for compaction, in lazy compression mode
+     */
+    private final LongAdder pendingCompactions = new LongAdder ();
 
     /**
      * EntrySet
      */
     private final EntrySet entrySet = new EntrySet ();
 
+    /**
+     * Default adaptive width schedule: 64 items at the root, then 32, 16 and
+     * 8 items per level down to the leaves.
+     */
+    private static final int[] ADAPTIVE_WIDTHS = new int[] { 6, 5, 4, 3 };
+
     /**
      * Builds a {@link ConcurrentHashTrie} instance
      */
@@ -51,16 +82,64 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
      *            </ul>
      */
     public ConcurrentHashTrie (final int width) {
+        this (new int[] { width });
+    }
+
+    /**
+     * Builds a {@link ConcurrentHashTrie} instance with a width per level
+     *
+     * @param widths
+     *            the Trie widths in power-of-two exponents, starting from the
+     *            root. The last width is used for all the deeper levels.
+     *            Values are expected between 1 & 6, other values will be
+     *            clamped.
+     *            <p>
+     *            Wide levels near the root keep the trie shallow while narrow
+     *            levels near the leaves avoid sparse {@link CNode} arrays.
+     */
+    public ConcurrentHashTrie (final int[] widths) {
+        this (widths, false);
+    }
+
+    /**
+     * Builds a {@link ConcurrentHashTrie} instance with a width per level
+     *
+     * @param widths
+     *            the Trie widths in power-of-two exponents, starting from the
+     *            root. The last width is used for all the deeper levels.
+     * @param lazyCompression
+     *            if true, deletes leave tombed nodes in place instead of
+     *            contracting their parent {@link CNode}. Tombed nodes are
+     *            compacted when a later update reaches them, or by
+     *            {@link #compact()}. Lookups read through tombed nodes.
+     */
+    public ConcurrentHashTrie (final int[] widths, final boolean lazyCompression) {
+        if (widths.length == 0) {
+            throw new IllegalArgumentException ("At least one width is expected");
+        }
         this.root = new INode (new CNode<K, V> ());
-        if (width > 6) {
-            this.width = 6;
-        } else if (width < 1) {
-            this.width = 1;
-        } else {
-            this.width = (byte) width;
+        this.lazyCompression = lazyCompression;
+        this.widths = new byte[MAX_LEVEL];
+        this.parents = new byte[MAX_LEVEL];
+        int level = 0;
+        for (int i = 0; level < 32; i++) {
+            final int w = Math.max (1, Math.min (6, widths [Math.min (i, widths.length - 1)]));
+            this.widths [level] = (byte) w;
+            this.parents [level + w] = (byte) level;
+            level += w;
         }
     }
 
+    /**
+     * Builds an adaptive {@link ConcurrentHashTrie} instance, using a wide
+     * fan-out near the root and narrower nodes deeper down.
+     *
+     * @return an empty adaptive {@link ConcurrentHashTrie}
+     */
+    public static <K, V> ConcurrentHashTrie<K, V> adaptive () {
+        return new ConcurrentHashTrie<K, V> (ADAPTIVE_WIDTHS);
+    }
+
     /**
      * Builds a {@link Map} based on the mapping of another {@link Map}.
      *
@@ -181,6 +260,491 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the trie is empty, the mappings are bulk built: the entries are
+     * partitioned by hash prefix, the immutable sub-tries are built in
+     * parallel and the root is published with a single CAS. Otherwise, or
+     * if another thread updated the trie meanwhile, the mappings are
+     * inserted one at a time.
+     */
+    @Override
+    public void putAll (final Map<? extends K, ? extends V> map) {
+        final MainNode main = this.root.getMain ();
+        if (map.size () >= BULK_THRESHOLD && main instanceof CNode && ((CNode<?, ?>) main).bitmap == 0L) {
+            if (this.root.casMain (main, bulkBuild (map))) {
+                return;
+            }
+        }
+        for (final Map.Entry<? extends K, ? extends V> e : map.entrySet ()) {
+            put (e.getKey (), e.getValue ());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The mapping is updated with a single CAS on the {@link INode} holding
+     * the key. Under contention the function may be applied several times.
+     */
+    @Override
+    public V computeIfAbsent (final K key, final Function<? super K, ? extends V> mappingFunction) {
+        notNullFunction (mappingFunction);
+        return compute (key, new BiFunction<K, V, V> () {
+            @Override
+            public V apply (final K k, final V previous) {
+                return null != previous ? previous : mappingFunction.apply (k);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The mapping is updated with a single CAS on the {@link INode} holding
+     * the key. Under contention the function may be applied several times.
+     */
+    @Override
+    public V computeIfPresent (final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        notNullFunction (remappingFunction);
+        return compute (key, new BiFunction<K, V, V> () {
+            @Override
+            public V apply (final K k, final V previous) {
+                return null == previous ? null : remappingFunction.apply (k, previous);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The mapping is updated with a single CAS on the {@link INode} holding
+     * the key. Under contention the function may be applied several times.
+     */
+    @Override
+    public V compute (final K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        notNullKey (key);
+        notNullFunction (remappingFunction);
+        final int hc = hash (key);
+        while (true) {
+            final Result<V> res = icompute (this.root, hc, key, 0, null, remappingFunction);
+            switch (res.type) {
+                case FOUND:
+                    return res.result;
+                case RESTART:
+                    continue;
+                default:
+                    throw new RuntimeException ("Unexpected case: " + res.type);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The mapping is updated with a single CAS on the {@link INode} holding
+     * the key. Under contention the function may be applied several times.
+     */
+    @Override
+    public V merge (final K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        notNullValue (value);
+        notNullFunction (remappingFunction);
+        return compute (key, new BiFunction<K, V, V> () {
+            @Override
+            public V apply (final K k, final V previous) {
+                return null == previous ? value : remappingFunction.apply (previous, value);
+            }
+        });
+    }
+
+    /**
+     * Performs the given action for each (key, value), in the style of
+     * {@link java.util.concurrent.ConcurrentHashMap#forEach(long, BiConsumer)}.
+     * The traversal is weakly consistent: each {@link INode} is read once,
+     * when it is reached.
+     *
+     * @param parallelismThreshold
+     *            the (estimated) number of elements needed for a sub-trie to
+     *            be traversed by a forked task
+     * @param action
+     *            the action
+     */
+    public void forEach (final long parallelismThreshold, final BiConsumer<? super K, ? super V> action) {
+        forEachInHashPrefix (parallelismThreshold, 0, 0, action);
+    }
+
+    /**
+     * Performs the given action for each (key, value) whose key's
+     * {@link #hash(Object)} has the given lowest bits. Only the
+     * {@link CNode} branches matching the prefix are traversed.
+     *
+     * @param parallelismThreshold
+     *            the (estimated) number of elements needed for a sub-trie to
+     *            be traversed by a forked task
+     * @param prefix
+     *            the hash prefix, in the lowest bits
+     * @param bits
+     *            the number of bits of the prefix, between 0 & 32
+     * @param action
+     *            the action
+     */
+    public void forEachInHashPrefix (final long parallelismThreshold,
+                                     final int prefix,
+                                     final int bits,
+                                     final BiConsumer<? super K, ? super V> action) {
+        notNullFunction (action);
+        bulk (parallelismThreshold, prefix, bits, new BiFunction<K, V, Object> () {
+            @Override
+            public Object apply (final K k, final V v) {
+                action.accept (k, v);
+                return null;
+            }
+        }, null, null);
+    }
+
+    /**
+     * Returns the result of accumulating the given transformation of all
+     * (key, value) pairs using the given reducer to combine values, or null
+     * if none, in the style of
+     * {@link java.util.concurrent.ConcurrentHashMap#reduce(long, BiFunction, BiFunction)}.
+     *
+     * @param parallelismThreshold
+     *            the (estimated) number of elements needed for a sub-trie to
+     *            be traversed by a forked task
+     * @param transformer
+     *            a function returning the transformation for an element, or
+     *            null if there is no transformation
+     * @param reducer
+     *            a commutative associative combining function
+     * @return the result of accumulating the transformations
+     */
+    public <U> U reduce (final long parallelismThreshold,
+                         final BiFunction<? super K, ? super V, ? extends U> transformer,
+                         final BiFunction<? super U, ? super U, ? extends U> reducer) {
+        notNullFunction (transformer);
+        notNullFunction (reducer);
+        return bulk (parallelismThreshold, 0, 0, transformer, reducer, null);
+    }
+
+    /**
+     * Returns a non-null result from applying the given search function on
+     * each (key, value), or null if none, in the style of
+     * {@link java.util.concurrent.ConcurrentHashMap#search(long, BiFunction)}.
+     * Once a result is found, the remaining traversals are abandoned.
+     *
+     * @param parallelismThreshold
+     *            the (estimated) number of elements needed for a sub-trie to
+     *            be traversed by a forked task
+     * @param searchFunction
+     *            a function returning a non-null result on success
+     * @return a non-null result, or null if none
+     */
+    public <U> U search (final long parallelismThreshold,
+                         final BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        notNullFunction (searchFunction);
+        final AtomicReference<U> found = new AtomicReference<U> ();
+        bulk (parallelismThreshold, 0, 0, searchFunction, null, found);
+        return found.get ();
+    }
+
+    private <U> U bulk (final long parallelismThreshold,
+                        final int prefix,
+                        final int bits,
+                        final BiFunction<? super K, ? super V, ? extends U> transformer,
+                        final BiFunction<? super U, ? super U, ? extends U> reducer,
+                        final AtomicReference<U> found) {
+        final MainNode main = this.root.getMain ();
+        final long estimate = estimatedSize (main);
+        final BulkTask<U> task = new BulkTask<U> (main, 0, estimate, prefix, bits,
+                parallelismThreshold, transformer, reducer, found);
+        if (estimate < parallelismThreshold) {
+            return task.compute ();
+        } else {
+            return ForkJoinPool.commonPool ().invoke (task);
+        }
+    }
+
+    /**
+     * Estimates the number of elements of a sub-trie as the product of the
+     * {@link CNode} array lengths along its first path.
+     */
+    private long estimatedSize (final MainNode main) {
+        long estimate = 1;
+        MainNode m = main;
+        while (m instanceof CNode) {
+            final BranchNode[] array = ((CNode<?, ?>) m).array;
+            if (array.length == 0) {
+                return 0;
+            }
+            estimate *= array.length;
+            if (!(array [0] instanceof INode)) {
+                break;
+            }
+            m = ((INode) array [0]).getMain ();
+        }
+        return estimate;
+    }
+
+    /**
+     * Traverses a sub-trie, following the {@link CNode} branches matching a
+     * hash prefix, and accumulates the transformed elements. Sub-tries large
+     * enough are traversed by forked tasks.
+     */
+    final class BulkTask<U> extends RecursiveTask<U> {
+        private static final long serialVersionUID = 1L;
+
+        BulkTask (final MainNode main,
+                  final int level,
+                  final long estimate,
+                  final int prefix,
+                  final int bits,
+                  final long threshold,
+                  final BiFunction<? super K, ? super V, ? extends U> transformer,
+                  final BiFunction<? super U, ? super U, ? extends U> reducer,
+                  final AtomicReference<U> found) {
+            this.main = main;
+            this.level = level;
+            this.estimate = estimate;
+            this.prefix = prefix;
+            this.bits = bits;
+            this.threshold = threshold;
+            this.transformer = transformer;
+            this.reducer = reducer;
+            this.found = found;
+        }
+
+        @Override
+        protected U compute () {
+            if (this.main instanceof TNode) {
+                @SuppressWarnings("unchecked")
+                final TNode<K, V> tn = (TNode<K, V>) this.main;
+                return leaf (tn.untombed (), null);
+            }
+
+            @SuppressWarnings("unchecked")
+            final CNode<K, V> cn = (CNode<K, V>) this.main;
+            final int w = widthAt (this.level);
+            final int constrained = Math.max (0, Math.min (w, this.bits - this.level));
+            final int mask = (1 << constrained) - 1;
+            final int expected = this.level < 32 ? this.prefix >>> this.level & mask : 0;
+            final long childEstimate = this.estimate / Math.max (1, cn.array.length);
+            final ArrayList<BulkTask<U>> forked = new ArrayList<BulkTask<U>> ();
+
+            U result = null;
+            int position = 0;
+            // Only the allocated slots are visited
+            for (long bitmap = cn.bitmap; bitmap != 0L; bitmap &= bitmap - 1, position++) {
+                if (stopped ()) {
+                    break;
+                }
+                if ((Long.numberOfTrailingZeros (bitmap) & mask) != expected) {
+                    continue;
+                }
+                final BranchNode bn = cn.array [position];
+                if (bn instanceof INode) {
+                    final BulkTask<U> task = new BulkTask<U> (((INode) bn).getMain (), this.level + w,
+                            childEstimate, this.prefix, this.bits, this.threshold,
+                            this.transformer, this.reducer, this.found);
+                    if (childEstimate >= this.threshold) {
+                        task.fork ();
+                        forked.add (task);
+                    } else {
+                        result = combine (result, task.compute ());
+                    }
+                } else {
+                    @SuppressWarnings("unchecked")
+                    final SNode<K, V> sn = (SNode<K, V>) bn;
+                    result = leaf (sn, result);
+                }
+            }
+            for (int i = forked.size () - 1; i >= 0; i--) {
+                result = combine (result, forked.get (i).join ());
+            }
+            return result;
+        }
+
+        private U leaf (final SNode<K, V> sn, final U accumulated) {
+            final int prefixMask = this.bits >= 32 ? -1 : (1 << this.bits) - 1;
+            if ((sn.hash () & prefixMask) != (this.prefix & prefixMask)) {
+                return accumulated;
+            }
+            U result = accumulated;
+            for (KeyValueNode<K, V> kvn = sn.next (null); null != kvn && !stopped (); kvn = sn.next (kvn)) {
+                final U u = this.transformer.apply (kvn.key, kvn.value);
+                if (null != u && null != this.found) {
+                    this.found.compareAndSet (null, u);
+                }
+                result = combine (result, u);
+            }
+            return result;
+        }
+
+        private U combine (final U a, final U b) {
+            if (null == a) {
+                return b;
+            } else if (null == b) {
+                return a;
+            } else if (null == this.reducer) {
+                return a;
+            } else {
+                return this.reducer.apply (a, b);
+            }
+        }
+
+        private boolean stopped () {
+            return null != this.found && null != this.found.get ();
+        }
+
+        private final MainNode main;
+        private final int level;
+        private final long estimate;
+        private final int prefix;
+        private final int bits;
+        private final long threshold;
+        private final BiFunction<? super K, ? super V, ? extends U> transformer;
+        private final BiFunction<? super U, ? super U, ? extends U> reducer;
+        private final AtomicReference<U> found;
+    }
+
+    /**
+     * Compacts all the tombed nodes left by deletes, from the leaves up. Meant
+     * to be called periodically by a background thread in lazy compression
+     * mode.
+     */
+    public void compact () {
+        compact (this.root, 0);
+    }
+
+    private void compact (final INode i, final int level) {
+        final MainNode m = i.getMain ();
+        if (m instanceof CNode) {
+            @SuppressWarnings("unchecked")
+            final CNode<K, V> cn = (CNode<K, V>) m;
+            boolean tombed = false;
+            for (final BranchNode bn : cn.array) {
+                if (bn instanceof INode) {
+                    compact ((INode) bn, level + widthAt (level));
+                    tombed |= null != getTombNode (bn);
+                }
+            }
+            if (tombed) {
+                clean (i, level);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tombed nodes waiting for compaction in lazy
+     *         compression mode, 0 otherwise
+     */
+    public long pendingCompactions () {
+        return this.pendingCompactions.sum ();
+    }
+
+    /**
+     * Walks the trie and estimates its memory footprint. Keys and values are
+     * not accounted for, only the trie structure itself.
+     * <p>
+     * The walk is not atomic: under concurrent updates the result is only an
+     * approximation.
+     *
+     * @return a {@link Footprint} of the current trie
+     */
+    public Footprint footprint () {
+        final Footprint footprint = new Footprint ();
+        footprint.inodes++;
+        footprint.bytes += Footprint.INODE_BYTES;
+        footprint (this.root.getMain (), 1, footprint);
+        return footprint;
+    }
+
+    private void footprint (final MainNode main, final int depth, final Footprint footprint) {
+        if (main instanceof CNode) {
+            @SuppressWarnings("unchecked")
+            final CNode<K, V> cn = (CNode<K, V>) main;
+            footprint.cnodes++;
+            footprint.slots += cn.array.length;
+            footprint.bytes += Footprint.CNODE_BYTES + Footprint.arrayBytes (cn.array.length);
+            for (final BranchNode bn : cn.array) {
+                if (bn instanceof INode) {
+                    footprint.inodes++;
+                    footprint.bytes += Footprint.INODE_BYTES;
+                    footprint (((INode) bn).getMain (), depth + 1, footprint);
+                } else {
+                    footprint.leaf (bn, depth);
+                }
+            }
+        } else {
+            footprint.leaf (main, depth);
+        }
+    }
+
+    /**
+     * Estimated memory footprint of a trie, assuming a 64 bits JVM with
+     * compressed references.
+     */
+    public static class Footprint {
+        static final int INODE_BYTES = 16;
+        static final int CNODE_BYTES = 24;
+        static final int KEY_VALUE_BYTES = 24;
+        static final int MULTI_BYTES = 16;
+
+        static int arrayBytes (final int length) {
+            return (16 + 4 * length + 7) & ~7;
+        }
+
+        void leaf (final Object node, final int depth) {
+            if (node instanceof BaseMultiNode) {
+                final int length = ((BaseMultiNode<?, ?>) node).content.length;
+                this.entries += length;
+                this.depths += (long) depth * length;
+                this.bytes += MULTI_BYTES + arrayBytes (length) + (long) KEY_VALUE_BYTES * length;
+            } else {
+                this.entries++;
+                this.depths += depth;
+                this.bytes += KEY_VALUE_BYTES;
+            }
+        }
+
+        /**
+         * @return the average number of bytes used by the trie per entry
+         */
+        public double bytesPerEntry () {
+            return this.entries == 0 ? 0 : (double) this.bytes / this.entries;
+        }
+
+        /**
+         * @return the average number of {@link CNode}s crossed by a lookup
+         */
+        public double averageDepth () {
+            return this.entries == 0 ? 0 : (double) this.depths / this.entries;
+        }
+
+        /**
+         * @return the average number of used slots per {@link CNode}
+         */
+        public double averageOccupancy () {
+            return this.cnodes == 0 ? 0 : (double) this.slots / this.cnodes;
+        }
+
+        @Override
+        public String toString () {
+            return "entries: " + this.entries +
+                    ", bytes: " + this.bytes +
+                    ", bytes/entry: " + String.format ("%.2f", bytesPerEntry ()) +
+                    ", depth: " + String.format ("%.2f", averageDepth ()) +
+                    ", cnode occupancy: " + String.format ("%.2f", averageOccupancy ());
+        }
+
+        public long entries = 0;
+        public long bytes = 0;
+        public long cnodes = 0;
+        public long inodes = 0;
+        public long slots = 0;
+        public long depths = 0;
+    }
+
     final class Iter implements Iterator<Map.Entry<K, V>> {
         public Iter () {
             advance ();
@@ -345,6 +909,150 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         }
     }
 
+    /**
+     * Builds a root {@link CNode} holding all the mappings of a {@link Map}.
+     *
+     * @param map
+     *            a {@link Map}
+     * @return the root {@link CNode}
+     */
+    private CNode<K, V> bulkBuild (final Map<? extends K, ? extends V> map) {
+        final int size = map.size ();
+        int[] hashes = new int[size];
+        @SuppressWarnings("unchecked")
+        KeyValueNode<K, V>[] nodes = new KeyValueNode[size];
+        int n = 0;
+        for (final Map.Entry<? extends K, ? extends V> e : map.entrySet ()) {
+            final K k = e.getKey ();
+            final V v = e.getValue ();
+            notNullKey (k);
+            notNullValue (v);
+            if (n == nodes.length) {
+                // The map grew while being copied
+                hashes = Arrays.copyOf (hashes, n * 2);
+                nodes = Arrays.copyOf (nodes, n * 2);
+            }
+            hashes [n] = hash (k);
+            nodes [n] = new KeyValueNode<K, V> (k, v);
+            n++;
+        }
+        @SuppressWarnings("unchecked")
+        final CNode<K, V> cn = (CNode<K, V>) ForkJoinPool.commonPool ().invoke (
+                new BulkBuild (hashes, nodes, new int[n], new KeyValueNode[n], 0, n, 0));
+        return cn;
+    }
+
+    /**
+     * Builds the immutable {@link CNode} of a level from a range of entries
+     * sharing the same hash prefix. The range is partitioned by the hash bits
+     * of the level and large partitions are built in parallel.
+     */
+    final class BulkBuild extends RecursiveTask<MainNode> {
+        private static final long serialVersionUID = 1L;
+
+        BulkBuild (final int[] hashes,
+                   final KeyValueNode<K, V>[] nodes,
+                   final int[] hashBuffer,
+                   final KeyValueNode<K, V>[] nodeBuffer,
+                   final int from,
+                   final int to,
+                   final int level) {
+            this.hashes = hashes;
+            this.nodes = nodes;
+            this.hashBuffer = hashBuffer;
+            this.nodeBuffer = nodeBuffer;
+            this.from = from;
+            this.to = to;
+            this.level = level;
+        }
+
+        @Override
+        protected MainNode compute () {
+            final int w = widthAt (this.level);
+            final int[] starts = new int[(1 << w) + 1];
+            for (int i = this.from; i < this.to; i++) {
+                starts [Long.numberOfTrailingZeros (flag (this.hashes [i], this.level, w)) + 1]++;
+            }
+            int count = 0;
+            for (int b = 0; b < 1 << w; b++) {
+                if (starts [b + 1] != 0) {
+                    count++;
+                }
+                starts [b + 1] += starts [b];
+            }
+
+            // Partitions the range by hash bits, keeping the insertion order
+            final int[] offsets = new int[1 << w];
+            for (int i = this.from; i < this.to; i++) {
+                final int b = Long.numberOfTrailingZeros (flag (this.hashes [i], this.level, w));
+                final int j = this.from + starts [b] + offsets [b]++;
+                this.hashBuffer [j] = this.hashes [i];
+                this.nodeBuffer [j] = this.nodes [i];
+            }
+            System.arraycopy (this.hashBuffer, this.from, this.hashes, this.from, this.to - this.from);
+            System.arraycopy (this.nodeBuffer, this.from, this.nodes, this.from, this.to - this.from);
+
+            final BranchNode[] array = new BranchNode[count];
+            @SuppressWarnings("unchecked")
+            final BulkBuild[] tasks = (BulkBuild[]) new ConcurrentHashTrie.BulkBuild[count];
+            long bitmap = 0L;
+            int position = 0;
+            for (int b = 0; b < 1 << w; b++) {
+                final int lo = this.from + starts [b];
+                final int hi = this.from + starts [b + 1];
+                if (lo == hi) {
+                    continue;
+                }
+                bitmap |= 1L << b;
+                if (sameHash (lo, hi)) {
+                    array [position] = leaf (lo, hi);
+                } else {
+                    tasks [position] = new BulkBuild (this.hashes, this.nodes, this.hashBuffer, this.nodeBuffer,
+                            lo, hi, this.level + w);
+                    if (hi - lo >= BULK_THRESHOLD) {
+                        tasks [position].fork ();
+                    }
+                }
+                position++;
+            }
+            for (int p = count - 1; p >= 0; p--) {
+                final BulkBuild task = tasks [p];
+                if (null != task) {
+                    final int size = task.to - task.from;
+                    array [p] = new INode (size >= BULK_THRESHOLD ? task.join () : task.compute ());
+                }
+            }
+            return new CNode<K, V> (array, bitmap);
+        }
+
+        private boolean sameHash (final int lo, final int hi) {
+            for (int i = lo + 1; i < hi; i++) {
+                if (this.hashes [i] != this.hashes [lo]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private SNode<K, V> leaf (final int lo, final int hi) {
+            if (hi - lo == 1) {
+                return new SingletonSNode<K, V> (this.nodes [lo].key, this.nodes [lo].value);
+            }
+            @SuppressWarnings("unchecked")
+            final KeyValueNode<K, V>[] content = new KeyValueNode[hi - lo];
+            System.arraycopy (this.nodes, lo, content, 0, hi - lo);
+            return new MultiSNode<K, V> (content);
+        }
+
+        private final int[] hashes;
+        private final KeyValueNode<K, V>[] nodes;
+        private final int[] hashBuffer;
+        private final KeyValueNode<K, V>[] nodeBuffer;
+        private final int from;
+        private final int to;
+        private final int level;
+    }
+
     /**
      * Looks up the value associated to a key
      *
@@ -451,7 +1159,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (main instanceof CNode) {
             @SuppressWarnings("unchecked")
             final CNode<K, V> cn = (CNode<K, V>) main;
-            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, this.width);
+            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, widthAt (level));
 
             // Asked for a hash not in trie
             if (0L == (flagPos.flag & cn.bitmap)) {
@@ -462,7 +1170,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             if (an instanceof INode) {
                 // Looking down
                 final INode sin = (INode) an;
-                return ilookup (sin, hashcode, k, level + this.width, i);
+                return ilookup (sin, hashcode, k, level + widthAt (level), i);
             }
             if (an instanceof SNode) {
                 // Found the hash locally, let's see if it matches
@@ -481,9 +1189,21 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             }
         }
 
-        // Cleaning up trie
         if (main instanceof TNode) {
-            clean (parent, level - this.width);
+            @SuppressWarnings("unchecked")
+            final TNode<K, V> tn = (TNode<K, V>) main;
+            // A tombed node never changes, it can be read in place
+            if (this.lazyCompression) {
+                final V v = tn.hash () == hashcode ? tn.get (k) : null;
+                if (null != v) {
+                    return new Result<V> (ResultType.FOUND, v);
+                } else {
+                    return new Result<V> (ResultType.NOTFOUND, null);
+                }
+            }
+
+            // Cleaning up trie
+            clean (parent, parentLevel (level));
             return new Result<V> (ResultType.RESTART, null);
         }
         throw new RuntimeException ("Unexpected case: " + main);
@@ -503,7 +1223,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (main instanceof CNode) {
             @SuppressWarnings("unchecked")
             final CNode<K, V> cn = (CNode<K, V>) main;
-            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, this.width);
+            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, widthAt (level));
 
             // Asked for a hash not in trie, let's insert it
             if (0L == (flagPos.flag & cn.bitmap)) {
@@ -527,7 +1247,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             if (an instanceof INode) {
                 // Looking down
                 final INode sin = (INode) an;
-                return iinsert (sin, hashcode, k, v, level + this.width, i, constraint);
+                return iinsert (sin, hashcode, k, v, level + widthAt (level), i, constraint);
             }
 
             if (an instanceof SNode) {
@@ -563,7 +1283,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
 
                     final SNode<K, V> nsn = new SingletonSNode<K, V> (k, v);
                     // Creates a sub-level
-                    final CNode<K, V> scn = new CNode<K, V> (sn, nsn, level + this.width, this.width);
+                    final CNode<K, V> scn = new CNode<K, V> (sn, nsn, level + widthAt (level), this.widths);
                     final INode nin = new INode (scn);
                     final CNode<K, V> ncn = cn.updated (flagPos.position, nin);
                     if (i.casMain (main, ncn)) {
@@ -577,12 +1297,109 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
 
         // Cleaning up trie
         if (main instanceof TNode) {
-            clean (parent, level - this.width);
+            clean (parent, parentLevel (level));
             return new Result<V> (ResultType.RESTART, null);
         }
         throw new RuntimeException ("Unexpected case: " + main);
     }
 
+    /**
+     * Remaps the value of a key. A null remapped value removes the mapping.
+     * A failed CAS is retried on the same {@link INode}, only a tombed
+     * {@link INode} restarts the descent from the root.
+     *
+     * @return a FOUND result holding the new value, or a RESTART result
+     */
+    private Result<V> icompute (final INode i,
+                                final int hashcode,
+                                final K k,
+                                final int level,
+                                final INode parent,
+                                final BiFunction<? super K, ? super V, ? extends V> f) {
+        while (true) {
+            final MainNode main = i.getMain ();
+
+            // Usual case
+            if (main instanceof CNode) {
+                @SuppressWarnings("unchecked")
+                final CNode<K, V> cn = (CNode<K, V>) main;
+                final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, widthAt (level));
+
+                // Asked for a hash not in trie, let's insert it
+                if (0L == (flagPos.flag & cn.bitmap)) {
+                    final V v = f.apply (k, null);
+                    if (null == v) {
+                        return new Result<V> (ResultType.FOUND, null);
+                    }
+                    final CNode<K, V> ncn = cn.inserted (flagPos, new SingletonSNode<K, V> (k, v));
+                    if (i.casMain (main, ncn)) {
+                        return new Result<V> (ResultType.FOUND, v);
+                    } else {
+                        continue;
+                    }
+                }
+
+                final BranchNode an = cn.array [flagPos.position];
+                if (an instanceof INode) {
+                    // Looking down
+                    final INode sin = (INode) an;
+                    return icompute (sin, hashcode, k, level + widthAt (level), i, f);
+                }
+
+                if (an instanceof SNode) {
+                    @SuppressWarnings("unchecked")
+                    final SNode<K, V> sn = (SNode<K, V>) an;
+                    final MainNode replacement;
+                    final V v;
+
+                    // Found the hash locally, let's see if it matches
+                    if (sn.hash () == hashcode) {
+                        final V previousValue = sn.get (k);
+                        v = f.apply (k, previousValue);
+                        if (v == previousValue) {
+                            return new Result<V> (ResultType.FOUND, v);
+                        }
+                        if (null != v) {
+                            replacement = cn.updated (flagPos.position, sn.put (k, v));
+                        } else {
+                            final SNode<K, V> nsn = sn.removed (k);
+                            if (null != nsn) {
+                                replacement = cn.updated (flagPos.position, nsn);
+                            } else {
+                                replacement = toContracted (cn.removed (flagPos), level);
+                            }
+                        }
+                    } else {
+                        v = f.apply (k, null);
+                        if (null == v) {
+                            return new Result<V> (ResultType.FOUND, null);
+                        }
+                        // Creates a sub-level
+                        final SNode<K, V> nsn = new SingletonSNode<K, V> (k, v);
+                        final CNode<K, V> scn = new CNode<K, V> (sn, nsn, level + widthAt (level), this.widths);
+                        replacement = cn.updated (flagPos.position, new INode (scn));
+                    }
+
+                    if (i.casMain (main, replacement)) {
+                        if (replacement instanceof TNode) {
+                            tombed (parent, i, hashcode, parentLevel (level));
+                        }
+                        return new Result<V> (ResultType.FOUND, v);
+                    } else {
+                        continue;
+                    }
+                }
+            }
+
+            // Cleaning up trie
+            if (main instanceof TNode) {
+                clean (parent, parentLevel (level));
+                return new Result<V> (ResultType.RESTART, null);
+            }
+            throw new RuntimeException ("Unexpected case: " + main);
+        }
+    }
+
     private Result<V> idelete (final INode i,
                                final int hashcode,
                                final K k,
@@ -595,7 +1412,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (main instanceof CNode) {
             @SuppressWarnings("unchecked")
             final CNode<K, V> cn = (CNode<K, V>) main;
-            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, this.width);
+            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, widthAt (level));
 
             // Asked for a hash not in trie
             if (0L == (flagPos.flag & cn.bitmap)) {
@@ -607,7 +1424,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             if (an instanceof INode) {
                 // Looking down
                 final INode sin = (INode) an;
-                res = idelete (sin, hashcode, k, level + this.width, i, constraint);
+                res = idelete (sin, hashcode, k, level + widthAt (level), i, constraint);
             }
             if (an instanceof SNode) {
                 // Found the hash locally, let's see if it matches
@@ -631,6 +1448,9 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
                             replacement = toContracted (ncn, level);
                         }
                         if (i.casMain (main, replacement)) {
+                            if (this.lazyCompression && replacement instanceof TNode) {
+                                this.pendingCompactions.increment ();
+                            }
                             res = new Result<V> (ResultType.FOUND, previous);
                         } else {
                             res = new Result<V> (ResultType.RESTART, null);
@@ -647,15 +1467,15 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
                 return res;
             }
 
-            if (i.getMain () instanceof TNode) {
-                cleanParent (parent, i, hashcode, level - this.width);
+            if (!this.lazyCompression && i.getMain () instanceof TNode) {
+                cleanParent (parent, i, hashcode, parentLevel (level));
             }
             return res;
         }
 
         // Cleaning up trie
         if (main instanceof TNode) {
-            clean (parent, level - this.width);
+            clean (parent, parentLevel (level));
             return new Result<V> (ResultType.RESTART, null);
         }
         throw new RuntimeException ("Unexpected case: " + main);
@@ -677,7 +1497,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
 
         // Cleaning up trie
         if (main instanceof TNode) {
-            clean (parent, level - this.width);
+            clean (parent, parentLevel (level));
             return new Result<SNode<K, V>> (ResultType.RESTART, null);
         }
         throw new RuntimeException ("Unexpected case: " + main);
@@ -693,7 +1513,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (main instanceof CNode) {
             @SuppressWarnings("unchecked")
             final CNode<K, V> cn = (CNode<K, V>) main;
-            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, this.width);
+            final FlagPos flagPos = flagPos (hashcode, level, cn.bitmap, widthAt (level));
 
             // Asked for a hash not in trie
             if (0L == (flagPos.flag & cn.bitmap)) {
@@ -704,7 +1524,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             if (an instanceof INode) {
                 // Looking down
                 final INode sin = (INode) an;
-                final Result<SNode<K, V>> next = ilookupNext (sin, hashcode, level + this.width, i);
+                final Result<SNode<K, V>> next = ilookupNext (sin, hashcode, level + widthAt (level), i);
                 switch (next.type) {
                     case FOUND:
                         return next;
@@ -729,7 +1549,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
 
         // Cleaning up trie
         if (main instanceof TNode) {
-            clean (parent, level - this.width);
+            clean (parent, parentLevel (level));
             return new Result<SNode<K, V>> (ResultType.RESTART, null);
         }
         throw new RuntimeException ("Unexpected case: " + main);
@@ -754,7 +1574,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (bn instanceof INode) {
             // Looking down
             final INode sin = (INode) bn;
-            return ilookupFirst (sin, level + this.width, parent);
+            return ilookupFirst (sin, level + widthAt (level), parent);
         }
         if (bn instanceof SNode) {
             // Found the SNode
@@ -765,6 +1585,18 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         throw new RuntimeException ("Unexpected case: " + bn);
     }
 
+    /**
+     * Handles an {@link INode} freshly tombed by an update: its parent is
+     * contracted right away, or later in lazy compression mode.
+     */
+    private void tombed (final INode parent, final INode i, final int hashCode, final int level) {
+        if (this.lazyCompression) {
+            this.pendingCompactions.increment ();
+        } else {
+            cleanParent (parent, i, hashCode, level);
+        }
+    }
+
     private void cleanParent (final INode parent, final INode i, final int hashCode, final int level) {
         while (true) {
             final MainNode m = i.getMain ();
@@ -772,7 +1604,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
             if (pm instanceof CNode) {
                 @SuppressWarnings("unchecked")
                 final CNode<K, V> pcn = (CNode<K, V>) pm;
-                final FlagPos flagPos = flagPos (hashCode, level, pcn.bitmap, this.width);
+                final FlagPos flagPos = flagPos (hashCode, level, pcn.bitmap, widthAt (level));
                 if (0L == (flagPos.flag & pcn.bitmap)) {
                     return;
                 }
@@ -801,23 +1633,24 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         if (m instanceof CNode) {
             @SuppressWarnings("unchecked")
             final CNode<K, V> cn = (CNode<K, V>) m;
-            i.casMain (m, toCompressed (cn, level));
-        }
-    }
-
-    private MainNode toCompressed (final CNode<K, V> cn, final int level) {
-        final CNode<K, V> ncn = cn.copied ();
+            final CNode<K, V> ncn = cn.copied ();
+
+            // Resurrect tombed nodes.
+            int resurrected = 0;
+            for (int j = 0; j < ncn.array.length; j++) {
+                final BranchNode an = ncn.array [j];
+                final TNode<K, V> tn = getTombNode (an);
+                if (null != tn) {
+                    ncn.array [j] = tn.untombed ();
+                    resurrected++;
+                }
+            }
 
-        // Resurrect tombed nodes.
-        for (int i = 0; i < ncn.array.length; i++) {
-            final BranchNode an = ncn.array [i];
-            final TNode<K, V> tn = getTombNode (an);
-            if (null != tn) {
-                ncn.array [i] = tn.untombed ();
+            final MainNode compressed = toContracted (ncn, level);
+            if (i.casMain (m, compressed) && this.lazyCompression) {
+                this.pendingCompactions.add ((compressed instanceof TNode ? 1 : 0) - resurrected);
             }
         }
-
-        return toContracted (ncn, level);
     }
 
     private MainNode toContracted (final CNode<K, V> cn, final int level) {
@@ -845,12 +1678,40 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         return null;
     }
 
+    /**
+     * Gets the width used by the {@link CNode}s of a level
+     *
+     * @param level
+     *            the level (in bit progression)
+     * @return the width (in bits)
+     */
+    private int widthAt (final int level) {
+        return this.widths [level];
+    }
+
+    /**
+     * Gets the level of the parent of a level
+     *
+     * @param level
+     *            the level (in bit progression)
+     * @return the parent level (in bit progression)
+     */
+    private int parentLevel (final int level) {
+        return this.parents [level];
+    }
+
     private void notNullValue (final V value) {
         if (value == null) {
             throw new NullPointerException ("The value must be non-null");
         }
     }
 
+    private void notNullFunction (final Object function) {
+        if (function == null) {
+            throw new NullPointerException ("The function must be non-null");
+        }
+    }
+
     private void notNullKey (final K key) {
         if (key == null) {
             throw new NullPointerException ("The key must be non-null");
@@ -862,7 +1723,20 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         return (Constraint<V>) NO_CONSTRAINT;
     }
 
-    static int hash (final Object key) {
+    /**
+     * Gets the spread hash code of a key, whose lowest bits select the
+     * {@link CNode} branches from the root down.
+     * <p>
+     * This is public API, as the prefixes of
+     * {@link #forEachInHashPrefix(long, int, int, BiConsumer)} are prefixes of
+     * this hash: the keys of the prefix of bits b of a key k are those whose
+     * hash has the lowest b bits of {@code hash(k)}.
+     *
+     * @param key
+     *            a key {@link Object}
+     * @return the hash code used by the trie
+     */
+    public static int hash (final Object key) {
         int h = key.hashCode ();
         // This function ensures that hashCodes that differ only by
         // constant multiples at each bit position have a bounded
@@ -1074,6 +1948,22 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
 
     static interface TNode<K, V> extends MainNode {
         SNode<K, V> untombed ();
+
+        /**
+         * Get the hashcode
+         *
+         * @return the hashcode
+         */
+        int hash ();
+
+        /**
+         * Gets an Object associated with the given key
+         *
+         * @param k
+         *            a key {@link Object}
+         * @return its associated value
+         */
+        V get (K k);
     }
 
     /**
@@ -1222,10 +2112,11 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
          *            a second {@link SNode} instance
          * @param level
          *            the current level (in bit progression)
-         * @param width
-         *            the width (in power-of-two exponents)
+         * @param widths
+         *            the width of each level (in power-of-two exponents)
          */
-        CNode (final SNode<K, V> sn1, final SNode<K, V> sn2, final int level, final int width) {
+        CNode (final SNode<K, V> sn1, final SNode<K, V> sn2, final int level, final byte[] widths) {
+            final int width = widths [level];
             final int h1 = sn1.hash ();
             final int h2 = sn2.hash ();
             final long flag1 = ConcurrentHashTrie.flag (h1, level, width);
@@ -1242,7 +2133,7 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
                 // Else goes down one level and create sub nodes
                 this.array = new BranchNode[] {
                         new INode (
-                                new CNode<K, V> (sn1, sn2, level+width, width))};
+                                new CNode<K, V> (sn1, sn2, level+width, widths))};
             }
             this.bitmap = flag1 | flag2;
         }
@@ -1379,6 +2270,16 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         public SNode<K, V> untombed () {
             return new SingletonSNode<K, V> (this.key, this.value);
         }
+
+        @Override
+        public int hash () {
+            return ConcurrentHashTrie.hash (this.key);
+        }
+
+        @Override
+        public V get (final K k) {
+            return this.key.equals (k) ? this.value : null;
+        }
     }
 
     /**
@@ -1526,6 +2427,21 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         public SNode<K, V> untombed () {
             return new MultiSNode<K, V> (this.content);
         }
+
+        @Override
+        public int hash () {
+            return ConcurrentHashTrie.hash (this.content [0].key);
+        }
+
+        @Override
+        public V get (final K k) {
+            for (int i = 0; i < this.content.length; i++) {
+                if (this.content [i].key.equals (k)) {
+                    return this.content [i].value;
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -1557,5 +2473,16 @@ public class ConcurrentHashTrie<K, V> extends AbstractMap<K, V> implements Concu
         public final int position;
     }
 
+    /**
+     * Upper bound of the levels (in bit progression) reachable by a hash
+     */
+    private static final int MAX_LEVEL = 32 + 6;
+
+    /**
+     * Minimum number of entries for a bulk build, and for a sub-trie to be
+     * built by a forked task
+     */
+    private static final int BULK_THRESHOLD = 1 << 12;
+
     private static final Constraint<Object> NO_CONSTRAINT = new Constraint<Object> (ConstraintType.NONE, null);
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package com.jokeren.concurrent.structures.kary;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An elimination array in front of a LockFree4ST, for hot keys.
+ *
+ * A putIfAbsent or remove whose flag CAS failed offers itself, for a short
+ * time, in the slot of its key. Another operation on the same key that
+ * fails its flag CAS meanwhile takes the offer:
+ * - an insert and a remove eliminate each other if the key is absent from
+ *   the tree while both are in progress, the insert being linearized right
+ *   before the remove, so neither touches the tree,
+ * - two inserts or two removes are combined: the taker applies its own
+ *   operation to the tree, and the offer is linearized right after it.
+ * An offer that is not taken, or whose operations cannot be eliminated,
+ * goes back to the tree. So does a taken offer that gets no response within
+ * a bounded wait: it abandons the offer by CAS on the response, and a taker
+ * that loses that CAS does not eliminate. A combining taker has applied its
+ * own operation to the tree already, its result stands either way.
+ *
+ * Combined inserts cannot tell a key mapped to null from an absent key, so
+ * the waiting insert then returns the value of the taker, like a tree
+ * whose values are never null.
+ */
+final class EliminationArray<E extends Comparable<? super E>, V> {
+    static final int INSERT = 0;
+    static final int REMOVE = 1;
+
+    /**
+     * Result of a visit that matched no other operation
+     */
+    static final Object NO_MATCH = new Object();
+
+    private static final Object NULL = new Object();   // result standing for null
+    private static final Object RETRY = new Object();  // response to an offer that was taken but not matched
+    private static final Object ABANDONED = new Object(); // response set by an offer that stopped waiting
+    private static final int SLOTS = 32;                // a power of 2
+    private static final int SPINS = 16;
+    private static final int WAITS = 1024;              // yields for the response to a taken offer
+
+    private final LockFree4ST<E,V> tree;
+    private final AtomicReferenceArray<Offer<E,V>> slots = new AtomicReferenceArray<Offer<E,V>>(SLOTS);
+
+    EliminationArray(final LockFree4ST<E,V> tree) {
+        this.tree = tree;
+    }
+
+    static Object unmask(final Object result) {
+        return result == NULL ? null : result;
+    }
+
+    private static Object mask(final Object result) {
+        return result == null ? NULL : result;
+    }
+
+    /**
+     * @return the masked result of the operation, or NO_MATCH if it has to
+     *         go back to the tree
+     */
+    Object visit(final int op, final E key, final V value) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        final int index = h & (SLOTS - 1);
+        final Offer<E,V> other = slots.get(index);
+        if (other == null) return offer(index, new Offer<E,V>(op, key, value));
+        if (other.key.compareTo(key) != 0 || !slots.compareAndSet(index, other, null)) return NO_MATCH;
+        return take(other, op, key, value);
+    }
+
+    private Object offer(final int index, final Offer<E,V> mine) {
+        if (!slots.compareAndSet(index, null, mine)) return NO_MATCH;
+        for (int i = 0; i < SPINS && mine.response == null; ++i) Thread.yield();
+        if (mine.response == null && slots.compareAndSet(index, mine, null)) return NO_MATCH;
+
+        // the offer was taken, wait for the response a bounded time, then abandon it
+        Object response = mine.response;
+        for (int i = 0; i < WAITS && response == null; ++i) {
+            Thread.yield();
+            response = mine.response;
+        }
+        if (response == null && mine.respond(ABANDONED)) return NO_MATCH;
+        response = mine.response;
+        return response == RETRY ? NO_MATCH : response;
+    }
+
+    private Object take(final Offer<E,V> other, final int op, final E key, final V value) {
+        final Object mine, theirs;
+        if (other.op != op) {
+            // the thread of the offer waits for the response,
+            // so both operations are in progress during containsKey
+            if (tree.containsKey(key)) {
+                other.respond(RETRY);
+                return NO_MATCH;
+            }
+            if (op == INSERT) {
+                mine = NULL;
+                theirs = mask(value);
+            } else {
+                mine = mask(other.value);
+                theirs = NULL;
+            }
+        } else if (op == INSERT) {
+            final V previous = tree.putIfAbsent(key, value, false);
+            mine = mask(previous);
+            theirs = mask(previous == null ? value : previous);
+        } else {
+            mine = mask(tree.remove(key, false));
+            theirs = NULL;
+        }
+        // an abandoned offer goes back to the tree: an elimination fails, a combined operation stands alone
+        if (!other.respond(theirs) && other.op != op) return NO_MATCH;
+        return mine;
+    }
+
+    static final class Offer<E, V> {
+        final int op;
+        final E key;
+        final V value;
+        volatile Object response = null;
+
+        private static final AtomicReferenceFieldUpdater<Offer, Object> responseUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Offer.class, Object.class, "response");
+
+        Offer(final int op, final E key, final V value) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+        }
+
+        // sets the first response, from the taker or from the abandoning offer
+        boolean respond(final Object response) {
+            return responseUpdater.compareAndSet(this, null, response);
+        }
+    }
+}
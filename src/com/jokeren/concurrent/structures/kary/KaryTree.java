@@ -0,0 +1,18 @@
+package com.jokeren.concurrent.structures.kary;
+
+/**
+ * Common operations of the k-ary search trees.
+ */
+public interface KaryTree<E extends Comparable<? super E>, V> {
+    public boolean containsKey(E key);
+
+    public V get(E key);
+
+    public V putIfAbsent(E key, V value);
+
+    public V put(E key, V value);
+
+    public V remove(E key);
+
+    public int size();
+}
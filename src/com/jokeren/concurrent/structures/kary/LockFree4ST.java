@@ -24,8 +24,9 @@ package com.jokeren.concurrent.structures.kary;
 
 import java.util.*;
 import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
 
-public class LockFree4ST<E extends Comparable<? super E>, V> {
+public class LockFree4ST<E extends Comparable<? super E>, V> implements KaryTree<E, V> {
 
     /**
      *
@@ -44,8 +45,32 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
     private static final AtomicReferenceFieldUpdater<Node, Info> infoUpdater =
             AtomicReferenceFieldUpdater.newUpdater(Node.class, Info.class, "info");
+    private static final AtomicIntegerFieldUpdater<Node> countUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "count");
     private final Node<E,V> root;
 
+    /**
+     * If true, every internal node keeps the number of keys in its subtree,
+     * for rank and select. An update adds its change in the number of keys
+     * to the count of each internal node it crossed, after its child CAS.
+     */
+    private final boolean augmented;
+
+    /**
+     * If not null, putIfAbsent and remove visit it after a failed flag CAS
+     */
+    private final EliminationArray<E,V> elimination;
+
+    /**
+     * Snapshots for size() and clone()
+     */
+    private final Snapshots snapshots = new Snapshots();
+
+    /**
+     * Initial capacity of the path of an update in an augmented tree
+     */
+    private static final int PATH = 16;
+
 
 
     /**
@@ -55,11 +80,34 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
      */
 
     public LockFree4ST() {
+        this(false);
+    }
+
+    /**
+     * @param augmented if true, the tree keeps subtree key counts and
+     *                  supports rank and select, at the cost of an atomic
+     *                  add on every internal node of the path of an update
+     */
+    public LockFree4ST(final boolean augmented) {
+        this(augmented, false);
+    }
+
+    /**
+     * @param augmented see LockFree4ST(boolean)
+     * @param eliminating if true, putIfAbsent and remove operations on the
+     *                    same key that fail their flag CAS meet in an
+     *                    elimination array, see EliminationArray
+     */
+    public LockFree4ST(final boolean augmented, final boolean eliminating) {
         this.root = new Node<E,V>(true);
+        this.augmented = augmented;
+        this.elimination = eliminating ? new EliminationArray<E,V>(this) : null;
     }
 
-    private LockFree4ST(Node root) {
+    private LockFree4ST(Node root, final boolean augmented) {
         this.root = root;
+        this.augmented = augmented;
+        this.elimination = null;
     }
 
 
@@ -106,17 +154,30 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
      * @throws NullPointerException in the event that key is null
      */
     public final V putIfAbsent(final E key, final V value) {
+        return putIfAbsent(key, value, elimination != null);
+    }
+
+    /**
+     * @param eliminate if true, visit the elimination array after a failed flag CAS
+     */
+    @SuppressWarnings("unchecked")
+    final V putIfAbsent(final E key, final V value, final boolean eliminate) {
         if (key == null) throw new NullPointerException();
         Node<E,V> p, l, newchild;
         Info<E,V> pinfo;
+        boolean pclean; // whether pinfo was clean when it was read
         int pindex; // index of the child of p that points to l
+        Node[] path = augmented ? new Node[PATH] : null;
+        int depth;  // number of internal nodes in path
 
         while (true) {
             // search
             p = root;
             pinfo = p.info;
             l = p.c0;
+            depth = 0;
             while (l.c0 != null) {
+                if (path != null) path = record(path, depth++, l);
                 p = l;
                 l = child(key, l);
             }
@@ -126,6 +187,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             // (so it is as if gp.info were read first)
             // and also store the index of the child pointer of gp that points to p
             pinfo = p.info;
+            pclean = isClean(pinfo);
             Node<E,V> currentL;
             if (less(key, p.k0)) { currentL = p.c0; pindex = 0; }
             else if (less(key, p.k1)) { currentL = p.c1; pindex = 1; }
@@ -135,7 +197,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             if (l != currentL) continue;
 
             if (l.hasKey(key)) return l.getValue(key);
-            else if (pinfo != null && pinfo.getClass() != Clean.class) help(pinfo);
+            else if (!pclean) help(pinfo);
             else {
                 // SPROUTING INSERTION
                 if (l.kcount == 3) { // l is full of keys
@@ -152,12 +214,18 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
                 // flag and perform the insertion
                 final IInfo<E,V> newPInfo = new IInfo<E,V>(l, p, newchild, pindex);
+                snapshots.beforeUpdate();
                 if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
                     helpInsert(newPInfo);
+                    if (path != null) count(path, depth, 1);
                     return null;
                 } else {
                     // help current operation first
                     help(p.info);
+                    if (eliminate) {
+                        final Object result = elimination.visit(EliminationArray.INSERT, key, value);
+                        if (result != EliminationArray.NO_MATCH) return (V) EliminationArray.unmask(result);
+                    }
                 }
             }
         }
@@ -173,14 +241,19 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
         if (key == null) throw new NullPointerException();
         Node<E, V> p, l, newchild;
         Info<E, V> pinfo;
+        boolean pclean; // whether pinfo was clean when it was read
         int pindex; // index of the child of p that points to l
+        Node[] path = augmented ? new Node[PATH] : null;
+        int depth;  // number of internal nodes in path
 
         while (true) {
             // search
             p = root;
             pinfo = p.info;
             l = p.c0;
+            depth = 0;
             while (l.c0 != null) {
+                if (path != null) path = record(path, depth++, l);
                 p = l;
                 l = child(key, l);
             }
@@ -190,6 +263,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             // (so it is as if gp.info were read first)
             // and also store the index of the child pointer of gp that points to p
             pinfo = p.info;
+            pclean = isClean(pinfo);
             Node<E,V> currentL;
             if (less(key, p.k0)) { currentL = p.c0; pindex = 0; }
             else if (less(key, p.k1)) { currentL = p.c1; pindex = 1; }
@@ -198,7 +272,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
             if (l != currentL) continue;
 
-            if (pinfo != null && pinfo.getClass() != Clean.class) {
+            if (!pclean) {
                 help(pinfo);
             } else if (l.hasKey(key)) {
 
@@ -207,6 +281,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
                 // flag and perform the insertion
                 final IInfo<E, V> newPInfo = new IInfo<E, V>(l, p, newchild, pindex);
+                snapshots.beforeUpdate();
                 if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
                     helpInsert(newPInfo);
                     return l.getValue(key);
@@ -230,8 +305,10 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
                 // flag and perform the insertion
                 final IInfo<E, V> newPInfo = new IInfo<E, V>(l, p, newchild, pindex);
+                snapshots.beforeUpdate();
                 if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
                     helpInsert(newPInfo);
+                    if (path != null) count(path, depth, 1);
                     return null;
                 } else {
                     // help current operation first
@@ -248,11 +325,22 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
      * @throws NullPointerException in the event that key is null
      */
     public final V remove(final E key) {
+        return remove(key, elimination != null);
+    }
+
+    /**
+     * @param eliminate if true, visit the elimination array after a failed flag CAS
+     */
+    @SuppressWarnings("unchecked")
+    final V remove(final E key, final boolean eliminate) {
         if (key == null) throw new NullPointerException();
         Node<E,V> gp, p, l, newchild;
         Info<E,V> gpinfo, pinfo;
+        boolean gpclean, pclean; // whether gpinfo and pinfo were clean when they were read
         int pindex;  // index of the child of p that points to l
         int gpindex; // index of the child of gp that points to p
+        Node[] path = augmented ? new Node[PATH] : null;
+        int depth;   // number of internal nodes in path
 
         while (true) {
             // search
@@ -261,7 +349,9 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             p = root;
             pinfo = p.info;
             l = p.c0;
+            depth = 0;
             while (l.c0 != null) {
+                if (path != null) path = record(path, depth++, l);
                 gp = p;
                 p = l;
                 l = child(key, l);
@@ -272,6 +362,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             // (so it is as if gp.info were read first)
             // and also store the index of the child pointer of gp that points to p
             gpinfo = gp.info;
+            gpclean = isClean(gpinfo);
             Node<E,V> currentP;
             if (less(key, gp.k0)) { currentP = gp.c0; gpindex = 0; }
             else if (less(key, gp.k1)) { currentP = gp.c1; gpindex = 1; }
@@ -282,6 +373,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
             // - then do the same for pinfo and the child pointer from p to l
             pinfo = p.info;
+            pclean = isClean(pinfo);
             Node<E,V> currentL;
             if (less(key, p.k0)) { currentL = p.c0; pindex = 0; }
             else if (less(key, p.k1)) { currentL = p.c1; pindex = 1; }
@@ -293,9 +385,9 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             // if the key is not in the tree, return null
             if (!l.hasKey(key))
                 return null;
-            else if (gpinfo != null && gpinfo.getClass() != Clean.class)
+            else if (!gpclean)
                 help(gpinfo);
-            else if (pinfo != null && pinfo.getClass() != Clean.class)
+            else if (!pclean)
                 help(pinfo);
             else {
                 // count number of non-empty children of p
@@ -308,10 +400,19 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
                 // PRUNING DELETION
                 if (ccount == 2 && l.kcount == 1) {
                     final DInfo<E,V> newGPInfo = new DInfo<E,V>(l, p, gp, pinfo, gpindex);
+                    snapshots.beforeUpdate();
                     if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) { // [[ dflag CAS ]]
-                        if (helpDelete(newGPInfo)) return l.getValue(key);
+                        if (helpDelete(newGPInfo)) {
+                            // p is removed, its count does not matter anymore
+                            if (path != null) count(path, depth, -1);
+                            return l.getValue(key);
+                        }
                     } else {
                         help(gp.info);
+                        if (eliminate) {
+                            final Object result = elimination.visit(EliminationArray.REMOVE, key, null);
+                            if (result != EliminationArray.NO_MATCH) return (V) EliminationArray.unmask(result);
+                        }
                     }
 
                     // SIMPLE DELETION
@@ -321,11 +422,17 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
                     // flag and perform the key deletion (like insertion)
                     final IInfo<E,V> newPInfo = new IInfo<E,V>(l, p, newchild, pindex);
+                    snapshots.beforeUpdate();
                     if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	// [[ kdflag CAS ]]
                         helpInsert(newPInfo);
+                        if (path != null) count(path, depth, -1);
                         return l.getValue(key);
                     } else {
                         help(p.info);
+                        if (eliminate) {
+                            final Object result = elimination.visit(EliminationArray.REMOVE, key, null);
+                            if (result != EliminationArray.NO_MATCH) return (V) EliminationArray.unmask(result);
+                        }
                     }
                 }
             }
@@ -333,23 +440,186 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
     }
 
     /**
-     * Determines the size of the tree
-     * @return the size of the tree, or -1 if the tree was concurrently modified
+     * Returns the least key greater than or equal to the given key.
+     * The search is weakly consistent: each child pointer is read once.
+     * @return the least key greater than or equal to key, or null if there is no such key
+     * @throws NullPointerException in the event that key is null
+     */
+    public final E ceilingKey(final E key) {
+        if (key == null) throw new NullPointerException();
+        return ascend(key, null, null);
+    }
+
+    /**
+     * Returns the greatest key less than or equal to the given key.
+     * The search is weakly consistent: each child pointer is read once.
+     * @return the greatest key less than or equal to key, or null if there is no such key
+     * @throws NullPointerException in the event that key is null
+     */
+    public final E floorKey(final E key) {
+        if (key == null) throw new NullPointerException();
+        return descend(key);
+    }
+
+    /**
+     * @return the lowest key in the tree, or null if the tree is empty
+     */
+    public final E firstKey() {
+        return ascend(null, null, null);
+    }
+
+    /**
+     * @return the highest key in the tree, or null if the tree is empty
+     */
+    public final E lastKey() {
+        return descend(null);
+    }
+
+    /**
+     * Passes every key-value pair with from <= key < to to the consumer, in
+     * ascending key order. The scan is weakly consistent: it reflects each
+     * leaf as it was when the scan reached it, and only walks the subtrees
+     * whose key range intersects [from, to).
+     * @throws NullPointerException in the event that from, to or consumer is null
+     */
+    public final void rangeScan(final E from, final E to, final BiConsumer<? super E, ? super V> consumer) {
+        if (from == null || to == null || consumer == null) throw new NullPointerException();
+        ascend(from, to, consumer);
+    }
+
+    /**
+     * Determines the number of keys less than the given key, in O(height),
+     * for a tree created augmented. The counts of the nodes are updated
+     * after the updates take effect, so the rank is exact when no update is
+     * in progress, and may be off by the number of updates in progress
+     * otherwise.
+     * @return the number of keys in the tree less than key
+     * @throws NullPointerException in the event that key is null
+     * @throws UnsupportedOperationException in the event that the tree is not augmented
+     */
+    public final int rank(final E key) {
+        if (key == null) throw new NullPointerException();
+        if (!augmented) throw new UnsupportedOperationException("rank needs an augmented tree");
+        int rank = 0;
+        Node<E,V> l = root.c0;
+        while (l.c0 != null) {  /* while l is internal */
+            final int index = childIndex(key, l);
+            if (index > 0) rank += weight(l.c0);
+            if (index > 1) rank += weight(l.c1);
+            if (index > 2) rank += weight(l.c2);
+            l = index == 0 ? l.c0 : index == 1 ? l.c1 : index == 2 ? l.c2 : l.c3;
+        }
+        if (l.k0 != null && less(l.k0, key)) ++rank;
+        if (l.k1 != null && less(l.k1, key)) ++rank;
+        if (l.k2 != null && less(l.k2, key)) ++rank;
+        return rank;
+    }
+
+    /**
+     * Finds the key of the given rank, in O(height), for a tree created
+     * augmented. Like rank, it is exact when no update is in progress.
+     * @return the key with index keys less than it, or null if index is
+     *         negative or not less than the size of the tree
+     * @throws UnsupportedOperationException in the event that the tree is not augmented
+     */
+    public final E select(int index) {
+        if (!augmented) throw new UnsupportedOperationException("select needs an augmented tree");
+        if (index < 0) return null;
+        Node<E,V> l = root.c0;
+        while (l.c0 != null) {  /* while l is internal */
+            Node<E,V> c = l.c0;
+            int weight;
+            if (index >= (weight = weight(c))) { index -= weight; c = l.c1;
+                if (index >= (weight = weight(c))) { index -= weight; c = l.c2;
+                    if (index >= (weight = weight(c))) { index -= weight; c = l.c3; } } }
+            l = c;
+        }
+        return index == 0 ? l.k0 : index == 1 ? l.k1 : index == 2 ? l.k2 : null;
+    }
+
+    /**
+     * Adds every key-value pair of the map to the tree, overwriting any
+     * pre-existing mappings, see putBatch.
+     * @throws NullPointerException in the event that map or one of its keys is null
+     */
+    @SuppressWarnings("unchecked")
+    public final void putAll(final SortedMap<? extends E, ? extends V> map) {
+        final Object[] keys = new Object[map.size()];
+        final Object[] values = new Object[keys.length];
+        int n = 0;
+        for (Map.Entry<? extends E, ? extends V> entry : map.entrySet()) {
+            if (entry.getKey() == null) throw new NullPointerException();
+            keys[n] = entry.getKey();
+            values[n] = entry.getValue();
+            ++n;
+        }
+        if (map.comparator() == null) putSorted(keys, values, n);
+        else putBatch((E[]) keys, (V[]) values);
+    }
+
+    /**
+     * Adds the key-value pairs keys[i], values[i] to the tree, overwriting
+     * any pre-existing mappings, as if put were called for each pair in
+     * order. The pairs are sorted and grouped by the leaf they belong to:
+     * each leaf is replaced once by a leaf, or a subtree, holding its keys
+     * and the new ones, with a single flag and child CAS. The batch is not
+     * atomic, a concurrent reader may see part of it.
+     * @throws NullPointerException in the event that one of the keys is null
+     * @throws IllegalArgumentException in the event that the arrays differ in length
+     */
+    @SuppressWarnings("unchecked")
+    public final void putBatch(final E[] keys, final V[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values differ in length");
+        }
+        final Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; ++i) {
+            if (keys[i] == null) throw new NullPointerException();
+            order[i] = i;
+        }
+        // stable, so the last value of a duplicate key comes last
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+        final Object[] sortedKeys = new Object[keys.length];
+        final Object[] sortedValues = new Object[keys.length];
+        int n = 0;
+        for (int i = 0; i < order.length; ++i) {
+            final E key = keys[order[i]];
+            if (n > 0 && equal(key, (E) sortedKeys[n - 1])) --n;
+            sortedKeys[n] = key;
+            sortedValues[n] = values[order[i]];
+            ++n;
+        }
+        putSorted(sortedKeys, sortedValues, n);
+    }
+
+    /**
+     * Determines the size of the tree. The keys are counted completing the
+     * updates in progress on the way, and recounted if another update
+     * changed a child reference meanwhile, see Snapshots. Updates never
+     * wait for the count, and it cannot starve.
+     * @return the size of the tree
      */
     public final int size() {
-        Node newroot = getSnapshot();
-        if (newroot == null) return -1;
-        return sequentialSize(newroot);
+        return snapshots.take(new Snapshots.Walk<Integer>() {
+            @Override
+            Integer walk() {
+                final int sz = snapshotSize(root);
+                return (sz < 0) ? null : sz;
+            }
+        });
     }
 
     /**
-     * Determines the size of the tree (retries until the tree can be read in
-     * its entirety without concurrent modification)
+     * Determines the size of the tree, same as size()
      * @return the size of the tree
      */
     public final int sizeBlocking() {
-        int sz = 0;
-        for (;;) if ((sz = size()) != -1) return sz;
+        return size();
     }
 
     /**
@@ -361,14 +631,18 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
     }
 
     /**
-     * Clones the tree (retries until the tree can be read in its
-     * entirety without concurrent modification)
+     * Clones the tree, copying it like size() counts it
      * @return a reference to a clone of the tree
      */
     @Override
     public final LockFree4ST clone() {
-        Node newroot = null;
-        for (;;) if ((newroot = getSnapshot()) != null) return new LockFree4ST(newroot);
+        final Node<E,V> newroot = snapshots.take(new Snapshots.Walk<Node<E,V>>() {
+            @Override
+            Node<E,V> walk() {
+                return copy(root);
+            }
+        });
+        return new LockFree4ST(newroot, augmented);
     }
 
     @Override
@@ -406,6 +680,234 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
     }
 
+    private int childIndex(final E key, final Node<E,V> l) {
+        if (less(key, l.k0)) return 0;
+        if (less(key, l.k1)) return 1;
+        if (less(key, l.k2)) return 2;
+        return 3;
+    }
+
+    /**
+     * Walks the leaves holding keys in [lo, hi) in ascending order, where a
+     * null bound is unbounded. The walk is iterative since the tree is not
+     * balanced and ordered insertions make it deep.
+     * @return the first key found if consumer is null, otherwise null after
+     *         passing every key found to the consumer
+     */
+    private E ascend(final E lo, final E hi, final BiConsumer<? super E, ? super V> consumer) {
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        stack.push(root.c0);
+        while (!stack.isEmpty()) {
+            final Node<E,V> node = stack.pop();
+            final Node<E,V> c0 = node.c0;
+            if (c0 == null) { /* node is a leaf */
+                for (int i = 0; i < node.kcount; ++i) {
+                    final E k = i == 0 ? node.k0 : i == 1 ? node.k1 : node.k2;
+                    if (k == null || (lo != null && less(k, lo))) continue;
+                    if (hi != null && !less(k, hi)) return null;
+                    if (consumer == null) return k;
+                    consumer.accept(k, i == 0 ? node.v0 : i == 1 ? node.v1 : node.v2);
+                }
+            } else {
+                final int first = lo == null ? 0 : childIndex(lo, node);
+                final int last = hi == null ? 3 : childIndex(hi, node);
+                for (int i = last; i >= first; --i) {
+                    stack.push(i == 0 ? c0 : i == 1 ? node.c1 : i == 2 ? node.c2 : node.c3);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks the leaves holding keys less than or equal to hi in descending
+     * order, where a null bound is unbounded.
+     * @return the first key found, or null if there is no such key
+     */
+    private E descend(final E hi) {
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        stack.push(root.c0);
+        while (!stack.isEmpty()) {
+            final Node<E,V> node = stack.pop();
+            final Node<E,V> c0 = node.c0;
+            if (c0 == null) { /* node is a leaf */
+                for (int i = node.kcount - 1; i >= 0; --i) {
+                    final E k = i == 0 ? node.k0 : i == 1 ? node.k1 : node.k2;
+                    if (k != null && (hi == null || !less(hi, k))) return k;
+                }
+            } else {
+                final int last = hi == null ? 3 : childIndex(hi, node);
+                for (int i = 0; i <= last; ++i) {
+                    stack.push(i == 0 ? c0 : i == 1 ? node.c1 : i == 2 ? node.c2 : node.c3);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts the first n keys, which are distinct and sorted, one leaf at a
+     * time: the keys below the upper bound of the key range of the leaf of
+     * the lowest key are merged with the leaf, and the result replaces it.
+     */
+    @SuppressWarnings("unchecked")
+    private void putSorted(final Object[] keys, final Object[] values, final int n) {
+        Node<E,V> p, l, newchild;
+        Info<E,V> pinfo;
+        int pindex; // index of the child of p that points to l
+
+        Node[] path = augmented ? new Node[PATH] : null;
+        int depth;  // number of internal nodes in path
+
+        int i = 0;
+        while (i < n) {
+            final E key = (E) keys[i];
+            // search, keeping the upper bound of the key range of l (null is infinity)
+            E hi = null;
+            p = root;
+            l = p.c0;
+            depth = 0;
+            while (l.c0 != null) {
+                if (path != null) path = record(path, depth++, l);
+                p = l;
+                final int index = childIndex(key, l);
+                final E bound = index == 0 ? l.k0 : index == 1 ? l.k1 : index == 2 ? l.k2 : null;
+                if (bound != null) hi = bound;
+                l = index == 0 ? l.c0 : index == 1 ? l.c1 : index == 2 ? l.c2 : l.c3;
+            }
+
+            // read pinfo, then re-read and verify the child pointer from p to l
+            pinfo = p.info;
+            final boolean pclean = isClean(pinfo);
+            pindex = childIndex(key, p);
+            final Node<E,V> currentL = pindex == 0 ? p.c0 : pindex == 1 ? p.c1 : pindex == 2 ? p.c2 : p.c3;
+            if (l != currentL) continue;
+
+            if (!pclean) {
+                help(pinfo);
+                continue;
+            }
+
+            // the keys that belong to l
+            int j = i + 1;
+            while (j < n && (hi == null || less((E) keys[j], hi))) ++j;
+            newchild = merge(l, keys, values, i, j);
+
+            // flag and perform the insertion
+            final IInfo<E,V> newPInfo = new IInfo<E,V>(l, p, newchild, pindex);
+            snapshots.beforeUpdate();
+            if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
+                helpInsert(newPInfo);
+                if (path != null) count(path, depth, weight(newchild) - l.kcount);
+                i = j;
+            } else {
+                // help current operation first
+                help(p.info);
+            }
+        }
+    }
+
+    /**
+     * @return a leaf, or a subtree, holding the keys of leaf l and the keys
+     *         from index from to index to, whose values replace those of l
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Comparable<? super E>, V> Node<E,V> merge(
+            final Node<E,V> l, final Object[] keys, final Object[] values, final int from, final int to) {
+        final int capacity = l.kcount + to - from;
+        final Object[] mkeys = new Object[capacity];
+        final Object[] mvalues = new Object[capacity];
+        int m = 0, i = from, j = 0;
+        while (i < to || j < l.kcount) {
+            final E lkey = j == 0 ? l.k0 : j == 1 ? l.k1 : l.k2;
+            final V lvalue = j == 0 ? l.v0 : j == 1 ? l.v1 : l.v2;
+            final int c = i == to ? 1 : j == l.kcount ? -1 : ((E) keys[i]).compareTo(lkey);
+            if (c <= 0) {
+                mkeys[m] = keys[i];
+                mvalues[m] = values[i];
+                ++i;
+                if (c == 0) ++j;
+            } else {
+                mkeys[m] = lkey;
+                mvalues[m] = lvalue;
+                ++j;
+            }
+            ++m;
+        }
+        return build(mkeys, mvalues, 0, m);
+    }
+
+    /**
+     * Builds a subtree holding the sorted keys from index from to index to,
+     * as leaves of up to 3 keys under internal nodes whose 4 children hold
+     * about the same number of keys.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Comparable<? super E>, V> Node<E,V> build(
+            final Object[] keys, final Object[] values, final int from, final int to) {
+        final int n = to - from;
+        if (n <= 3) {
+            return new Node<E,V>(
+                    n > 0 ? (E) keys[from] : null, n > 0 ? (V) values[from] : null,
+                    n > 1 ? (E) keys[from + 1] : null, n > 1 ? (V) values[from + 1] : null,
+                    n > 2 ? (E) keys[from + 2] : null, n > 2 ? (V) values[from + 2] : null,
+                    n);
+        }
+        // 4 non-empty groups, the first n % 4 have one more key
+        final int q = n / 4, r = n % 4;
+        final int s1 = from + q + (r > 0 ? 1 : 0);
+        final int s2 = s1 + q + (r > 1 ? 1 : 0);
+        final int s3 = s2 + q + (r > 2 ? 1 : 0);
+        return new Node<E,V>((E) keys[s1], (E) keys[s2], (E) keys[s3],
+                build(keys, values, from, s1), build(keys, values, s1, s2),
+                build(keys, values, s2, s3), LockFree4ST.<E,V>build(keys, values, s3, to));
+    }
+
+    /**
+     * A node is unflagged when its info is null or an IInfo or DInfo whose
+     * operation is done, so that unflagging allocates nothing. The
+     * flag CASes still cannot suffer from ABA as every flag installs a new
+     * descriptor, so a descriptor is never stored twice in the same node.
+     * A Mark is never clean.
+     *
+     * An operation that finishes stays in the info of its node, so an
+     * update must decide whether an info is clean right when it reads it,
+     * before it checks the child pointer. An info read in progress may be
+     * done by the time of the flag CAS, which would then succeed although
+     * the child pointer changed: such an info is helped, never used as the
+     * expected value of a flag CAS.
+     */
+    private static boolean isClean(final Info<?,?> info) {
+        return info == null || info.isDone();
+    }
+
+    /**
+     * @return the number of keys in the subtree of node, in an augmented tree
+     */
+    private static int weight(final Node<?,?> node) {
+        return node.c0 == null ? node.kcount : node.count;
+    }
+
+    /**
+     * Stores node at index depth of path, growing it if needed.
+     */
+    private static Node[] record(Node[] path, final int depth, final Node<?,?> node) {
+        if (depth == path.length) path = Arrays.copyOf(path, depth * 2);
+        path[depth] = node;
+        return path;
+    }
+
+    /**
+     * Adds delta to the counts of the first depth nodes of path. These were
+     * the ancestors of the leaf when it was replaced, or have been removed
+     * from the tree since: internal nodes are only created by sprouting and
+     * batches, with their subtree counted, and only removed by pruning.
+     */
+    private static void count(final Node[] path, final int depth, final int delta) {
+        if (delta == 0) return;
+        for (int i = 0; i < depth; ++i) countUpdater.getAndAdd(path[i], delta);
+    }
+
     private void help(final Info<E,V> info) {
         if (info.getClass() == IInfo.class)      helpInsert((IInfo<E,V>) info);
         else if (info.getClass() == DInfo.class) helpDelete((DInfo<E,V>) info);
@@ -414,6 +916,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
     private void helpInsert(final IInfo<E,V> info) {
         // CAS the correct child pointer of p from oldchild to newchild
+        snapshots.announce();
         switch (info.pindex) {                                                  // [[ ichild CAS ]]
             case 0: c0Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
             case 1: c1Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
@@ -422,7 +925,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
             default: assert(false); break;
         }
-        infoUpdater.compareAndSet(info.p, info, new Clean<E,V>());              // [[ iunflag CAS ]]
+        info.done = true;                                                       // [[ iunflag ]]
     }
 
     private boolean helpDelete(final DInfo<E,V> info) {
@@ -435,7 +938,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             return true;
         } else {
             help(currentPInfo);
-            infoUpdater.compareAndSet(info.gp, info, new Clean<E,V>());       // [[ backtrack CAS ]]
+            info.done = true;                                                 // [[ backtrack ]]
             return false;
         }
     }
@@ -450,6 +953,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
 
         // CAS the correct child pointer of info.gp from info.p to other
+        snapshots.announce();
         switch (info.gpindex) {                                                 // [[ dchild CAS ]]
             case 0: c0Updater.compareAndSet(info.gp, info.p, other); break;
             case 1: c1Updater.compareAndSet(info.gp, info.p, other); break;
@@ -458,7 +962,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
             default: assert(false); break;
         }
-        infoUpdater.compareAndSet(info.gp, info, new Clean<E,V>());           // [[ dunflag CAS ]]
+        info.done = true;                                                     // [[ dunflag ]]
     }
 
     public static void treeString(Node root, StringBuffer sb) {
@@ -487,75 +991,108 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
      * to the tree.  If this is not known for certain, then use size() instead.
      * @return the size of the tree
      */
-    private int sequentialSize(final Node node) {
-        if (node == null) return 0;
-        if (node.c0 == null) {
-            return (node.k2 != null ? 3 :
-                    node.k1 != null ? 2 :
-                            node.k0 != null ? 1 :
-                                    0);
-        } else {
-            return sequentialSize(node.c0) +
-                    sequentialSize(node.c1) +
-                    sequentialSize(node.c2) +
-                    sequentialSize(node.c3);
+    private int sequentialSize(final Node<E,V> node) {
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        int sz = 0;
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final Node<E,V> n = stack.pop();
+            final Node<E,V> c0 = n.c0;
+            if (c0 == null) {
+                sz += (n.k2 != null ? 3 :
+                        n.k1 != null ? 2 :
+                                n.k0 != null ? 1 :
+                                        0);
+            } else {
+                stack.push(c0);
+                if (n.c1 != null) stack.push(n.c1);
+                if (n.c2 != null) stack.push(n.c2);
+                if (n.c3 != null) stack.push(n.c3);
+            }
         }
+        return sz;
     }
 
     /**
-     * Makes a shallow copy of node <code>node</code>, storing information
-     * regarding its child references in map <code>refs</code>, before
-     * recursively operating on its children.
+     * Counts the keys below <code>node</code> as a snapshot, settling each
+     * node before reading its children, see Snapshots.
+     * @return the count, or -1 if a child CAS other than those of the walk
+     *         was announced meanwhile
      */
-    private void readRefs(final Node node, final HashMap<Node, Children> refs) {
-        if (node == null) return;
-        refs.put(node, new Children(node));
-        readRefs(node.c0, refs);
-        readRefs(node.c1, refs);
-        readRefs(node.c2, refs);
-        readRefs(node.c3, refs);
-
-    }
-
-    /**
-     * Checks that the structure of the subtree rooted at <code>node</code>
-     * matches the structure captured in the map <code>refs</code>.
-     * @return true if the structures match, and false otherwise
-     */
-    private boolean checkRefs(final Node node, final HashMap<Node, Children> refs) {
-        if (node == null) return true;
-        Children children = refs.get(node);
-        if (!children.equals(new Children(node))) return false;
-        return checkRefs(children.c0, refs) &&
-                checkRefs(children.c1, refs) &&
-                checkRefs(children.c2, refs) &&
-                checkRefs(children.c3, refs);
+    private int snapshotSize(final Node<E,V> node) {
+        final long version = snapshots.version();
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        int announced = 0;
+        int sz = 0;
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final Node<E,V> n = stack.pop();
+            announced += settle(n);
+            final Node<E,V> c0 = n.c0;
+            if (c0 == null) {
+                sz += (n.k2 != null ? 3 :
+                        n.k1 != null ? 2 :
+                                n.k0 != null ? 1 :
+                                        0);
+            } else {
+                stack.push(c0);
+                if (n.c1 != null) stack.push(n.c1);
+                if (n.c2 != null) stack.push(n.c2);
+                if (n.c3 != null) stack.push(n.c3);
+            }
+        }
+        return (snapshots.version() == version + announced) ? sz : -1;
     }
 
     /**
-     * Record the structure of the tree (child references) in map <code>refs</code>.
+     * Copies the subtree rooted at <code>node</code> as a snapshot, like
+     * snapshotSize(), reading each child reference once.
+     * @return the copy, or null if a child CAS other than those of the walk
+     *         was announced meanwhile
      */
-    private Node buildRefs(final Node node, final HashMap<Node, Children> refs) {
-        if (node == null) return null;
-        Children children = refs.get(node);
-        return new Node(node, buildRefs(children.c0, refs),
-                buildRefs(children.c1, refs),
-                buildRefs(children.c2, refs),
-                buildRefs(children.c3, refs));
+    private Node<E,V> copy(final Node<E,V> node) {
+        final long version = snapshots.version();
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        int announced = settle(node);
+        final Node<E,V> newroot = new Node<E,V>(node, node.c0, node.c1, node.c2, node.c3);
+        stack.push(newroot);
+        while (!stack.isEmpty()) {
+            // the children of n are still the original ones, replace them by copies
+            final Node<E,V> n = stack.pop();
+            if (n.c0 != null) { announced += settle(n.c0); n.c0 = new Node<E,V>(n.c0, n.c0.c0, n.c0.c1, n.c0.c2, n.c0.c3); stack.push(n.c0); }
+            if (n.c1 != null) { announced += settle(n.c1); n.c1 = new Node<E,V>(n.c1, n.c1.c0, n.c1.c1, n.c1.c2, n.c1.c3); stack.push(n.c1); }
+            if (n.c2 != null) { announced += settle(n.c2); n.c2 = new Node<E,V>(n.c2, n.c2.c0, n.c2.c1, n.c2.c2, n.c2.c3); stack.push(n.c2); }
+            if (n.c3 != null) { announced += settle(n.c3); n.c3 = new Node<E,V>(n.c3, n.c3.c0, n.c3.c1, n.c3.c2, n.c3.c3); stack.push(n.c3); }
+        }
+        return (snapshots.version() == version + announced) ? newroot : null;
     }
 
     /**
-     * Obtains a snapshot of the tree by reading and duplicating all tree
-     * structure, then re-checking all "live" tree structure to see that it
-     * matches the recorded structure (to ensure validity of the snapshot),
-     * then building the copy from the recorded information.
-     * @return a snapshot of the tree, or null if the tree was concurrently modified
+     * Completes the update flagging node, if any, so that the children of
+     * node do not change until it is flagged again. A failed deletion is
+     * backtracked without helping the update that stopped it, which is not
+     * flagging node.
+     * @return the number of child CASes announced
      */
-    private Node getSnapshot() {
-        final HashMap<Node, Children> refs = new HashMap<Node, Children>();
-        readRefs(root, refs);
-        if (!checkRefs(root, refs)) return null;
-        return buildRefs(root, refs);
+    private int settle(final Node<E,V> node) {
+        final Info<E,V> info = node.info;
+        if (isClean(info)) return 0;
+        if (info.getClass() == IInfo.class) {
+            helpInsert((IInfo<E,V>) info);
+            return 1;
+        }
+        if (info.getClass() == DInfo.class) {
+            final DInfo<E,V> dinfo = (DInfo<E,V>) info;
+            infoUpdater.compareAndSet(dinfo.p, dinfo.pinfo, new Mark<E,V>(dinfo));
+            final Info<E,V> currentPInfo = dinfo.p.info;
+            if (currentPInfo.getClass() == Mark.class && ((Mark<E,V>) currentPInfo).dinfo == dinfo) {
+                helpMarked(dinfo);
+                return 1;
+            }
+            dinfo.done = true;
+        }
+        // the children of a marked node never change
+        return 0;
     }
 
 
@@ -572,6 +1109,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
         public final V v0, v1, v2;                   // values
         public volatile Node<E,V> c0, c1, c2, c3;        // children
         public volatile Info<E,V> info = null;
+        volatile int count;                             // keys in the subtree of an internal node, if augmented
 
         /**
          * DEBUG CODE
@@ -593,7 +1131,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             this.c1 = c1;
             this.c2 = c2;
             this.c3 = c3;
-
+            this.count = node.count;
         }
 
         /**
@@ -618,6 +1156,37 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             this.v1 = this.v2 = null;
         }
 
+        /**
+         * Constructor for leaves built by a batch, with kcount sorted keys.
+         */
+        Node(final E k0, final V v0, final E k1, final V v1, final E k2, final V v2,
+             final int kcount) {
+            this.kcount = kcount;
+            this.k0 = k0;
+            this.v0 = v0;
+            this.k1 = k1;
+            this.v1 = v1;
+            this.k2 = k2;
+            this.v2 = v2;
+        }
+
+        /**
+         * Constructor for internal nodes built by a batch.
+         */
+        Node(final E k0, final E k1, final E k2,
+             final Node<E,V> c0, final Node<E,V> c1, final Node<E,V> c2, final Node<E,V> c3) {
+            this.kcount = 3;
+            this.k0 = k0;
+            this.k1 = k1;
+            this.k2 = k2;
+            this.v0 = this.v1 = this.v2 = null;
+            this.c0 = c0;
+            this.c1 = c1;
+            this.c2 = c2;
+            this.c3 = c3;
+            this.count = weight(c0) + weight(c1) + weight(c2) + weight(c3);
+        }
+
         /**
          * Constructor for the root of the tree.
          *
@@ -681,6 +1250,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
             this.v0 = this.v1 = this.v2 = null;
             this.kcount = 3;
+            this.count = 4;
         }
 
         /**
@@ -812,11 +1382,14 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
 
     }
 
-    static interface Info<E extends Comparable<? super E>, V> {}
+    static interface Info<E extends Comparable<? super E>, V> {
+        boolean isDone();
+    }
 
     static final class IInfo<E extends Comparable<? super E>, V> implements Info<E,V> {
         final Node<E,V> p, oldchild, newchild;
         final int pindex;
+        volatile boolean done = false;
 
         IInfo(final Node<E,V> oldchild, final Node<E,V> p, final Node<E,V> newchild,
               final int pindex) {
@@ -826,6 +1399,11 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             this.pindex = pindex;
         }
 
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
         @Override
         public boolean equals(Object o) {
             IInfo x = (IInfo) o;
@@ -841,6 +1419,7 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
         final Node<E,V> p, l, gp;
         final Info<E,V> pinfo;
         final int gpindex;
+        volatile boolean done = false;
 
         DInfo(final Node<E,V> l, final Node<E,V> p, final Node<E,V> gp,
               final Info<E,V> pinfo, final int gpindex) {
@@ -851,6 +1430,11 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
             this.gpindex = gpindex;
         }
 
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
         @Override
         public boolean equals(Object o) {
             DInfo x = (DInfo) o;
@@ -871,37 +1455,15 @@ public class LockFree4ST<E extends Comparable<? super E>, V> {
         }
 
         @Override
-        public boolean equals(Object o) {
-            Mark x = (Mark) o;
-            if (x.dinfo != dinfo) return false;
-            return true;
-        }
-    }
-
-    static final class Clean<E extends Comparable<? super E>, V> implements Info<E,V> {
-        @Override
-        public boolean equals(Object o) {
-            return (this == o);
+        public boolean isDone() {
+            return false;
         }
-    }
-
-    private class Children {
-        Node c0, c1, c2, c3;
-        public Children(Node node) {
-            this.c0 = node.c0;
-            this.c1 = node.c1;
-            this.c2 = node.c2;
-            this.c3 = node.c3;
 
-        }
         @Override
         public boolean equals(Object o) {
-            if (o == null || !o.getClass().equals(getClass())) return false; // CAN DO AWAY WITH THIS AT THE COST OF TYPE SAFETY!!
-            Children children = (Children) o;
-            return this.c0 == children.c0 &&
-                    this.c1 == children.c1 &&
-                    this.c2 == children.c2 &&
-                    this.c3 == children.c3;
+            Mark x = (Mark) o;
+            if (x.dinfo != dinfo) return false;
+            return true;
         }
     }
 
@@ -0,0 +1,683 @@
+package com.jokeren.concurrent.structures.kary;
+
+/**
+ *  A non-blocking k-ary search tree with k=4 and primitive long keys.
+ *
+ *  This is LockFree4ST with the keys stored inline as longs and compared with
+ *  the primitive operators, so that lookups and updates do not box keys nor
+ *  call compareTo. Since there is no null key to stand for infinity, only
+ *  the first kcount keys of a node are valid, and the internal nodes at the
+ *  top of the tree have no keys at all.
+ *
+ *  Derived from the implementation by Trevor Brown and Joanna Helga,
+ *  distributed under the GNU General Public License, see LockFree4ST.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class LockFree4STLong<V> {
+
+    /**
+     *
+     * GLOBALS
+     *
+     */
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> c0Updater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "c0");
+    private static final AtomicReferenceFieldUpdater<Node, Node> c1Updater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "c1");
+    private static final AtomicReferenceFieldUpdater<Node, Node> c2Updater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "c2");
+    private static final AtomicReferenceFieldUpdater<Node, Node> c3Updater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "c3");
+
+    private static final AtomicReferenceFieldUpdater<Node, Info> infoUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Info.class, "info");
+    private final Node<V> root;
+
+    /**
+     * Snapshots for size()
+     */
+    private final Snapshots snapshots = new Snapshots();
+
+
+
+    /**
+     *
+     * CONSTRUCTORS
+     *
+     */
+
+    public LockFree4STLong() {
+        this.root = new Node<V>(true);
+    }
+
+
+
+    /**
+     *
+     * PUBLIC FUNCTIONS
+     *
+     */
+
+    /**
+     * Determines whether a key is present in the tree.
+     * @return true if the key is present in the tree, and false otherwise
+     */
+    public final boolean containsKey(final long key) {
+        Node<V> l = root.c0;
+        while (l.c0 != null) l = child(key, l);  /* while l is internal */
+        return l.indexOf(key) >= 0;
+    }
+
+    /**
+     * Retrieves the value associated with key from the tree.
+     * @return the value mapped to the key, or null in the event that
+     *         (1) the key is not present in the tree, or
+     *         (2) the value null is stored with the key
+     */
+    public final V get(final long key) {
+        Node<V> l = root.c0;
+        while (l.c0 != null) l = child(key, l);  /* while l is internal */
+        return l.getValue(l.indexOf(key));
+    }
+
+    /**
+     * Adds a key-value pair to the tree if the key does not already exist.
+     * @return the previous value mapped to the key, or null in the event that
+     *         (1) the key was not previously in the tree and the new
+     *             value was successfully assigned, or
+     *         (2) the key existed in the tree,
+     *             and the value stored with it was null.
+     */
+    public final V putIfAbsent(final long key, final V value) {
+        return insert(key, value, true);
+    }
+
+    /**
+     * Adds a key-value pair to the tree, overwriting any pre-existing mapping.
+     * @return the value that was previously mapped to the key, or null if the
+     *         key was not in the tree (or if the value stored with it was null)
+     */
+    public final V put(final long key, final V value) {
+        return insert(key, value, false);
+    }
+
+    /**
+     * Remove a key from the tree.
+     * @return the value that was removed from the tree, or null if the key was
+     *         not in the tree (or if the value stored with it was null)
+     */
+    public final V remove(final long key) {
+        Node<V> gp, p, l, newchild;
+        Info<V> gpinfo, pinfo;
+        int pindex;  // index of the child of p that points to l
+        int gpindex; // index of the child of gp that points to p
+
+        while (true) {
+            // search
+            gp = null;
+            p = root;
+            l = p.c0;
+            while (l.c0 != null) {
+                gp = p;
+                p = l;
+                l = child(key, l);
+            }
+
+            // read gpinfo, then re-read and verify the child pointer from gp to p
+            gpinfo = gp.info;
+            gpindex = childIndex(key, gp);
+            if (p != gp.child(gpindex)) continue;
+
+            // then do the same for pinfo and the child pointer from p to l
+            pinfo = p.info;
+            pindex = childIndex(key, p);
+            if (l != p.child(pindex)) continue;
+
+            final int index = l.indexOf(key);
+            // if the key is not in the tree, return null
+            if (index < 0)
+                return null;
+            else if (gpinfo != null && gpinfo.getClass() != Clean.class)
+                help(gpinfo);
+            else if (pinfo != null && pinfo.getClass() != Clean.class)
+                help(pinfo);
+            else {
+                // count number of non-empty children of p
+                final int ccount = (p.c0.kcount > 0 ? 1 : 0) +
+                        (p.c1.kcount > 0 ? 1 : 0) +
+                        (p.c2.kcount > 0 ? 1 : 0) +
+                        (p.c3.kcount > 0 ? 1 : 0);
+
+                // PRUNING DELETION
+                if (ccount == 2 && l.kcount == 1) {
+                    final DInfo<V> newGPInfo = new DInfo<V>(l, p, gp, pinfo, gpindex);
+                    snapshots.beforeUpdate();
+                    if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) { // [[ dflag CAS ]]
+                        if (helpDelete(newGPInfo)) return l.getValue(index);
+                    } else {
+                        help(gp.info);
+                    }
+
+                    // SIMPLE DELETION
+                } else {
+                    // create leaf with sorted keys
+                    newchild = new Node<V>(l, index);
+
+                    // flag and perform the key deletion (like insertion)
+                    final IInfo<V> newPInfo = new IInfo<V>(l, p, newchild, pindex);
+                    snapshots.beforeUpdate();
+                    if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	// [[ kdflag CAS ]]
+                        helpInsert(newPInfo);
+                        return l.getValue(index);
+                    } else {
+                        help(p.info);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines the size of the tree, like LockFree4ST.size()
+     * @return the size of the tree
+     */
+    public final int size() {
+        return snapshots.take(new Snapshots.Walk<Integer>() {
+            @Override
+            Integer walk() {
+                final int sz = snapshotSize();
+                return (sz < 0) ? null : sz;
+            }
+        });
+    }
+
+    /**
+     * Counts the keys as a snapshot, settling each node before reading its
+     * children, see Snapshots.
+     * @return the count, or -1 if a child CAS other than those of the walk
+     *         was announced meanwhile
+     */
+    private int snapshotSize() {
+        final long version = snapshots.version();
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        int announced = 0;
+        int sz = 0;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<V> n = stack.pop();
+            announced += settle(n);
+            final Node<V> c0 = n.c0;
+            if (c0 == null) {
+                sz += n.kcount;
+            } else {
+                stack.push(c0);
+                if (n.c1 != null) stack.push(n.c1);
+                if (n.c2 != null) stack.push(n.c2);
+                if (n.c3 != null) stack.push(n.c3);
+            }
+        }
+        return (snapshots.version() == version + announced) ? sz : -1;
+    }
+
+    /**
+     * This assumes that there are no concurrent accesses occurring.
+     * If concurrent accesses can occur, use size().
+     */
+    public final int sequentialSize() {
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        int sz = 0;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<V> n = stack.pop();
+            final Node<V> c0 = n.c0;
+            if (c0 == null) {
+                sz += n.kcount;
+            } else {
+                stack.push(c0);
+                if (n.c1 != null) stack.push(n.c1);
+                if (n.c2 != null) stack.push(n.c2);
+                if (n.c3 != null) stack.push(n.c3);
+            }
+        }
+        return sz;
+    }
+
+    /**
+     * Returns a view of this tree as a KaryTree, whose operations unbox the
+     * key and delegate to the primitive ones. The primitive operations are
+     * not overloaded with boxed ones, as calls passing a long key together
+     * with a value to box would be ambiguous.
+     */
+    public final KaryTree<Long, V> boxed() {
+        return new KaryTree<Long, V>() {
+            @Override
+            public boolean containsKey(final Long key) {
+                return LockFree4STLong.this.containsKey(key.longValue());
+            }
+
+            @Override
+            public V get(final Long key) {
+                return LockFree4STLong.this.get(key.longValue());
+            }
+
+            @Override
+            public V putIfAbsent(final Long key, final V value) {
+                return LockFree4STLong.this.putIfAbsent(key.longValue(), value);
+            }
+
+            @Override
+            public V put(final Long key, final V value) {
+                return LockFree4STLong.this.put(key.longValue(), value);
+            }
+
+            @Override
+            public V remove(final Long key) {
+                return LockFree4STLong.this.remove(key.longValue());
+            }
+
+            @Override
+            public int size() {
+                return LockFree4STLong.this.size();
+            }
+        };
+    }
+
+
+
+    /**
+     *
+     * PRIVATE FUNCTIONS
+     *
+     */
+
+    private static <V> int childIndex(final long key, final Node<V> l) {
+        // the internal nodes at the top of the tree have no keys,
+        // every key belongs to their first child
+        if (l.kcount == 0 || key < l.k0) return 0;
+        if (key < l.k1) return 1;
+        if (key < l.k2) return 2;
+        return 3;
+    }
+
+    private static <V> Node<V> child(final long key, final Node<V> l) {
+        if (l.kcount == 0 || key < l.k0) return l.c0;
+        if (key < l.k1) return l.c1;
+        if (key < l.k2) return l.c2;
+        return l.c3;
+    }
+
+    private V insert(final long key, final V value, final boolean onlyIfAbsent) {
+        Node<V> p, l, newchild;
+        Info<V> pinfo;
+        int pindex; // index of the child of p that points to l
+
+        while (true) {
+            // search
+            p = root;
+            l = p.c0;
+            while (l.c0 != null) {
+                p = l;
+                l = child(key, l);
+            }
+
+            // read pinfo, then re-read and verify the child pointer from p to l
+            pinfo = p.info;
+            pindex = childIndex(key, p);
+            if (l != p.child(pindex)) continue;
+
+            final int index = l.indexOf(key);
+            if (index >= 0 && onlyIfAbsent) return l.getValue(index);
+            else if (pinfo != null && pinfo.getClass() != Clean.class) help(pinfo);
+            else {
+                if (index >= 0) {
+                    // REPLACE INSERTION
+                    newchild = new Node<V>(value, l, index);
+                } else if (l.kcount == 3) {
+                    // SPROUTING INSERTION
+                    // l is full of keys, create internal node with 4 children sorted by key
+                    newchild = new Node<V>(key, value, l);
+                } else {
+                    // SIMPLE INSERTION
+                    newchild = new Node<V>(key, value, l, false);
+                }
+
+                // flag and perform the insertion
+                final IInfo<V> newPInfo = new IInfo<V>(l, p, newchild, pindex);
+                snapshots.beforeUpdate();
+                if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
+                    helpInsert(newPInfo);
+                    return l.getValue(index);
+                } else {
+                    // help current operation first
+                    help(p.info);
+                }
+            }
+        }
+    }
+
+    private void help(final Info<V> info) {
+        if (info.getClass() == IInfo.class)      helpInsert((IInfo<V>) info);
+        else if (info.getClass() == DInfo.class) helpDelete((DInfo<V>) info);
+        else if (info.getClass() == Mark.class)  helpMarked(((Mark<V>) info).dinfo);
+    }
+
+    private void helpInsert(final IInfo<V> info) {
+        // CAS the correct child pointer of p from oldchild to newchild
+        snapshots.announce();
+        switch (info.pindex) {                                                  // [[ ichild CAS ]]
+            case 0: c0Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
+            case 1: c1Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
+            case 2: c2Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
+            case 3: c3Updater.compareAndSet(info.p, info.oldchild, info.newchild); break;
+
+            default: assert(false); break;
+        }
+        infoUpdater.compareAndSet(info.p, info, new Clean<V>());                // [[ iunflag CAS ]]
+    }
+
+    private boolean helpDelete(final DInfo<V> info) {
+        final boolean markSuccess = infoUpdater.compareAndSet(
+                info.p, info.pinfo, new Mark<V>(info));                       // [[ mark CAS ]]
+        final Info<V> currentPInfo = info.p.info;
+        if (markSuccess || (currentPInfo.getClass() == Mark.class
+                && ((Mark<V>) currentPInfo).dinfo == info)) {
+            helpMarked(info);
+            return true;
+        } else {
+            help(currentPInfo);
+            infoUpdater.compareAndSet(info.gp, info, new Clean<V>());         // [[ backtrack CAS ]]
+            return false;
+        }
+    }
+
+    private void helpMarked(final DInfo<V> info) {
+        // observe that there are two non-empty children of info.p
+        // so the following test correctly finds the "other" (remaining) node
+        final Node<V> other = (info.p.c0.kcount > 0 && info.p.c0 != info.l) ? info.p.c0 :
+                (info.p.c1.kcount > 0 && info.p.c1 != info.l) ? info.p.c1 :
+                        (info.p.c2.kcount > 0 && info.p.c2 != info.l) ? info.p.c2 :
+                                info.p.c3;
+
+        // CAS the correct child pointer of info.gp from info.p to other
+        snapshots.announce();
+        switch (info.gpindex) {                                                 // [[ dchild CAS ]]
+            case 0: c0Updater.compareAndSet(info.gp, info.p, other); break;
+            case 1: c1Updater.compareAndSet(info.gp, info.p, other); break;
+            case 2: c2Updater.compareAndSet(info.gp, info.p, other); break;
+            case 3: c3Updater.compareAndSet(info.gp, info.p, other); break;
+
+            default: assert(false); break;
+        }
+        infoUpdater.compareAndSet(info.gp, info, new Clean<V>());             // [[ dunflag CAS ]]
+    }
+
+    /**
+     * Completes the update flagging node, if any, so that the children of
+     * node do not change until it is flagged again, like LockFree4ST.
+     * @return the number of child CASes announced
+     */
+    private int settle(final Node<V> node) {
+        final Info<V> info = node.info;
+        if (info == null) return 0;
+        if (info.getClass() == IInfo.class) {
+            helpInsert((IInfo<V>) info);
+            return 1;
+        }
+        if (info.getClass() == DInfo.class) {
+            final DInfo<V> dinfo = (DInfo<V>) info;
+            infoUpdater.compareAndSet(dinfo.p, dinfo.pinfo, new Mark<V>(dinfo));
+            final Info<V> currentPInfo = dinfo.p.info;
+            if (currentPInfo.getClass() == Mark.class && ((Mark<V>) currentPInfo).dinfo == dinfo) {
+                helpMarked(dinfo);
+                return 1;
+            }
+            infoUpdater.compareAndSet(dinfo.gp, dinfo, new Clean<V>());
+        }
+        // clean, or marked: the children of a marked node never change
+        return 0;
+    }
+
+
+
+    /**
+     *
+     * PRIVATE CLASSES
+     *
+     */
+
+    public static final class Node<V> {
+        public final int kcount;                   // key count, only k0..k(kcount-1) are valid
+        public final long k0, k1, k2;              // keys
+        public final V v0, v1, v2;                 // values
+        public volatile Node<V> c0, c1, c2, c3;    // children
+        public volatile Info<V> info = null;
+
+        /**
+         * Constructor for leaf with zero keys.
+         */
+        Node() {
+            this.kcount = 0;
+            this.k0 = this.k1 = this.k2 = 0;
+            this.v0 = this.v1 = this.v2 = null;
+        }
+
+        /**
+         * Constructor for newly created leaves with one key.
+         */
+        Node(final long key, final V value) {
+            this.kcount = 1;
+            this.k0 = key;
+            this.v0 = value;
+            this.k1 = this.k2 = 0;
+            this.v1 = this.v2 = null;
+        }
+
+        /**
+         * Constructor for the root of the tree, like LockFree4ST, except that
+         * the root and root.c0 have no keys rather than three infinite keys.
+         *
+         * @param root if true, the root is created otherwise, if false,
+         *             the root's child root.c0 is created.
+         */
+        Node(final boolean root) {
+            this.kcount = 0;
+            this.k0 = this.k1 = this.k2 = 0;
+            this.v0 = this.v1 = this.v2 = null;
+            if (root) {
+                this.c0 = new Node<V>(false); // only c0 since other children unused
+            } else {
+                this.c0 = new Node<V>();  // empty leaf
+                // more empty leaves -- prevent deletion of this
+                this.c1 = new Node<V>(); this.c2 = new Node<V>(); this.c3 = new Node<V>();
+            }
+        }
+
+        /**
+         * Constructor for case that <code>(knew,vnew)</code> is being inserted,
+         * the leaf's key set is full (<code>l.kcount == 3</code>), and knew is
+         * not in l. This constructor creates a new internal node with 3 keys and
+         * 4 children sorted by key.
+         */
+        Node(final long knew, final V vnew, final Node<V> l) {
+            if (knew < l.k0) {
+                this.c0 = new Node<V>(knew, vnew);
+                this.c1 = new Node<V>(l.k0, l.v0);
+                this.c2 = new Node<V>(l.k1, l.v1);
+                this.c3 = new Node<V>(l.k2, l.v2);
+            } else if (knew < l.k1) {
+                this.c0 = new Node<V>(l.k0, l.v0);
+                this.c1 = new Node<V>(knew, vnew);
+                this.c2 = new Node<V>(l.k1, l.v1);
+                this.c3 = new Node<V>(l.k2, l.v2);
+            } else if (knew < l.k2) {
+                this.c0 = new Node<V>(l.k0, l.v0);
+                this.c1 = new Node<V>(l.k1, l.v1);
+                this.c2 = new Node<V>(knew, vnew);
+                this.c3 = new Node<V>(l.k2, l.v2);
+            } else {
+                this.c0 = new Node<V>(l.k0, l.v0);
+                this.c1 = new Node<V>(l.k1, l.v1);
+                this.c2 = new Node<V>(l.k2, l.v2);
+                this.c3 = new Node<V>(knew, vnew);
+            }
+
+            this.k0 = this.c1.k0;
+            this.k1 = this.c2.k0;
+            this.k2 = this.c3.k0;
+
+            this.v0 = this.v1 = this.v2 = null;
+            this.kcount = 3;
+        }
+
+        /**
+         * Constructor for case that <code>knew</code> is being inserted, and
+         * the leaf's key set is not full.
+         * This constructor creates a new leaf with keycount(old leaf)+1 keys.
+         *
+         * @param knew the key being inserted
+         * @param l the leaf into which the key is being inserted
+         * @param haskey false, knew is not a key of l
+         */
+        Node(final long knew, final V vnew, final Node<V> l, final boolean haskey) {
+            assert(!haskey);
+            if (l.kcount == 0 || knew < l.k0) {
+                this.k0 = knew;
+                this.v0 = vnew;
+                this.k1 = l.k0;
+                this.v1 = l.v0;
+                this.k2 = l.k1;
+                this.v2 = l.v1;
+            } else if (l.kcount == 1 || knew < l.k1) {
+                this.k0 = l.k0;
+                this.v0 = l.v0;
+                this.k1 = knew;
+                this.v1 = vnew;
+                this.k2 = l.k1;
+                this.v2 = l.v1;
+            } else {
+                this.k0 = l.k0;
+                this.v0 = l.v0;
+                this.k1 = l.k1;
+                this.v1 = l.v1;
+                this.k2 = knew;
+                this.v2 = vnew;
+            }
+            this.kcount = l.kcount + 1;
+        }
+
+        /**
+         * Constructor for the case that the value of the key at
+         * <code>index</code> is being replaced.
+         */
+        Node(final V vnew, final Node<V> l, final int index) {
+            this.kcount = l.kcount;
+            this.k0 = l.k0;
+            this.k1 = l.k1;
+            this.k2 = l.k2;
+            this.v0 = index == 0 ? vnew : l.v0;
+            this.v1 = index == 1 ? vnew : l.v1;
+            this.v2 = index == 2 ? vnew : l.v2;
+        }
+
+        /**
+         * Constructor for the case that the key at <code>index</code> is being
+         * deleted from the key set of a leaf.  This constructor creates a new
+         * leaf with keycount(old leaf)-1 sorted keys.
+         */
+        Node(final Node<V> l, final int index) {
+            this.kcount = l.kcount - 1;
+            this.k2 = 0;
+            this.v2 = null;
+            if (index == 0) {
+                this.k0 = l.k1;
+                this.v0 = l.v1;
+                this.k1 = l.k2;
+                this.v1 = l.v2;
+            } else if (index == 1) {
+                this.k0 = l.k0;
+                this.v0 = l.v0;
+                this.k1 = l.k2;
+                this.v1 = l.v2;
+            } else {
+                this.k0 = l.k0;
+                this.v0 = l.v0;
+                this.k1 = l.k1;
+                this.v1 = l.v1;
+            }
+        }
+
+        Node<V> child(final int index) {
+            switch (index) {
+                case 0: return c0;
+                case 1: return c1;
+                case 2: return c2;
+                default: return c3;
+            }
+        }
+
+        /**
+         * @return the index of key in this leaf, or -1 if it is not a key
+         */
+        int indexOf(final long key) {
+            final int kcount = this.kcount;
+            if (kcount > 0 && key == k0) return 0;
+            if (kcount > 1 && key == k1) return 1;
+            if (kcount > 2 && key == k2) return 2;
+            return -1;
+        }
+
+        /**
+         * @return the value at index, or null if index is -1
+         */
+        V getValue(final int index) {
+            return index == 0 ? v0 :
+                    index == 1 ? v1 :
+                            index == 2 ? v2 : null;
+        }
+    }
+
+    static interface Info<V> {}
+
+    static final class IInfo<V> implements Info<V> {
+        final Node<V> p, oldchild, newchild;
+        final int pindex;
+
+        IInfo(final Node<V> oldchild, final Node<V> p, final Node<V> newchild,
+              final int pindex) {
+            this.p = p;
+            this.oldchild = oldchild;
+            this.newchild = newchild;
+            this.pindex = pindex;
+        }
+    }
+
+    static final class DInfo<V> implements Info<V> {
+        final Node<V> p, l, gp;
+        final Info<V> pinfo;
+        final int gpindex;
+
+        DInfo(final Node<V> l, final Node<V> p, final Node<V> gp,
+              final Info<V> pinfo, final int gpindex) {
+            this.p = p;
+            this.l = l;
+            this.gp = gp;
+            this.pinfo = pinfo;
+            this.gpindex = gpindex;
+        }
+    }
+
+    static final class Mark<V> implements Info<V> {
+        final DInfo<V> dinfo;
+
+        Mark(final DInfo<V> dinfo) {
+            this.dinfo = dinfo;
+        }
+    }
+
+    static final class Clean<V> implements Info<V> {
+    }
+}
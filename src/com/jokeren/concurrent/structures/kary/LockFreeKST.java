@@ -0,0 +1,593 @@
+package com.jokeren.concurrent.structures.kary;
+
+/**
+ *  A non-blocking k-ary search tree whose fan-out k is chosen at construction.
+ *
+ *  This follows the same algorithm as LockFree4ST (Brown and Helga), but the
+ *  keys of a node are kept in a sorted array searched by bisection, and the
+ *  children in an AtomicReferenceArray, instead of the k0..k2 and c0..c3
+ *  fields. A larger k makes the tree shallower.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class LockFreeKST<E extends Comparable<? super E>, V> implements KaryTree<E, V> {
+
+    /**
+     *
+     * GLOBALS
+     *
+     */
+
+    private static final AtomicReferenceFieldUpdater<Node, Info> infoUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Info.class, "info");
+    private static final Object[] EMPTY = new Object[0];
+    private final int k;
+    private final Node<E,V> root;
+
+    /**
+     * Snapshots for size()
+     */
+    private final Snapshots snapshots = new Snapshots();
+
+
+
+    /**
+     *
+     * CONSTRUCTORS
+     *
+     */
+
+    /**
+     * @param k the fan-out of the internal nodes, leaves hold up to k - 1 keys
+     * @throws IllegalArgumentException in the event that k is less than 2
+     */
+    public LockFreeKST(final int k) {
+        if (k < 2) throw new IllegalArgumentException("k must be at least 2: " + k);
+        this.k = k;
+        // The root has a single child, an internal node without keys whose
+        // single child is an empty leaf, so that neither can be removed.
+        final AtomicReferenceArray<Node<E,V>> sentinel = new AtomicReferenceArray<Node<E,V>>(1);
+        sentinel.set(0, new Node<E,V>(EMPTY, EMPTY));
+        final AtomicReferenceArray<Node<E,V>> children = new AtomicReferenceArray<Node<E,V>>(1);
+        children.set(0, new Node<E,V>(EMPTY, sentinel));
+        this.root = new Node<E,V>(EMPTY, children);
+    }
+
+
+
+    /**
+     *
+     * PUBLIC FUNCTIONS
+     *
+     */
+
+    /**
+     * @return the fan-out of the tree
+     */
+    public final int fanout() {
+        return k;
+    }
+
+    /**
+     * Determines whether a key is present in the tree.
+     * @return true if the key is present in the tree, and false otherwise
+     * @throws NullPointerException in the event that key is null
+     */
+    @Override
+    public final boolean containsKey(final E key) {
+        if (key == null) throw new NullPointerException();
+        Node<E,V> l = root.children.get(0);
+        while (l.children != null) l = l.child(key);  /* while l is internal */
+        return l.indexOf(key) >= 0;
+    }
+
+    /**
+     * Retrieves the value associated with key from the tree.
+     * @return the value mapped to the key, or null in the event that
+     *         (1) the key is not present in the tree, or
+     *         (2) the value null is stored with the key
+     * @throws NullPointerException in the event that key is null
+     */
+    @Override
+    public final V get(final E key) {
+        if (key == null) throw new NullPointerException();
+        Node<E,V> l = root.children.get(0);
+        while (l.children != null) l = l.child(key);  /* while l is internal */
+        final int index = l.indexOf(key);
+        return index >= 0 ? l.value(index) : null;
+    }
+
+    /**
+     * Adds a key-value pair to the tree if the key does not already exist.
+     * @return the previous value mapped to the key, or null in the event that
+     *         (1) the key was not previously in the tree and the new
+     *             value was successfully assigned, or
+     *         (2) the key existed in the tree,
+     *             and the value stored with it was null.
+     * @throws NullPointerException in the event that key is null
+     */
+    @Override
+    public final V putIfAbsent(final E key, final V value) {
+        return insert(key, value, true);
+    }
+
+    /**
+     * Adds a key-value pair to the tree, overwriting any pre-existing mapping.
+     * @return the value that was previously mapped to the key, or null if the
+     *         key was not in the tree (or if the value stored with it was null)
+     * @throws NullPointerException in the event that key is null
+     */
+    @Override
+    public final V put(final E key, final V value) {
+        return insert(key, value, false);
+    }
+
+    /**
+     * Remove a key from the tree.
+     * @return the value that was removed from the tree, or null if the key was
+     *         not in the tree (or if the value stored with it was null)
+     * @throws NullPointerException in the event that key is null
+     */
+    @Override
+    public final V remove(final E key) {
+        if (key == null) throw new NullPointerException();
+        Node<E,V> gp, p, l, newchild;
+        Info<E,V> gpinfo, pinfo;
+        int pindex;  // index of the child of p that points to l
+        int gpindex; // index of the child of gp that points to p
+
+        while (true) {
+            // search
+            gp = null;
+            p = root;
+            l = p.children.get(0);
+            while (l.children != null) {
+                gp = p;
+                p = l;
+                l = l.child(key);
+            }
+
+            // read gpinfo, then re-read and verify the child pointer from gp to p
+            gpinfo = gp.info;
+            gpindex = gp.childIndex(key);
+            if (p != gp.children.get(gpindex)) continue;
+
+            // then do the same for pinfo and the child pointer from p to l
+            pinfo = p.info;
+            pindex = p.childIndex(key);
+            if (l != p.children.get(pindex)) continue;
+
+            final int index = l.indexOf(key);
+            // if the key is not in the tree, return null
+            if (index < 0)
+                return null;
+            else if (gpinfo != null && gpinfo.getClass() != Clean.class)
+                help(gpinfo);
+            else if (pinfo != null && pinfo.getClass() != Clean.class)
+                help(pinfo);
+            else {
+                // PRUNING DELETION
+                if (l.kcount == 1 && p.nonEmptyChildren() == 2) {
+                    final DInfo<E,V> newGPInfo = new DInfo<E,V>(l, p, gp, pinfo, gpindex);
+                    snapshots.beforeUpdate();
+                    if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) { // [[ dflag CAS ]]
+                        if (helpDelete(newGPInfo)) return l.value(index);
+                    } else {
+                        help(gp.info);
+                    }
+
+                    // SIMPLE DELETION
+                } else {
+                    newchild = l.removed(index);
+
+                    // flag and perform the key deletion (like insertion)
+                    final IInfo<E,V> newPInfo = new IInfo<E,V>(l, p, newchild, pindex);
+                    snapshots.beforeUpdate();
+                    if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	// [[ kdflag CAS ]]
+                        helpInsert(newPInfo);
+                        return l.value(index);
+                    } else {
+                        help(p.info);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines the size of the tree, like LockFree4ST.size()
+     * @return the size of the tree
+     */
+    @Override
+    public final int size() {
+        return snapshots.take(new Snapshots.Walk<Integer>() {
+            @Override
+            Integer walk() {
+                final int sz = snapshotSize();
+                return (sz < 0) ? null : sz;
+            }
+        });
+    }
+
+    /**
+     * Counts the keys as a snapshot, settling each node before reading its
+     * children, see Snapshots.
+     * @return the count, or -1 if a child CAS other than those of the walk
+     *         was announced meanwhile
+     */
+    private int snapshotSize() {
+        final long version = snapshots.version();
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        int announced = 0;
+        int sz = 0;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<E,V> n = stack.pop();
+            if (n.children == null) {
+                sz += n.kcount;
+            } else {
+                announced += settle(n);
+                for (int i = 0; i < n.children.length(); ++i) stack.push(n.children.get(i));
+            }
+        }
+        return (snapshots.version() == version + announced) ? sz : -1;
+    }
+
+    /**
+     * This assumes that there are no concurrent accesses occurring.
+     * If concurrent accesses can occur, use size().
+     */
+    public final int sequentialSize() {
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        int sz = 0;
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<E,V> n = stack.pop();
+            if (n.children == null) {
+                sz += n.kcount;
+            } else {
+                for (int i = 0; i < n.children.length(); ++i) stack.push(n.children.get(i));
+            }
+        }
+        return sz;
+    }
+
+    /**
+     * @return the number of internal nodes crossed to reach the deepest leaf
+     */
+    public final int height() {
+        final ArrayDeque<Node<E,V>> stack = new ArrayDeque<Node<E,V>>();
+        final ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+        int height = 0;
+        stack.push(root);
+        depths.push(0);
+        while (!stack.isEmpty()) {
+            final Node<E,V> n = stack.pop();
+            final int depth = depths.pop();
+            if (n.children == null) {
+                height = Math.max(height, depth);
+            } else {
+                for (int i = 0; i < n.children.length(); ++i) {
+                    stack.push(n.children.get(i));
+                    depths.push(depth + 1);
+                }
+            }
+        }
+        return height;
+    }
+
+
+
+    /**
+     *
+     * PRIVATE FUNCTIONS
+     *
+     */
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Comparable<? super E>> int compare(final E key, final Object other) {
+        return key.compareTo((E) other);
+    }
+
+    private V insert(final E key, final V value, final boolean onlyIfAbsent) {
+        if (key == null) throw new NullPointerException();
+        Node<E,V> p, l, newchild;
+        Info<E,V> pinfo;
+        int pindex; // index of the child of p that points to l
+
+        while (true) {
+            // search
+            p = root;
+            l = p.children.get(0);
+            while (l.children != null) {
+                p = l;
+                l = l.child(key);
+            }
+
+            // read pinfo, then re-read and verify the child pointer from p to l
+            pinfo = p.info;
+            pindex = p.childIndex(key);
+            if (l != p.children.get(pindex)) continue;
+
+            final int index = l.indexOf(key);
+            if (index >= 0 && onlyIfAbsent) return l.value(index);
+            else if (pinfo != null && pinfo.getClass() != Clean.class) help(pinfo);
+            else {
+                if (index >= 0) {
+                    // REPLACE INSERTION
+                    newchild = l.replaced(index, value);
+                } else if (l.kcount == k - 1) {
+                    // SPROUTING INSERTION
+                    // l is full of keys, create internal node with k children sorted by key
+                    newchild = l.sprouted(-index - 1, key, value);
+                } else {
+                    // SIMPLE INSERTION
+                    newchild = l.inserted(-index - 1, key, value);
+                }
+
+                // flag and perform the insertion
+                final IInfo<E,V> newPInfo = new IInfo<E,V>(l, p, newchild, pindex);
+                snapshots.beforeUpdate();
+                if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
+                    helpInsert(newPInfo);
+                    return index >= 0 ? l.value(index) : null;
+                } else {
+                    // help current operation first
+                    help(p.info);
+                }
+            }
+        }
+    }
+
+    private void help(final Info<E,V> info) {
+        if (info.getClass() == IInfo.class)      helpInsert((IInfo<E,V>) info);
+        else if (info.getClass() == DInfo.class) helpDelete((DInfo<E,V>) info);
+        else if (info.getClass() == Mark.class)  helpMarked(((Mark<E,V>) info).dinfo);
+    }
+
+    private void helpInsert(final IInfo<E,V> info) {
+        // CAS the correct child pointer of p from oldchild to newchild
+        snapshots.announce();
+        info.p.children.compareAndSet(info.pindex, info.oldchild, info.newchild);  // [[ ichild CAS ]]
+        infoUpdater.compareAndSet(info.p, info, new Clean<E,V>());              // [[ iunflag CAS ]]
+    }
+
+    private boolean helpDelete(final DInfo<E,V> info) {
+        final boolean markSuccess = infoUpdater.compareAndSet(
+                info.p, info.pinfo, new Mark<E,V>(info));                     // [[ mark CAS ]]
+        final Info<E,V> currentPInfo = info.p.info;
+        if (markSuccess || (currentPInfo.getClass() == Mark.class
+                && ((Mark<E,V>) currentPInfo).dinfo == info)) {
+            helpMarked(info);
+            return true;
+        } else {
+            help(currentPInfo);
+            infoUpdater.compareAndSet(info.gp, info, new Clean<E,V>());       // [[ backtrack CAS ]]
+            return false;
+        }
+    }
+
+    private void helpMarked(final DInfo<E,V> info) {
+        // observe that there are two non-empty children of info.p
+        // so the following finds the "other" (remaining) node
+        final AtomicReferenceArray<Node<E,V>> children = info.p.children;
+        Node<E,V> other = children.get(children.length() - 1);
+        for (int i = 0; i < children.length(); ++i) {
+            final Node<E,V> c = children.get(i);
+            if (c.kcount > 0 && c != info.l) {
+                other = c;
+                break;
+            }
+        }
+
+        // CAS the correct child pointer of info.gp from info.p to other
+        snapshots.announce();
+        info.gp.children.compareAndSet(info.gpindex, info.p, other);          // [[ dchild CAS ]]
+        infoUpdater.compareAndSet(info.gp, info, new Clean<E,V>());           // [[ dunflag CAS ]]
+    }
+
+    /**
+     * Completes the update flagging node, if any, so that the children of
+     * node do not change until it is flagged again, like LockFree4ST.
+     * @return the number of child CASes announced
+     */
+    private int settle(final Node<E,V> node) {
+        final Info<E,V> info = node.info;
+        if (info == null) return 0;
+        if (info.getClass() == IInfo.class) {
+            helpInsert((IInfo<E,V>) info);
+            return 1;
+        }
+        if (info.getClass() == DInfo.class) {
+            final DInfo<E,V> dinfo = (DInfo<E,V>) info;
+            infoUpdater.compareAndSet(dinfo.p, dinfo.pinfo, new Mark<E,V>(dinfo));
+            final Info<E,V> currentPInfo = dinfo.p.info;
+            if (currentPInfo.getClass() == Mark.class && ((Mark<E,V>) currentPInfo).dinfo == dinfo) {
+                helpMarked(dinfo);
+                return 1;
+            }
+            infoUpdater.compareAndSet(dinfo.gp, dinfo, new Clean<E,V>());
+        }
+        // clean, or marked: the children of a marked node never change
+        return 0;
+    }
+
+
+
+    /**
+     *
+     * PRIVATE CLASSES
+     *
+     */
+
+    public static final class Node<E extends Comparable<? super E>, V> {
+        public final int kcount;                            // key count
+        final Object[] keys;                                // sorted keys
+        final Object[] values;                              // values, null for internal nodes
+        final AtomicReferenceArray<Node<E,V>> children;     // children, null for leaves
+        public volatile Info<E,V> info = null;
+
+        /**
+         * Constructor for leaves.
+         */
+        Node(final Object[] keys, final Object[] values) {
+            this.kcount = keys.length;
+            this.keys = keys;
+            this.values = values;
+            this.children = null;
+        }
+
+        /**
+         * Constructor for internal nodes, child i holds the keys in
+         * [keys[i - 1], keys[i]).
+         */
+        Node(final Object[] keys, final AtomicReferenceArray<Node<E,V>> children) {
+            this.kcount = keys.length;
+            this.keys = keys;
+            this.values = null;
+            this.children = children;
+        }
+
+        /**
+         * @return the index of the child whose key range holds key, that is
+         *         the number of keys less than or equal to key
+         */
+        int childIndex(final E key) {
+            int lo = 0, hi = kcount;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (compare(key, keys[mid]) < 0) hi = mid;
+                else lo = mid + 1;
+            }
+            return lo;
+        }
+
+        Node<E,V> child(final E key) {
+            return children.get(childIndex(key));
+        }
+
+        /**
+         * @return the index of key in this leaf, or (-(insertion point) - 1)
+         */
+        int indexOf(final E key) {
+            int lo = 0, hi = kcount - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int c = compare(key, keys[mid]);
+                if (c > 0) lo = mid + 1;
+                else if (c < 0) hi = mid - 1;
+                else return mid;
+            }
+            return -(lo + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        V value(final int index) {
+            return (V) values[index];
+        }
+
+        int nonEmptyChildren() {
+            int ccount = 0;
+            for (int i = 0; i < children.length(); ++i) {
+                if (children.get(i).kcount > 0) ++ccount;
+            }
+            return ccount;
+        }
+
+        /**
+         * @return a copy of this leaf where the value at index is replaced
+         */
+        Node<E,V> replaced(final int index, final V vnew) {
+            final Object[] nvalues = values.clone();
+            nvalues[index] = vnew;
+            return new Node<E,V>(keys, nvalues);
+        }
+
+        /**
+         * @return a copy of this leaf with (knew, vnew) inserted at index
+         */
+        Node<E,V> inserted(final int index, final E knew, final V vnew) {
+            final Object[] nkeys = new Object[kcount + 1];
+            final Object[] nvalues = new Object[kcount + 1];
+            System.arraycopy(keys, 0, nkeys, 0, index);
+            System.arraycopy(values, 0, nvalues, 0, index);
+            nkeys[index] = knew;
+            nvalues[index] = vnew;
+            System.arraycopy(keys, index, nkeys, index + 1, kcount - index);
+            System.arraycopy(values, index, nvalues, index + 1, kcount - index);
+            return new Node<E,V>(nkeys, nvalues);
+        }
+
+        /**
+         * @return a copy of this leaf without the key at index
+         */
+        Node<E,V> removed(final int index) {
+            final Object[] nkeys = new Object[kcount - 1];
+            final Object[] nvalues = new Object[kcount - 1];
+            System.arraycopy(keys, 0, nkeys, 0, index);
+            System.arraycopy(values, 0, nvalues, 0, index);
+            System.arraycopy(keys, index + 1, nkeys, index, kcount - index - 1);
+            System.arraycopy(values, index + 1, nvalues, index, kcount - index - 1);
+            return new Node<E,V>(nkeys, nvalues);
+        }
+
+        /**
+         * For the case that the leaf is full: creates an internal node whose
+         * children are leaves with one key each, the keys of this leaf plus
+         * knew, sorted by key.
+         */
+        Node<E,V> sprouted(final int index, final E knew, final V vnew) {
+            final Node<E,V> all = inserted(index, knew, vnew);
+            final AtomicReferenceArray<Node<E,V>> nchildren = new AtomicReferenceArray<Node<E,V>>(all.kcount);
+            final Object[] nkeys = new Object[all.kcount - 1];
+            for (int i = 0; i < all.kcount; ++i) {
+                nchildren.set(i, new Node<E,V>(new Object[] { all.keys[i] }, new Object[] { all.values[i] }));
+                if (i > 0) nkeys[i - 1] = all.keys[i];
+            }
+            return new Node<E,V>(nkeys, nchildren);
+        }
+    }
+
+    static interface Info<E extends Comparable<? super E>, V> {}
+
+    static final class IInfo<E extends Comparable<? super E>, V> implements Info<E,V> {
+        final Node<E,V> p, oldchild, newchild;
+        final int pindex;
+
+        IInfo(final Node<E,V> oldchild, final Node<E,V> p, final Node<E,V> newchild,
+              final int pindex) {
+            this.p = p;
+            this.oldchild = oldchild;
+            this.newchild = newchild;
+            this.pindex = pindex;
+        }
+    }
+
+    static final class DInfo<E extends Comparable<? super E>, V> implements Info<E,V> {
+        final Node<E,V> p, l, gp;
+        final Info<E,V> pinfo;
+        final int gpindex;
+
+        DInfo(final Node<E,V> l, final Node<E,V> p, final Node<E,V> gp,
+              final Info<E,V> pinfo, final int gpindex) {
+            this.p = p;
+            this.l = l;
+            this.gp = gp;
+            this.pinfo = pinfo;
+            this.gpindex = gpindex;
+        }
+    }
+
+    static final class Mark<E extends Comparable<? super E>, V> implements Info<E,V> {
+        final DInfo<E,V> dinfo;
+
+        Mark(final DInfo<E,V> dinfo) {
+            this.dinfo = dinfo;
+        }
+    }
+
+    static final class Clean<E extends Comparable<? super E>, V> implements Info<E,V> {
+    }
+}
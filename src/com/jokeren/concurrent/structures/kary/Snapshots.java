@@ -0,0 +1,120 @@
+package com.jokeren.concurrent.structures.kary;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Snapshots of a tree, for its size() and clone(), that updates never wait
+ * for.
+ *
+ * A child reference of a node only changes by a child CAS while the node is
+ * flagged by an update, and each thread announces a child CAS here right
+ * before it tries it, whether it runs the update or helps it. A walk reads
+ * version(), visits the tree settling each node before it reads its children
+ * (it completes the update flagging the node, if any), and reads version()
+ * again. If the version only grew by the announcements of its own settling,
+ * no child CAS hit a node after the walk read it, so the walk saw the tree
+ * as it was when the second read began. A stalled update does not fail a
+ * walk, since the walk completes it.
+ *
+ * A walk fails when another update reached its child CAS meanwhile, so under
+ * steady updates a snapshot may fail forever. After a few failed walks the
+ * snapshot is requested instead: every update that starts while a request
+ * is pending first runs the walk of the request itself, until one succeeds.
+ * Only the updates that started before the request can fail these walks, so
+ * the request completes even if the thread that made it stalls.
+ */
+final class Snapshots {
+
+    /**
+     * A walk of the tree, like size() or clone() needs it
+     */
+    static abstract class Walk<T> {
+        /**
+         * @return the result, or null if a child CAS other than those of the
+         *         walk was announced meanwhile
+         */
+        abstract T walk();
+    }
+
+    private static final class Request<T> {
+        final Walk<T> walk;
+        volatile T result = null;
+
+        Request(final Walk<T> walk) {
+            this.walk = walk;
+        }
+    }
+
+    /**
+     * Announced child CASes, striped by thread, padded to their own cache
+     * line
+     */
+    private static final int STRIPES = 16;
+    private static final int PAD = 16;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PAD);
+
+    private static final int MAX_OPTIMISTIC_WALKS = 2;
+    private volatile Request<?> request = null;
+
+    private static final AtomicReferenceFieldUpdater<Snapshots, Request> requestUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Snapshots.class, Request.class, "request");
+    private static final AtomicReferenceFieldUpdater<Request, Object> resultUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Request.class, Object.class, "result");
+
+    /**
+     * Announces a child CAS, before it is tried
+     */
+    void announce() {
+        counts.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD);
+    }
+
+    /**
+     * @return the number of child CASes announced so far
+     */
+    long version() {
+        long version = 0;
+        for (int stripe = 0; stripe < STRIPES; ++stripe) version += counts.get(stripe * PAD);
+        return version;
+    }
+
+    /**
+     * Called by updates before their flag CAS: completes the pending
+     * request, if any
+     */
+    void beforeUpdate() {
+        final Request<?> pending = request;
+        if (pending != null) complete(pending);
+    }
+
+    /**
+     * @return the result of a successful walk
+     */
+    <T> T take(final Walk<T> walk) {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_WALKS; ++attempt) {
+            final T result = walk.walk();
+            if (result != null) return result;
+        }
+
+        final Request<T> mine = new Request<T>(walk);
+        for (;;) {
+            final Request<?> pending = request;
+            if (pending == null) {
+                if (requestUpdater.compareAndSet(this, null, mine)) break;
+            } else {
+                complete(pending);
+            }
+        }
+        return complete(mine);
+    }
+
+    private <T> T complete(final Request<T> pending) {
+        T result;
+        while ((result = pending.result) == null) {
+            final T walked = pending.walk.walk();
+            if (walked != null) resultUpdater.compareAndSet(pending, null, walked);
+        }
+        requestUpdater.compareAndSet(this, pending, null);
+        return result;
+    }
+}
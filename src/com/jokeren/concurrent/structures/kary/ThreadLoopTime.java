@@ -2,6 +2,7 @@ package com.jokeren.concurrent.structures.kary;
 
 import com.jokeren.concurrent.structures.ctrie.ConcurrentHashTrie;
 import com.jokeren.concurrent.structures.miscellaneous.ThreadMisc;
+import com.jokeren.concurrent.utils.ZipfDistribution;
 
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
@@ -20,7 +21,9 @@ public class ThreadLoopTime extends Thread implements ThreadMisc {
     final private int nonUniform;
     final private int range;
     final CyclicBarrier gate;
-    final private LockFree4ST kary;
+    final private KaryTree<Long, Object> kary;
+    //key ranks when nonUniform is 2
+    final private ZipfDistribution zipf;
     final private double directions[][] = new double[8][2];
 
     private long containResponseTime = 0;
@@ -34,7 +37,16 @@ public class ThreadLoopTime extends Thread implements ThreadMisc {
     volatile boolean stopFlag = false;
 
     public ThreadLoopTime(int threadId, Long[] keys, int insertRatio, int removeRatio, int containRatio,
-                          int moveRatio, int nonUniform, int range, CyclicBarrier gate, LockFree4ST kary) {
+                          int moveRatio, int nonUniform, int range, CyclicBarrier gate, KaryTree<Long, Object> kary) {
+        this(threadId, keys, insertRatio, removeRatio, containRatio, moveRatio, nonUniform, range, gate, kary, null);
+    }
+
+    /**
+     * @param zipf the distribution of the indexes of the keys when nonUniform is 2
+     */
+    public ThreadLoopTime(int threadId, Long[] keys, int insertRatio, int removeRatio, int containRatio,
+                          int moveRatio, int nonUniform, int range, CyclicBarrier gate, KaryTree<Long, Object> kary,
+                          ZipfDistribution zipf) {
         this.threadId = threadId;
         this.keys = keys;
         this.insertRatio = insertRatio;
@@ -45,6 +57,7 @@ public class ThreadLoopTime extends Thread implements ThreadMisc {
         this.range = range;
         this.gate = gate;
         this.kary = kary;
+        this.zipf = zipf;
         //init direction
         directions[0][0] = -0.0001f;
         directions[0][1] = -0.0001f;
@@ -109,6 +122,8 @@ public class ThreadLoopTime extends Thread implements ThreadMisc {
         int pX, pY;
         if (nonUniform == 1) {
             keySet = keys[ThreadLocalRandom.current().nextInt(range * range)];
+        } else if (nonUniform == 2) {
+            keySet = keys[zipf.next(ThreadLocalRandom.current())];
         } else {
             keySet = keys[ThreadLocalRandom.current().nextInt(range)];
         }
@@ -126,6 +141,8 @@ public class ThreadLoopTime extends Thread implements ThreadMisc {
         while (stopFlag == false) {
             if (nonUniform == 1) {
                 keySet = keys[ThreadLocalRandom.current().nextInt(range * range)];
+            } else if (nonUniform == 2) {
+                keySet = keys[zipf.next(ThreadLocalRandom.current())];
             } else {
                 keySet = keys[ThreadLocalRandom.current().nextInt(range)];
             }
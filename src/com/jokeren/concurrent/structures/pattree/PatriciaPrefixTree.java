@@ -0,0 +1,321 @@
+package com.jokeren.concurrent.structures.pattree;
+
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock-free Patricia trie of variable-length prefixes, for longest prefix
+ * match lookups such as a routing table.
+ *
+ * Like PatriciaTree we ignore the sign bit, so a prefix is made of the
+ * length highest bits below the sign bit, 0 <= length <= 63. An IPv4
+ * address a is for instance stored as (long) a << 31.
+ *
+ * Every node covers a prefix, given by its key and mask, and may hold the
+ * route of that prefix: internal nodes as well as leaves. Routes are
+ * immutable, a route is announced or withdrawn by replacing the node with a
+ * copy, so all updates are a single child CAS guarded by the Flag/Unflag
+ * protocol of PatriciaTree. Withdrawals drop the nodes left without route
+ * and with an empty subtree; a leaf without route stands for an empty half.
+ */
+public class PatriciaPrefixTree<V> {
+
+    final long one = 1;
+    final long allOnes = (one << (63) >> (63)) >>> 1;   // every bit but the sign bit
+
+    /**
+     * Node class defines node objects of the tree.
+     * Node is either leaf or internal.
+     *
+     */
+    protected final static class Node<V> {
+        final long key;         // prefix, followed by the branch bit for internal nodes
+        final long mask;        // bits of the prefix
+        final V value;          // route of the prefix, null if none
+        volatile Node<V> left;
+        volatile Node<V> right;
+        volatile Info<V> info;
+
+        Node(final long key, final long mask, final V value, final Node<V> left, final Node<V> right) {
+            this.key = key;
+            this.mask = mask;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.info = null;
+        }
+
+        // to create a leaf node
+        Node(final long key, final long mask, final V value) {
+            this(key, mask, value, null, null);
+        }
+    }
+
+    /**
+     * Info class defines info objects of nodes.
+     * Info is either flag or unflag.
+     *
+     */
+    protected static abstract class Info<V> {}
+
+    protected final static class Flag<V> extends Info<V> {
+        final Node<V> flagNode1, flagNode2;             // flagged top-down
+        final Info<V> oldInfo1, oldInfo2;
+        final Node<V> pNode, oldChild, newChild;        // flagNode1 is the one to unflag
+        volatile boolean flagDone;
+
+        Flag(final Node<V> flagNode1, final Node<V> flagNode2, final Info<V> oldInfo1, final Info<V> oldInfo2,
+             final Node<V> pNode, final Node<V> oldChild, final Node<V> newChild) {
+            this.flagNode1 = flagNode1;
+            this.flagNode2 = flagNode2;
+            this.oldInfo1 = oldInfo1;
+            this.oldInfo2 = oldInfo2;
+            this.pNode = pNode;
+            this.oldChild = oldChild;
+            this.newChild = newChild;
+            this.flagDone = false;
+        }
+    }
+
+    protected final static class Unflag<V> extends Info<V> {
+        Unflag() {}
+    }
+
+    /**
+     * The root is a sentinel whose left child is the top of the trie,
+     * initially an empty leaf covering every key.
+     */
+    final Node<V> root;
+
+    public PatriciaPrefixTree() {
+        root = new Node<V>(0, 0, null, new Node<V>(0, 0, null), null);
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> leftUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "left");
+    private static final AtomicReferenceFieldUpdater<Node, Node> rightUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "right");
+    private static final AtomicReferenceFieldUpdater<Node, Info> infoUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Info.class, "info");
+
+    /**
+     * Returns the route of the longest prefix of addr, in a single descent.
+     * Each node is seen as it was when the lookup reached it.
+     * @return the route, or null if no prefix of addr has a route
+     */
+    public final V longestPrefixMatch(final long addr) {
+        final long key = addr & allOnes;
+        V best = null;
+        Node<V> node = root.left;
+        while (((node.key ^ key) & node.mask) == 0) {
+            final V value = node.value;
+            if (value != null) best = value;
+            final Node<V> left = node.left;
+            if (left == null) break;
+            node = (node.key > key) ? left : node.right;
+        }
+        return best;
+    }
+
+    /**
+     * @return the route of exactly this prefix, or null if none
+     */
+    public final V get(final long prefix, final int length) {
+        final long mask = maskOf(length);
+        final long key = prefix & mask;
+        Node<V> node = root.left;
+        while ((node.left != null) && (node.mask < mask) && (((node.key ^ key) & node.mask) == 0))
+            node = (node.key > key) ? node.left : node.right;
+        return ((node.mask == mask) && ((node.key & mask) == key)) ? node.value : null;
+    }
+
+    /**
+     * Announces the route of a prefix.
+     * @return the previous route of the prefix, or null if none
+     */
+    public final V put(final long prefix, final int length, final V value) {
+        if (value == null) throw new NullPointerException();
+        final long mask = maskOf(length);
+        final long key = prefix & mask;
+
+        Node<V> p, node;
+        Info<V> pInfo;
+
+        while (true) {
+            p = root;
+            node = root.left;
+            while ((node.left != null) && (node.mask < mask) && (((node.key ^ key) & node.mask) == 0)) {
+                p = node;
+                node = (p.key > key) ? node.left : node.right;
+            }
+
+            pInfo = p.info;
+            if (node != p.left && node != p.right) continue;
+            final Info<V> nodeInfo = node.info;
+
+            // if any internal is flagged help
+            if ((pInfo != null) && (pInfo.getClass() == Flag.class)) {
+                help((Flag<V>) pInfo);
+                continue;
+            }
+            if ((node.left != null) && (nodeInfo != null) && (nodeInfo.getClass() == Flag.class)) {
+                help((Flag<V>) nodeInfo);
+                continue;
+            }
+
+            Node<V> newChild;
+            final boolean internal = (node.left != null);
+            if ((node.mask == mask) && ((node.key & mask) == key)) {
+                // the prefix has a node, replace it with a copy holding the route
+                newChild = internal ? new Node<V>(node.key, mask, value, node.left, node.right)
+                        : new Node<V>(key, mask, value);
+            } else if (!internal && (node.mask < mask) && (((node.key ^ key) & node.mask) == 0)) {
+                // a leaf covers the prefix, the prefix goes below it
+                newChild = (node.value == null) ? new Node<V>(key, mask, value)
+                        : branch(node.key, node.mask, node.value, new Node<V>(key, mask, value));
+            } else {
+                final long diff = (node.key ^ key) & node.mask & mask;
+                final int shift = 64 - Long.numberOfLeadingZeros(diff);     // bits below the common prefix
+                final long common = (diff == 0) ? Math.min(node.mask, mask) : allOnes >>> shift << shift;
+                // node goes below the new node as a copy, a leaf too: node itself could come back under p
+                // once the prefix is withdrawn, where a late helper could repeat the child CAS
+                final Node<V> copy = new Node<V>(node.key, node.mask, node.value, node.left, node.right);
+                if (common == mask) {
+                    // node is below the prefix
+                    newChild = branch(key, mask, value, copy);
+                } else {
+                    // node and the prefix diverge
+                    final long newKey = (key & common) | (one << (62 - Long.bitCount(common)));
+                    newChild = (newKey > key) ? new Node<V>(newKey, common, null, new Node<V>(key, mask, value), copy)
+                            : new Node<V>(newKey, common, null, copy, new Node<V>(key, mask, value));
+                }
+            }
+
+            final Flag<V> putInfo = internal ? new Flag<V>(p, node, pInfo, nodeInfo, p, node, newChild)
+                    : new Flag<V>(p, null, pInfo, null, p, node, newChild);
+            if (help(putInfo)) return ((node.mask == mask) && ((node.key & mask) == key)) ? node.value : null;
+        }
+    }
+
+    /**
+     * Withdraws the route of a prefix.
+     * @return the withdrawn route, or null if the prefix had none
+     */
+    public final V remove(final long prefix, final int length) {
+        final long mask = maskOf(length);
+        final long key = prefix & mask;
+
+        Node<V> gp, p, node;
+        Info<V> gpInfo, pInfo;
+
+        while (true) {
+            gp = null;
+            p = root;
+            node = root.left;
+            while ((node.left != null) && (node.mask < mask) && (((node.key ^ key) & node.mask) == 0)) {
+                gp = p;
+                p = node;
+                node = (p.key > key) ? node.left : node.right;
+            }
+
+            gpInfo = null;
+            if (gp != null) {
+                gpInfo = gp.info;
+                if (p != gp.left && p != gp.right) continue;
+            }
+            pInfo = p.info;
+            if (node != p.left && node != p.right) continue;
+            final Info<V> nodeInfo = node.info;
+
+            // if the prefix has no route
+            if ((node.mask != mask) || ((node.key & mask) != key) || (node.value == null)) return null;
+
+            // if any internal is flagged help
+            if ((gpInfo != null) && (gpInfo.getClass() == Flag.class)) {
+                help((Flag<V>) gpInfo);
+                continue;
+            }
+            if ((pInfo != null) && (pInfo.getClass() == Flag.class)) {
+                help((Flag<V>) pInfo);
+                continue;
+            }
+            if ((node.left != null) && (nodeInfo != null) && (nodeInfo.getClass() == Flag.class)) {
+                help((Flag<V>) nodeInfo);
+                continue;
+            }
+
+            final Flag<V> removeInfo;
+            if (node.left == null) {
+                if (gp != null && p.value == null) {
+                    // p does not hold a route either, replace p with the sibling of node
+                    final Node<V> sibling = (p.key > key) ? p.right : p.left;
+                    removeInfo = new Flag<V>(gp, p, gpInfo, pInfo, gp, p, sibling);
+                } else {
+                    removeInfo = new Flag<V>(p, null, pInfo, null, p, node, new Node<V>(key, mask, null));
+                }
+            } else {
+                // node keeps its place only if both its subtrees hold routes
+                final Node<V> left = node.left, right = node.right;
+                final Node<V> newChild;
+                if (isEmpty(left) && isEmpty(right)) newChild = new Node<V>(key, mask, null);
+                else if (isEmpty(left)) newChild = right;
+                else if (isEmpty(right)) newChild = left;
+                else newChild = new Node<V>(node.key, mask, null, left, right);
+                removeInfo = new Flag<V>(p, node, pInfo, nodeInfo, p, node, newChild);
+            }
+            if (help(removeInfo)) return node.value;
+        }
+    }
+
+    /**
+     * @return a node holding the route of the prefix (key, mask), whose
+     *         subtree on the side of child is child and the other is empty
+     */
+    private Node<V> branch(final long key, final long mask, final V value, final Node<V> child) {
+        final long bit = one << (62 - Long.bitCount(mask));
+        final long prefix = key & mask;
+        final long childMask = mask | bit;
+        return ((child.key & bit) == 0) ? new Node<V>(prefix | bit, mask, value, child, new Node<V>(prefix | bit, childMask, null))
+                : new Node<V>(prefix | bit, mask, value, new Node<V>(prefix, childMask, null), child);
+    }
+
+    private static <V> boolean isEmpty(final Node<V> node) {
+        return (node.left == null) && (node.value == null);
+    }
+
+    private long maskOf(final int length) {
+        if (length < 0 || length > 63) throw new IllegalArgumentException("length must be in [0, 63]: " + length);
+        return allOnes >>> (63 - length) << (63 - length);
+    }
+
+    /**
+     * The help routine is called to complete an update operation.
+     *
+     */
+    private boolean help(final Flag<V> info) {
+
+        boolean doChildCAS;
+
+        // flagging internal nodes
+        infoUpdater.compareAndSet(info.flagNode1, info.oldInfo1, info);
+        doChildCAS = (info.flagNode1.info == info);
+
+        if ((doChildCAS) && (info.flagNode2 != null)) {
+            infoUpdater.compareAndSet(info.flagNode2, info.oldInfo2, info);
+            doChildCAS = (info.flagNode2.info == info);
+        }
+
+        //if successfully flag all internals
+        if (doChildCAS) {
+            info.flagDone = true;
+            ((info.pNode.left == info.oldChild) ? leftUpdater : rightUpdater).compareAndSet(info.pNode, info.oldChild, info.newChild);
+        }
+
+        // unflag the parent, the other node has been replaced
+        if (info.flagDone) {
+            infoUpdater.compareAndSet(info.flagNode1, info, new Unflag<V>());
+            return true;
+        } else { //backtracking
+            if (info.flagNode2 != null) infoUpdater.compareAndSet(info.flagNode2, info, new Unflag<V>());
+            infoUpdater.compareAndSet(info.flagNode1, info, new Unflag<V>());
+            return false;
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package com.jokeren.concurrent.structures.pattree;
 
 
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 public class PatriciaTree<V>{
 
@@ -28,14 +37,14 @@ public class PatriciaTree<V>{
      */
 
     protected final static class Node<V>{
-        final Long key;
+        final long key;
         final V value;
         final long mask;
         volatile Node<V> left;
         volatile Node<V> right;
         volatile Info<V> info;
 
-        Node(final Long key, final V value, final long mask, final Node<V> left, final Node<V> right) {
+        Node(final long key, final V value, final long mask, final Node<V> left, final Node<V> right) {
             this.key = key;
             this.value = value;
             this.mask = mask;
@@ -51,61 +60,96 @@ public class PatriciaTree<V>{
         }
 
         // to create a leaf node
-        Node(final Long key, final V value) {
+        Node(final long key, final V value) {
             this(key, value, 0, null, null);
         }
 
         // to create an internal node
-        Node(final Long key, final long mask, final Node<V> left, final Node<V> right) {
+        Node(final long key, final long mask, final Node<V> left, final Node<V> right) {
             this(key, null, mask, left, right);
         }
     }
 
     /**
      * Info class defines info objects of nodes.
-     * Info is either flag or unflag.
+     * Info is a flag of an insert, a delete or a move. Rather than allocating
+     * an unflag info, a finished flag is marked unflagged: the nodes it
+     * flagged that are still in the trie, its parents of child CASes, are
+     * clean again, while the nodes it replaced stay flagged.
+     *
+     * A finished flag stays in the info of its nodes, so an operation decides
+     * whether a node is flagged right when it reads its info, before it
+     * checks the child pointers below the node. An info read while its flag
+     * was in progress is helped, never used as the old info of a new flag:
+     * it could be finished by the time of the flag CAS, which would then
+     * succeed although the child pointers changed.
      *
      */
     protected static abstract class Info<V>{}
 
-    protected final static class Flag<V> extends Info<V>{
-        Node<V> flagNode1, flagNode2, flagNode3, flagNode4, unflagNode1, unflagNode2;
-        Info<V> oldInfo1, oldInfo2, oldInfo3, oldInfo4;
-        Node<V> pNode1, oldChild1, newChild1, pNode2, oldChild2, newChild2, movLeaf;												// to determine that Info is flag or unflag
-        volatile boolean flagDone;
-
-        // to create flag Info
-        Flag(final Node<V> flagNode1, final Node<V> flagNode2, final Node<V> flagNode3, final Node<V> flagNode4,
-             final Node<V> unflagNode1, final Node<V> unflagNode2,
-             final Info<V> oldInfo1, final Info<V> oldInfo2, final Info<V> oldInfo3, final Info<V> oldInfo4,
-             final Node<V> pNode1, final Node<V> oldChild1, final Node<V> newChild1,
-             final Node<V> pNode2, final Node<V> oldChild2, final Node<V> newChild2 , final Node<V> movLeaf) {
+    protected static abstract class Flag<V> extends Info<V>{
+        final Node<V> flagNode1, flagNode2;						// flagged in ascending key order
+        final Info<V> oldInfo1, oldInfo2;
+        final Node<V> pNode1, oldChild1, newChild1;
+        volatile boolean flagDone;								// all nodes are flagged
+        volatile boolean unflagged;								// the operation is over, done or backtracked
+
+        Flag(final Node<V> flagNode1, final Node<V> flagNode2, final Info<V> oldInfo1, final Info<V> oldInfo2,
+             final Node<V> pNode1, final Node<V> oldChild1, final Node<V> newChild1) {
             this.flagNode1 = flagNode1;
             this.flagNode2 = flagNode2;
-            this.flagNode3 = flagNode3;
-            this.flagNode4 = flagNode4;
-            this.unflagNode1 = unflagNode1;
-            this.unflagNode2 = unflagNode2;
             this.oldInfo1 = oldInfo1;
             this.oldInfo2 = oldInfo2;
-            this.oldInfo3 = oldInfo3;
-            this.oldInfo4 = oldInfo4;
             this.pNode1 = pNode1;
             this.oldChild1 = oldChild1;
             this.newChild1 = newChild1;
+            this.flagDone = false;
+            this.unflagged = false;
+        }
+    }
+
+    // flags p, and node if it is internal, to replace node with newInternal
+    protected final static class InsertFlag<V> extends Flag<V>{
+        InsertFlag(final Node<V> p, final Info<V> pInfo, final Node<V> node, final Info<V> nodeInfo, final Node<V> newInternal) {
+            super((node.left == null) || (p.key < node.key) ? p : node,
+                    (node.left == null) ? null : (p.key < node.key) ? node : p,
+                    (node.left == null) || (p.key < node.key) ? pInfo : nodeInfo,
+                    (node.left == null) ? null : (p.key < node.key) ? nodeInfo : pInfo,
+                    p, node, newInternal);
+        }
+    }
+
+    // flags gp and p to replace p with the sibling of the deleted leaf
+    protected final static class DeleteFlag<V> extends Flag<V>{
+        DeleteFlag(final Node<V> gp, final Info<V> gpInfo, final Node<V> p, final Info<V> pInfo, final Node<V> nodeSibling) {
+            super((gp.key < p.key) ? gp : p, (gp.key < p.key) ? p : gp,
+                    (gp.key < p.key) ? gpInfo : pInfo, (gp.key < p.key) ? pInfo : gpInfo,
+                    gp, p, nodeSibling);
+        }
+    }
+
+    // flags up to 4 nodes for up to 2 child CASes, and flags the moved leaf
+    protected final static class MoveFlag<V> extends Flag<V>{
+        final Node<V> flagNode3, flagNode4;
+        final Info<V> oldInfo3, oldInfo4;
+        final Node<V> pNode2, oldChild2, newChild2, movLeaf;
+
+        MoveFlag(final Node<V> flagNode1, final Node<V> flagNode2, final Node<V> flagNode3, final Node<V> flagNode4,
+                 final Info<V> oldInfo1, final Info<V> oldInfo2, final Info<V> oldInfo3, final Info<V> oldInfo4,
+                 final Node<V> pNode1, final Node<V> oldChild1, final Node<V> newChild1,
+                 final Node<V> pNode2, final Node<V> oldChild2, final Node<V> newChild2, final Node<V> movLeaf) {
+            super(flagNode1, flagNode2, oldInfo1, oldInfo2, pNode1, oldChild1, newChild1);
+            this.flagNode3 = flagNode3;
+            this.flagNode4 = flagNode4;
+            this.oldInfo3 = oldInfo3;
+            this.oldInfo4 = oldInfo4;
             this.pNode2 = pNode2;
             this.oldChild2 = oldChild2;
             this.newChild2 = newChild2;
             this.movLeaf = movLeaf;
-            this.flagDone = false;
         }
     }
 
-    // to create unflag Info
-    protected final static class Unflag<V> extends Info<V>{
-        Unflag(){}
-    }
-
     /**
      * Initialization of Patricia Trie
      * The constructor sets the root node and the upper bound of keys.
@@ -123,11 +167,7 @@ public class PatriciaTree<V>{
     	 * whose children are two dummy leaf nodes.
     	 * create 2 dummy nodes, both contain key null
     	 */
-        Long kRootKey = new Long(rootKey);
-        Long leftKey = new Long(allZeros);
-        Long rightKey = new Long(allOnes);
-
-        root = new Node<V>(kRootKey, 0, new Node<V>(leftKey,null), new Node<V>(rightKey,null));
+        root = new Node<V>(rootKey, 0, new Node<V>(allZeros,null), new Node<V>(allOnes,null));
     }
 
     /*
@@ -143,28 +183,289 @@ public class PatriciaTree<V>{
      *
      */
 
-    private int countLeaf(Node parent) {
+    /**
+     * Leaf counters striped by thread, padded to their own cache line.
+     * Successful inserts add one to the stripe of their thread and deletes
+     * subtract one, moves leave the count unchanged.
+     */
+    private static final int STRIPES = 16;
+    private static final int PAD = 16;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PAD);
+
+    private void count(final int delta) {
+        counts.addAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD, delta);
+    }
+
+    /**
+     * Returns the number of leaves, the two dummy leaves included, in O(1)
+     * from the striped counters. It is exact when no update is in progress.
+     */
+    public int size() {
+        long c = 2;
+        for (int stripe = 0; stripe < STRIPES; ++stripe) c += counts.get(stripe * PAD);
+        return (int) c;
+    }
+
+    /**
+     * Counts the leaves, the two dummy leaves included, walking the trie
+     * with an explicit stack. The walk is weakly consistent: each child
+     * pointer is read once, and leaves logically removed by a move are not
+     * counted.
+     */
+    public int countLeaves() {
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        stack.push(root);
         int c = 0;
-        if (parent.left == null && parent.right == null) {
-            c = 1;
+        while (!stack.isEmpty()) {
+            final Node<V> node = stack.pop();
+            final Node<V> left = node.left, right = node.right;
+            if (left != null) {
+                stack.push(right);
+                stack.push(left);
+            } else if (!isMoved(node)) {
+                ++c;
+            }
         }
+        return c;
+    }
 
-        if (parent.left != null) {
-            c += countLeaf(parent.left);
+    /**
+     * Passes every key-value pair whose key is the Z-order key of a point
+     * in the rectangle [minX, maxX] x [minY, maxY] to the consumer, in
+     * ascending key order. Keys are Z-order (Morton) keys as built by
+     * PointTransform.getLong(x, y) or zOrder(x, y): the bits of x and y
+     * interleaved, x taking the higher bit of each pair.
+     *
+     * The keys of the subtree of an internal node share the bits of
+     * node.key under node.mask and take every value of the lower bits, an
+     * aligned Z-order interval, which is the rectangle of points between
+     * its lowest and highest key. Subtrees whose rectangle is disjoint from
+     * the query are skipped, which is where a BIGMIN/LITMAX decomposition of
+     * the query would jump, and subtrees whose rectangle lies within the
+     * query are reported without further checks.
+     *
+     * The query is weakly consistent: each child pointer is read once,
+     * and leaves logically removed by a move are skipped as in find.
+     */
+    public final void rectangleQuery(final int minX, final int minY, final int maxX, final int maxY,
+                                     final BiConsumer<? super Long, ? super V> consumer) {
+        if (consumer == null) throw new NullPointerException();
+        if (minX > maxX || minY > maxY || maxX < 0 || maxY < 0) return;
+        final long qMinX = Math.max(minX, 0), qMinY = Math.max(minY, 0);
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        final ArrayDeque<Boolean> inside = new ArrayDeque<Boolean>();
+        stack.push(root);
+        inside.push(Boolean.FALSE);
+        while (!stack.isEmpty()) {
+            final Node<V> node = stack.pop();
+            boolean within = inside.pop();
+            final Node<V> left = node.left, right = node.right;
+            if (left == null) {     // leaf
+                if (!isKey(node)) continue;
+                if (within || inRectangle(node.key, qMinX, qMinY, maxX, maxY)) consumer.accept(node.key, node.value);
+                continue;
+            }
+            if (!within) {
+                final long lo = node.key & node.mask;
+                final long hi = lo | (~node.mask & allOnes);
+                final long loX = compact(lo >>> 1), loY = compact(lo), hiX = compact(hi >>> 1), hiY = compact(hi);
+                if (hiX < qMinX || loX > maxX || hiY < qMinY || loY > maxY) continue;
+                within = loX >= qMinX && hiX <= maxX && loY >= qMinY && hiY <= maxY;
+            }
+            stack.push(right);
+            inside.push(within);
+            stack.push(left);
+            inside.push(within);
         }
+    }
 
-        if (parent.right != null) {
-            c += countLeaf(parent.right);
+    /**
+     * Passes every key-value pair whose key starts with the given prefix to
+     * the consumer, in ascending key order. Since the sign bit is ignored,
+     * the prefix is made of the bits highest bits below the sign bit.
+     * The scan only walks the subtrees whose key/mask prefix intersects the
+     * prefix, and is weakly consistent like rectangleQuery.
+     * @throws IllegalArgumentException in the event that bits is not in [0, 63]
+     */
+    public final void prefixScan(final long prefix, final int bits, final BiConsumer<? super Long, ? super V> consumer) {
+        if (consumer == null) throw new NullPointerException();
+        if (bits < 0 || bits > 63) throw new IllegalArgumentException("bits must be in [0, 63]: " + bits);
+        final long mask = allOnes >>> (63 - bits) << (63 - bits);
+        final long lo = prefix & mask;
+        ascend(lo, lo | (~mask & allOnes), consumer);
+    }
+
+    /**
+     * @return the least key greater than or equal to key, or null if there is no such key
+     */
+    public final Long ceiling(final long key) {
+        return ascend(key, allOnes, null);
+    }
+
+    /**
+     * @return the greatest key less than or equal to key, or null if there is no such key
+     */
+    public final Long floor(final long key) {
+        return descend(key);
+    }
+
+    /**
+     * @return a weakly consistent iterator over the key-value pairs in
+     *         ascending key order, reflecting each subtree as it was when
+     *         the iterator reached it
+     */
+    public final Iterator<Map.Entry<Long, V>> iterator() {
+        return new LeafIterator();
+    }
+
+    /**
+     * Walks the leaves holding keys in [lo, hi] in ascending order, skipping
+     * the subtrees whose key/mask prefix is out of the range.
+     * @return the first key found if consumer is null, otherwise null after
+     *         passing every key found to the consumer
+     */
+    private Long ascend(final long lo, final long hi, final BiConsumer<? super Long, ? super V> consumer) {
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<V> node = stack.pop();
+            final Node<V> left = node.left, right = node.right;
+            if (left == null) {     // leaf
+                if (node.key < lo || node.key > hi || !isKey(node)) continue;
+                if (consumer == null) return node.key;
+                consumer.accept(node.key, node.value);
+                continue;
+            }
+            final long subLo = node.key & node.mask;
+            final long subHi = subLo | (~node.mask & allOnes);
+            if (subHi < lo || subLo > hi) continue;
+            stack.push(right);
+            stack.push(left);
         }
+        return null;
+    }
 
-        return c;
+    /**
+     * Walks the leaves holding keys less than or equal to hi in descending order.
+     * @return the first key found, or null if there is no such key
+     */
+    private Long descend(final long hi) {
+        final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node<V> node = stack.pop();
+            final Node<V> left = node.left, right = node.right;
+            if (left == null) {     // leaf
+                if (node.key > hi || !isKey(node)) continue;
+                return node.key;
+            }
+            if ((node.key & node.mask) > hi) continue;
+            stack.push(left);
+            stack.push(right);
+        }
+        return null;
     }
 
-    public int size() {
-        return countLeaf(root);
+    /**
+     * Ascending iterator, the stack holds the subtrees still to visit.
+     */
+    private final class LeafIterator implements Iterator<Map.Entry<Long, V>> {
+        private final ArrayDeque<Node<V>> stack = new ArrayDeque<Node<V>>();
+        private Node<V> next;
+
+        LeafIterator() {
+            stack.push(root);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (!stack.isEmpty()) {
+                final Node<V> node = stack.pop();
+                final Node<V> left = node.left, right = node.right;
+                if (left == null) {
+                    if (isKey(node)) {
+                        next = node;
+                        return;
+                    }
+                } else {
+                    stack.push(right);
+                    stack.push(left);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Long, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            final Map.Entry<Long, V> entry = new AbstractMap.SimpleImmutableEntry<Long, V>(next.key, next.value);
+            advance();
+            return entry;
+        }
+    }
+
+    /**
+     * @return the Z-order key of the point (x, y), same as PointTransform.getLong(x, y)
+     *         for non-negative coordinates
+     */
+    public static long zOrder(final int x, final int y) {
+        return (spread(x) << 1) | spread(y);
+    }
+
+    // spreads the 32 bits of v to the even bits of a long
+    private static long spread(final int v) {
+        long z = v & 0xFFFFFFFFL;
+        z = (z | (z << 16)) & 0x0000FFFF0000FFFFL;
+        z = (z | (z << 8)) & 0x00FF00FF00FF00FFL;
+        z = (z | (z << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        z = (z | (z << 2)) & 0x3333333333333333L;
+        z = (z | (z << 1)) & 0x5555555555555555L;
+        return z;
+    }
+
+    // gathers the even bits of z, the inverse of spread
+    private static long compact(long z) {
+        z &= 0x5555555555555555L;
+        z = (z | (z >>> 1)) & 0x3333333333333333L;
+        z = (z | (z >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        z = (z | (z >>> 4)) & 0x00FF00FF00FF00FFL;
+        z = (z | (z >>> 8)) & 0x0000FFFF0000FFFFL;
+        z = (z | (z >>> 16)) & 0x00000000FFFFFFFFL;
+        return z;
+    }
+
+    private static boolean inRectangle(final long key, final long minX, final long minY,
+                                       final long maxX, final long maxY) {
+        final long x = compact(key >>> 1), y = compact(key);
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    //check if a leaf node holds a key: it is not a dummy leaf, nor logically removed by a move
+    private boolean isKey(final Node<V> leaf) {
+        return leaf.key != allZeros && leaf.key != allOnes && !isMoved(leaf);
+    }
+
+    //check if a leaf node is logically removed by a move, like find
+    private static <V> boolean isMoved(final Node<V> leaf) {
+        final Info<V> info = leaf.info;
+        if ((info != null) && (info.getClass() == MoveFlag.class)) {
+            final Flag<V> flag = (Flag<V>) info;
+            return (flag.pNode1.left != flag.oldChild1) && (flag.pNode1.right != flag.oldChild1);
+        }
+        return false;
     }
 
     public final boolean find(final Long key) {
+        return find((long) key);
+    }
+
+    // the operations on primitive keys, shared with PatriciaTreeLong
+    final boolean find(final long key) {
 
         Node<V> node;
         boolean moved = false;
@@ -179,7 +480,7 @@ public class PatriciaTree<V>{
 
 
         //check if leaf node is logically in the trie
-        if((node.left==null)&&(node.info!=null)&&(node.info.getClass() == Flag.class)){
+        if((node.left==null)&&(node.info!=null)&&(node.info.getClass() == MoveFlag.class)){
             Flag<V> nodeInfo = (Flag<V>) node.info;
             moved = ((nodeInfo.pNode1.left != nodeInfo.oldChild1)&&(nodeInfo.pNode1.right != nodeInfo.oldChild1));
         }
@@ -198,10 +499,15 @@ public class PatriciaTree<V>{
      */
 
     public final Long insert(final Long key, final V value) {
+        return insert((long) key, value) ? key : null;
+    }
+
+    final boolean insert(final long key, final V value) {
 
         // search variables
         Node<V> p, node;
         Info<V> pInfo;
+        boolean pFlagged;
         boolean moved;
 
         while(true){
@@ -219,11 +525,12 @@ public class PatriciaTree<V>{
             }
 
             pInfo = p.info;                             // read pinfo once instead of every iteration
+            pFlagged = isFlagged(p, pInfo);             //   and whether it flags p, before the child pointers
             if (node != p.left && node != p.right) continue;
 
             //check if node is logically removed by move
             moved = false;
-            if((node.left == null)&&(node.info != null) && (node.info.getClass() == Flag.class)){ //if leaf is flagged
+            if((node.left == null)&&(node.info != null) && (node.info.getClass() == MoveFlag.class)){ //if leaf is flagged
                 Flag<V> I = (Flag<V>) node.info;
                 moved = ((I.pNode1.left != I.oldChild1) && (I.pNode1.right != I.oldChild1)); //if logically removed
             }
@@ -232,13 +539,14 @@ public class PatriciaTree<V>{
         	 */
 
             // if tree already contains key
-            if((node.left == null) && (node.key.longValue() == key) && (moved == false)) return null;
+            if((node.left == null) && (node.key == key) && (moved == false)) return false;
 
             Info<V> nodeInfo = node.info;
+            boolean nodeFlagged = (node.left!=null) && isFlagged(node, nodeInfo);
 
             // if any internal is flagged help
-            if((pInfo!=null)&&(pInfo.getClass() == Flag.class))	help((Flag<V>)pInfo);
-            else if((node.left!=null) && (nodeInfo!=null) && (nodeInfo.getClass() == Flag.class)) help((Flag<V>)nodeInfo);
+            if(pFlagged)	help((Flag<V>)pInfo);
+            else if(nodeFlagged) help((Flag<V>)nodeInfo);
 
 
                 //otherwise create a new flag Info
@@ -248,45 +556,32 @@ public class PatriciaTree<V>{
                 long newMask = 0;
 
                 long temp = node.key ^ key;
-                byte i = 0;
-
                 if (temp==0) {//children are not prefixes of each other
-                    System.out.println("children are not prefixes of each other inside insert");
                     continue;
                 }
-                while(temp != 0){					//find the first different bit of node.key and value
-                    temp >>>=  1;
-                    i++;
-                }
+                int i = 64 - Long.numberOfLeadingZeros(temp);	//one past the first different bit of node.key and value
 
                 newKey = key >>> i << i; 			//set leftmost (i-1) bits of newKey
                 long mask = one << (i-1);
                 newKey = newKey | mask; 			// set bit i of newKey to one
                 newMask = allOnes >>> i << i;
 
-                // create new Internal node whose children are a new copy of node and a new node
+                // create new Internal node whose children are a new copy of node and a new node, the copy
+                // keeps node from coming back under p, where a late helper could repeat the child CAS
+                Node<V> copy = new Node<V>(node);
                 Node<V> newInternal;
-                Long kNewKey = new Long(newKey);
-                newInternal =(newKey > key) ? new Node<V>(kNewKey, newMask, new Node<V>(key,value), new Node<V>(node))
-                        : new Node<V>(kNewKey, newMask, new Node<V>(node), new Node<V>(key,value));
+                newInternal =(newKey > key) ? new Node<V>(newKey, newMask, new Node<V>(key,value), copy)
+                        : new Node<V>(newKey, newMask, copy, new Node<V>(key,value));
 
 
                 // create new flag Info
-                Flag<V> insInfo;
-                if (node.left != null){ // if node is internal order node and p to get falgged
-                    if (p.key < node.key)
-                        insInfo = new Flag<V>(p, node, null, null, p, null,  pInfo, nodeInfo, null, null,
-                                p, node, newInternal, null, null, null, null);
-                    else
-                        insInfo = new Flag<V>(node, p, null, null, p, null,  nodeInfo, pInfo, null, null,
-                                p, node, newInternal, null, null, null, null);
-                }
-                else  // node is leaf
-                    insInfo = new Flag<V>(p, null, null, null, p, null, pInfo, null,null, null,
-                            p, node, newInternal, null, null, null, null);
+                Flag<V> insInfo = new InsertFlag<V>(p, pInfo, node, nodeInfo, newInternal);
 
                 // call help routine to complete insert
-                if(help(insInfo)) return key;
+                if(help(insInfo)){
+                    count(1);
+                    return true;
+                }
             }																// end of else
         }																	// end of while loop
     }																		// end of insert operation
@@ -298,10 +593,15 @@ public class PatriciaTree<V>{
      */
 
     public final Long delete(final Long key, final V value) {
+        return delete((long) key) ? key : null;
+    }
+
+    final boolean delete(final long key) {
 
         // search variables
         Node<V> gp, p, node;
         Info<V> gpInfo, pInfo;
+        boolean gpFlagged, pFlagged;
         boolean moved;
 
         while(true){
@@ -313,6 +613,7 @@ public class PatriciaTree<V>{
             gp = null;
             pInfo = null;
             p = null;
+            gpFlagged = pFlagged = false;
             node = root;
             while((node.left != null) && (((node.key ^ key) & node.mask) == 0)){
                 gp = p;
@@ -322,13 +623,15 @@ public class PatriciaTree<V>{
 
             if (gp != null) {
                 gpInfo = gp.info;                               // - read gpinfo once instead of every iteration
+                gpFlagged = isFlagged(gp, gpInfo);              //   and whether it flags gp
                 if (p != gp.left && p != gp.right) continue;    //   then confirm the child link to p is valid
                 pInfo = p.info;                                 //   (just as if we'd read gp's info field before the reference to p)
+                pFlagged = isFlagged(p, pInfo);
                 if (node != p.left && node != p.right) continue;      // - do the same for pinfo and l
             }
 
             moved=false;
-            if((node.left == null)&&(node.info != null) && (node.info.getClass() == Flag.class)){ //if leaf is flagged
+            if((node.left == null)&&(node.info != null) && (node.info.getClass() == MoveFlag.class)){ //if leaf is flagged
                 Flag<V> I = (Flag<V>) node.info;
                 moved = ((I.pNode1.left != I.oldChild1) && (I.pNode1.right != I.oldChild1)); //if logically removed
             }
@@ -337,28 +640,24 @@ public class PatriciaTree<V>{
         	 */
 
             // if tree does not contain key
-            if((node.left != null) || (node.key.longValue() != key) || (moved == true)) return null;
+            if((node.left != null) || (node.key != key) || (moved == true)) return false;
 
             // if any internal is flagged help
-            if((pInfo!=null)&&(pInfo.getClass() == Flag.class))	help((Flag<V>)pInfo);
-            else if((gpInfo!=null)&&(gpInfo.getClass() == Flag.class)) help((Flag<V>)gpInfo);
+            if(pFlagged)	help((Flag<V>)pInfo);
+            else if(gpFlagged) help((Flag<V>)gpInfo);
 
                 //otherwise create a new flag Info
             else{
 
                 // create new flag Info
-                Flag<V> delInfo;
                 Node<V> nodeSibling = (p.key > node.key) ? p.right : p.left;
 
-                if(gp!=null){ //order gp and p to get flagged
-                    if (gp.key < p.key)
-                        delInfo = new Flag<V>(gp, p, null, null, gp, null, gpInfo, pInfo, null, null,
-                                gp, p, nodeSibling, null, null, null, null);
-                    else
-                        delInfo = new Flag<V>(p, gp, null, null, gp, null, pInfo, gpInfo, null, null,
-                                gp, p, nodeSibling, null, null, null, null);
-
-                    if(help(delInfo)) return key;
+                if(gp!=null){
+                    Flag<V> delInfo = new DeleteFlag<V>(gp, gpInfo, p, pInfo, nodeSibling);
+                    if(help(delInfo)){
+                        count(-1);
+                        return true;
+                    }
 
                 }
             }
@@ -372,10 +671,70 @@ public class PatriciaTree<V>{
      */
 
     public final Long move(final Long key_d, final V value_d, final Long key_i, final V value_i) {
+        return move(key_d, key_i, value_i, false, null) ? key_d : null;
+    }
+
+    /**
+     * Moves every key from[j] to to[j], keeping its value, as by move: the
+     * moves that find from[j] and not to[j] succeed. The moves are sorted by
+     * from key, and each descent restarts from the deepest node of the
+     * previous search path that covers its key and is still in the trie
+     * rather than from the root, the search for to[j] from the path of
+     * from[j]. Each move is atomic, the batch is not.
+     * @return the number of successful moves
+     */
+    public final int moveAll(final long[] from, final long[] to) {
+        if (from.length != to.length) throw new IllegalArgumentException("from and to differ in length");
+        final Integer[] order = new Integer[from.length];
+        for (int j = 0; j < order.length; ++j) order[j] = j;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(from[a], from[b]);
+            }
+        });
+
+        final Path<V> path = new Path<V>(root);
+        int moved = 0;
+        for (int j = 0; j < order.length; ++j) {
+            if (move(from[order[j]], to[order[j]], null, true, path)) ++moved;
+        }
+        return moved;
+    }
+
+    /**
+     * Search path of the last key_d found by a move of moveAll, from the root
+     * to its leaf.
+     */
+    private static final class Path<V> {
+        @SuppressWarnings("unchecked")
+        final Node<V>[] nodes = (Node<V>[]) new Node[65];
+        int length = 1;
+
+        Path(final Node<V> root) {
+            nodes[0] = root;
+        }
+
+        // deepest internal node of the path, at depth minDepth or more, that covers key and whose parent in
+        // the path is still its parent: both are in the trie if they are not flagged, since removed nodes
+        // stay flagged. Falls back to the root
+        int resume(final long key, final int minDepth) {
+            for (int d = length - 2; d >= Math.max(minDepth, 1); --d) {
+                final Node<V> node = nodes[d], parent = nodes[d - 1];
+                if ((((node.key ^ key) & node.mask) == 0) && !isFlagged(node, node.info)
+                        && !isFlagged(parent, parent.info) && ((parent.left == node) || (parent.right == node))) return d;
+            }
+            return 0;
+        }
+    }
+
+    // with keepValue the moved leaf keeps its value instead of value_i, with a path key_d and key_i are searched from it
+    final boolean move(final long key_d, final long key_i, final V value_i, final boolean keepValue, final Path<V> path) {
 
         // search variables
         Node<V> gp_d, p_d, node_d, p_i, node_i;
         Info<V> gpInfo_d, pInfo_d, pInfo_i;
+        boolean gpFlagged_d, pFlagged_d, pFlagged_i;
         boolean moved_d, moved_i;
 
         while(true){
@@ -388,23 +747,33 @@ public class PatriciaTree<V>{
             gp_d = null;
             pInfo_d = null;
             p_d = null;
+            gpFlagged_d = pFlagged_d = false;
             node_d = root;
+            int depth = (path != null) ? path.resume(key_d, 1) : 0;
+            if (depth > 0) {
+                p_d = path.nodes[depth - 1];
+                node_d = path.nodes[depth];
+            }
             while((node_d.left != null) && (((node_d.key ^ key_d) & node_d.mask) == 0)){
                 gp_d = p_d;
                 p_d = node_d;
                 node_d = (p_d.key > key_d) ? node_d.left : node_d.right;
+                if (path != null) path.nodes[++depth] = node_d;
             }
+            if (path != null) path.length = depth + 1;
 
             if (gp_d != null) {
                 gpInfo_d = gp_d.info;                               // - read gpinfo once instead of every iteration
+                gpFlagged_d = isFlagged(gp_d, gpInfo_d);            //   and whether it flags gp
                 if (p_d != gp_d.left && p_d != gp_d.right) continue;    //   then confirm the child link to p is valid
                 pInfo_d = p_d.info;                                 //   (just as if we'd read gp's info field before the reference to p)
+                pFlagged_d = isFlagged(p_d, pInfo_d);
                 if (node_d != p_d.left && node_d != p_d.right) continue;      // - do the same for pinfo and l
             }
 
             //check if node_d is logically in the trie
             moved_d = false;
-            if((node_d.left == null)&&(node_d.info != null) && (node_d.info.getClass() == Flag.class)){ //if leaf is flagged
+            if((node_d.left == null)&&(node_d.info != null) && (node_d.info.getClass() == MoveFlag.class)){ //if leaf is flagged
                 Flag<V> I = (Flag<V>) node_d.info;
                 moved_d = ((I.pNode1.left != I.oldChild1) && (I.pNode1.right != I.oldChild1)); //if logically removed
             }
@@ -413,7 +782,9 @@ public class PatriciaTree<V>{
         	 */
 
             // if tree does not contain key_d
-            if((node_d.left != null) || (node_d.key.longValue() != key_d) || (moved_d == true)) return null;
+            if((node_d.left != null) || (node_d.key != key_d) || (moved_d == true)) return false;
+
+            final V movedValue = keepValue ? node_d.value : value_i;
 
 
         	/*
@@ -422,7 +793,7 @@ public class PatriciaTree<V>{
             //second search for key_i
             p_i = null;																					//initially root has two dummy children
             pInfo_i = null;
-            node_i = root;
+            node_i = (path != null) ? path.nodes[path.resume(key_i, 0)] : root;
 
             while((node_i.left != null) && (((node_i.key ^ key_i) & node_i.mask) == 0)){
                 p_i = node_i;
@@ -430,10 +801,11 @@ public class PatriciaTree<V>{
             }
 
             pInfo_i = p_i.info;                             // read pinfo once instead of every iteration
+            pFlagged_i = isFlagged(p_i, pInfo_i);           //   and whether it flags p, before the child pointers
             if (node_i != p_i.left && node_i != p_i.right) continue;
 
             moved_i = false;
-            if((node_i.left == null)&&(node_i.info != null) && (node_i.info.getClass() == Flag.class)){ //if leaf is flagged
+            if((node_i.left == null)&&(node_i.info != null) && (node_i.info.getClass() == MoveFlag.class)){ //if leaf is flagged
                 Flag<V> I = (Flag<V>) node_i.info;
                 moved_i = ((I.pNode1.left != I.oldChild1) && (I.pNode1.right != I.oldChild1)); //if logically removed
             }
@@ -442,15 +814,16 @@ public class PatriciaTree<V>{
         	 */
 
             // if tree already contains key
-            if((node_i.left == null) && (node_i.key.longValue() == key_i) && (moved_i == false)) return null;
+            if((node_i.left == null) && (node_i.key == key_i) && (moved_i == false)) return false;
 
             Info<V> nodeInfo_i = node_i.info;
+            boolean nodeFlagged_i = (node_i.left!=null) && isFlagged(node_i, nodeInfo_i);
 
             //check if any internal node is flagged
-            if((pInfo_d!=null)&&(pInfo_d.getClass() == Flag.class))	help((Flag<V>)pInfo_d);
-            else if((gpInfo_d!=null)&&(gpInfo_d.getClass() == Flag.class)) help((Flag<V>)gpInfo_d);
-            else if((pInfo_i!=null)&&(pInfo_i.getClass() == Flag.class)) help((Flag<V>)pInfo_i);
-            else if((node_i.left!=null) && (nodeInfo_i!=null) && (nodeInfo_i.getClass() == Flag.class)) help((Flag<V>)nodeInfo_i);
+            if(pFlagged_d)	help((Flag<V>)pInfo_d);
+            else if(gpFlagged_d) help((Flag<V>)gpInfo_d);
+            else if(pFlagged_i) help((Flag<V>)pInfo_i);
+            else if(nodeFlagged_i) help((Flag<V>)nodeInfo_i);
 
                 //otherwise create a new flag Info
             else{
@@ -459,8 +832,8 @@ public class PatriciaTree<V>{
 
                 //special case 1
                 if(node_i == node_d)
-                    movInfo = new Flag<V>(p_d, null, null, null, p_d, null, pInfo_d, null, null, null,
-                            p_d, node_d, new Node<V>(key_i,value_i), null, null, null, null);
+                    movInfo = new MoveFlag<V>(p_d, null, null, null, pInfo_d, null, null, null,
+                            p_d, node_d, new Node<V>(key_i,movedValue), null, null, null, null);
 
                     //special case 2 and 3
                 else if(((node_i == p_d) && (p_i == gp_d)) ||
@@ -470,17 +843,11 @@ public class PatriciaTree<V>{
                     long newMask = 0;
 
                     long temp = nodeSibling_d.key ^ key_i;
-                    byte i = 0;
-
                     if (temp==0) {//children are not prefixes of each other
-                        System.out.println("children are not prefixes of each other inside move");
                         continue;
                     }
 
-                    while(temp != 0){					//find the first different bit of node.key and value
-                        temp >>>=  1;
-                        i++;
-                    }
+                    int i = 64 - Long.numberOfLeadingZeros(temp);	//one past the first different bit of node.key and value
 
                     newKey = key_i >>> i << i; 			//set leftmost (i-1) bits of newKey
                     long mask = one << (i-1);
@@ -490,15 +857,14 @@ public class PatriciaTree<V>{
 
                     // create new Internal node whose children are a new leaf and nodeSibling
                     Node<V> newInternal;
-                    Long kNewKey = new Long(newKey);
-                    newInternal =(newKey > key_i) ? new Node<V>(kNewKey, newMask, new Node<V>(key_i, value_i), nodeSibling_d)
-                            : new Node<V>(kNewKey, newMask, nodeSibling_d, new Node<V>(key_i, value_i));
+                    newInternal =(newKey > key_i) ? new Node<V>(newKey, newMask, new Node<V>(key_i, movedValue), nodeSibling_d)
+                            : new Node<V>(newKey, newMask, nodeSibling_d, new Node<V>(key_i, movedValue));
 
                     if(gp_d.key < p_d.key) //order gp_d and p_d to get flagged
-                        movInfo = new Flag<V>(gp_d, p_d, null, null, gp_d, null, gpInfo_d, pInfo_d, null, null,
+                        movInfo = new MoveFlag<V>(gp_d, p_d, null, null, gpInfo_d, pInfo_d, null, null,
                                 gp_d, p_d, newInternal, null, null, null, null);
                     else
-                        movInfo = new Flag<V>(p_d, gp_d, null, null, gp_d, null, pInfo_d, gpInfo_d, null, null,
+                        movInfo = new MoveFlag<V>(p_d, gp_d, null, null, pInfo_d, gpInfo_d, null, null,
                                 gp_d, p_d, newInternal, null, null, null, null);
 
                 }//end of special case 2 and 3
@@ -512,17 +878,11 @@ public class PatriciaTree<V>{
                     long newMask = 0;
 
                     long temp = nodeSibling_d.key ^ pSibling_d.key;
-                    byte i = 0;
-
                     if (temp==0) {//children are not prefixes of each other
-                        System.out.println("children are not prefixes of each other inside move");
                         continue;
                     }
 
-                    while(temp != 0){					//find the first different bit of node.key and value
-                        temp >>>=  1;
-                        i++;
-                    }
+                    int i = 64 - Long.numberOfLeadingZeros(temp);	//one past the first different bit of node.key and value
 
                     newKey = nodeSibling_d.key >>> i << i; 			//set leftmost (i-1) bits of newKey
                     long mask = one << (i-1);
@@ -532,25 +892,18 @@ public class PatriciaTree<V>{
 
                     // create new Internal node whose children are nodeSibling and pSibling
                     Node<V> newChild;
-                    Long kNewKey = new Long(newKey);
-                    newChild =(newKey > pSibling_d.key) ? new Node<V>(kNewKey, newMask, pSibling_d, nodeSibling_d)
-                            : new Node<V>(kNewKey, newMask, nodeSibling_d, pSibling_d);
+                    newChild =(newKey > pSibling_d.key) ? new Node<V>(newKey, newMask, pSibling_d, nodeSibling_d)
+                            : new Node<V>(newKey, newMask, nodeSibling_d, pSibling_d);
 
                     newKey = 0;
                     newMask = 0;
 
                     temp = key_i ^ newChild.key;
-                    i = 0;
-
                     if (temp==0) {//children are not prefixes of each other
-                        System.out.println("children are not prefixes of each other inside move");
                         continue;
                     }
 
-                    while(temp != 0){					//find the first different bit of node.key and value
-                        temp >>>=  1;
-                        i++;
-                    }
+                    i = 64 - Long.numberOfLeadingZeros(temp);	//one past the first different bit of node.key and value
 
                     newKey = key_i >>> i << i; 			//set leftmost (i-1) bits of newKey
                     mask = one << (i-1);
@@ -560,30 +913,29 @@ public class PatriciaTree<V>{
 
                     // create new Internal node whose children are a new copy of node and a new node
                     Node<V> newInternal;
-                    kNewKey = new Long(newKey);
-                    newInternal =(newKey > key_i) ? new Node<V>(kNewKey, newMask, new Node<V>(key_i, value_i), newChild)
-                            : new Node<V>(kNewKey, newMask, newChild, new Node<V>(key_i, value_i));
+                    newInternal =(newKey > key_i) ? new Node<V>(newKey, newMask, new Node<V>(key_i, movedValue), newChild)
+                            : new Node<V>(newKey, newMask, newChild, new Node<V>(key_i, movedValue));
 
                     if(gp_d.key < p_d.key){ //order gp_d, p_d and p_i to get flagged
                         if(p_i.key < gp_d.key)
-                            movInfo = new Flag<V>(p_i, gp_d, p_d, null, p_i, null, pInfo_i, gpInfo_d, pInfo_d, null,
+                            movInfo = new MoveFlag<V>(p_i, gp_d, p_d, null, pInfo_i, gpInfo_d, pInfo_d, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                         else if (p_d.key < p_i.key)
-                            movInfo = new Flag<V>(gp_d, p_d, p_i, null, p_i, null, gpInfo_d, pInfo_d, pInfo_i, null,
+                            movInfo = new MoveFlag<V>(gp_d, p_d, p_i, null, gpInfo_d, pInfo_d, pInfo_i, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                         else
-                            movInfo = new Flag<V>(gp_d, p_i, p_d, null, p_i, null, gpInfo_d, pInfo_i, pInfo_d, null,
+                            movInfo = new MoveFlag<V>(gp_d, p_i, p_d, null, gpInfo_d, pInfo_i, pInfo_d, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                     }
                     else{
                         if(p_i.key < p_d.key)
-                            movInfo = new Flag<V>(p_i, p_d, gp_d, null, p_i, null, pInfo_i, pInfo_d, gpInfo_d, null,
+                            movInfo = new MoveFlag<V>(p_i, p_d, gp_d, null, pInfo_i, pInfo_d, gpInfo_d, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                         else if (gp_d.key < p_i.key)
-                            movInfo = new Flag<V>(p_d, gp_d, p_i, null, p_i, null, pInfo_d, gpInfo_d, pInfo_i, null,
+                            movInfo = new MoveFlag<V>(p_d, gp_d, p_i, null, pInfo_d, gpInfo_d, pInfo_i, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                         else
-                            movInfo = new Flag<V>(p_d, p_i, gp_d, null, p_i, null, pInfo_d, pInfo_i, gpInfo_d, null,
+                            movInfo = new MoveFlag<V>(p_d, p_i, gp_d, null, pInfo_d, pInfo_i, gpInfo_d, null,
                                     p_i, node_i, newInternal, null, null, null, null);
                     }
                 }//end of special case 4
@@ -593,17 +945,11 @@ public class PatriciaTree<V>{
                     long newMask = 0;
 
                     long temp = node_i.key ^ key_i;
-                    byte i = 0;
-
                     if (temp==0) {//children are not prefixes of each other
-                        System.out.println("children are not prefixes of each other inside move");
                         continue;
                     }
 
-                    while(temp != 0){					//find the first different bit of node.key and value
-                        temp >>>=  1;
-                        i++;
-                    }
+                    int i = 64 - Long.numberOfLeadingZeros(temp);	//one past the first different bit of node.key and value
 
                     newKey = key_i >>> i << i; 			//set leftmost (i-1) bits of newKey
                     long mask = one << (i-1);
@@ -611,11 +957,11 @@ public class PatriciaTree<V>{
                     newMask = allOnes >>> i << i;
 
 
-                    // create new Internal node whose children are a new copy of node and a new node
+                    // create new Internal node whose children are a new copy of node_i and a new node
+                    Node<V> copy_i = new Node<V>(node_i);
                     Node<V> newInternal;
-                    Long kNewKey = new Long(newKey);
-                    newInternal =(newKey > key_i) ? new Node<V>(kNewKey, newMask, new Node<V>(key_i, value_i), new Node<V>(node_i))
-                            : new Node<V>(kNewKey, newMask, new Node<V>(node_i), new Node<V>(key_i, value_i));
+                    newInternal =(newKey > key_i) ? new Node<V>(newKey, newMask, new Node<V>(key_i, movedValue), copy_i)
+                            : new Node<V>(newKey, newMask, copy_i, new Node<V>(key_i, movedValue));
 
 
                     //general case 1
@@ -624,44 +970,44 @@ public class PatriciaTree<V>{
                         if(gp_d.key < p_d.key){ //order gp_d, p_d, p_i and node_i to get flagged
                             if(p_i.key < gp_d.key){
                                 if(node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(node_i, p_i, gp_d, p_d, gp_d, p_i, nodeInfo_i, pInfo_i, gpInfo_d, pInfo_d,
+                                    movInfo = new MoveFlag<V>(node_i, p_i, gp_d, p_d, nodeInfo_i, pInfo_i, gpInfo_d, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(p_i, node_i, gp_d, p_d, gp_d, p_i, pInfo_i, nodeInfo_i, gpInfo_d, pInfo_d,
+                                    movInfo = new MoveFlag<V>(p_i, node_i, gp_d, p_d, pInfo_i, nodeInfo_i, gpInfo_d, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(p_i, gp_d, node_i, p_d, gp_d, p_i, pInfo_i, gpInfo_d, nodeInfo_i, pInfo_d,
+                                    movInfo = new MoveFlag<V>(p_i, gp_d, node_i, p_d, pInfo_i, gpInfo_d, nodeInfo_i, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(p_i, gp_d, p_d, node_i, gp_d, p_i, pInfo_i, gpInfo_d, pInfo_d, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(p_i, gp_d, p_d, node_i, pInfo_i, gpInfo_d, pInfo_d, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
                             else if (p_d.key < p_i.key){
                                 if(node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(node_i, gp_d, p_d, p_i, gp_d, p_i, nodeInfo_i, gpInfo_d, pInfo_d, pInfo_i,
+                                    movInfo = new MoveFlag<V>(node_i, gp_d, p_d, p_i, nodeInfo_i, gpInfo_d, pInfo_d, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(gp_d, node_i, p_d, p_i, gp_d, p_i, gpInfo_d, nodeInfo_i, pInfo_d, pInfo_i,
+                                    movInfo = new MoveFlag<V>(gp_d, node_i, p_d, p_i, gpInfo_d, nodeInfo_i, pInfo_d, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(gp_d, p_d, node_i, p_i, gp_d, p_i, gpInfo_d, pInfo_d, nodeInfo_i, pInfo_i,
+                                    movInfo = new MoveFlag<V>(gp_d, p_d, node_i, p_i, gpInfo_d, pInfo_d, nodeInfo_i, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(gp_d, p_d, p_i, node_i, gp_d, p_i, gpInfo_d, pInfo_d, pInfo_i, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(gp_d, p_d, p_i, node_i, gpInfo_d, pInfo_d, pInfo_i, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
                             else{
                                 if(node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(node_i, gp_d, p_i, p_d, gp_d, p_i, nodeInfo_i, gpInfo_d, pInfo_i, pInfo_d,
+                                    movInfo = new MoveFlag<V>(node_i, gp_d, p_i, p_d, nodeInfo_i, gpInfo_d, pInfo_i, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(gp_d, node_i, p_i, p_d, gp_d, p_i, gpInfo_d, nodeInfo_i, pInfo_i, pInfo_d,
+                                    movInfo = new MoveFlag<V>(gp_d, node_i, p_i, p_d, gpInfo_d, nodeInfo_i, pInfo_i, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(gp_d, p_i, node_i, p_d, gp_d, p_i, gpInfo_d, pInfo_i, nodeInfo_i, pInfo_d,
+                                    movInfo = new MoveFlag<V>(gp_d, p_i, node_i, p_d, gpInfo_d, pInfo_i, nodeInfo_i, pInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(gp_d, p_i, p_d, node_i, gp_d, p_i, gpInfo_d, pInfo_i, pInfo_d, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(gp_d, p_i, p_d, node_i, gpInfo_d, pInfo_i, pInfo_d, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
 
@@ -669,46 +1015,46 @@ public class PatriciaTree<V>{
                         else{     //p_d<gp_d
                             if(p_i.key < p_d.key){
                                 if(node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(node_i, p_i, p_d, gp_d, gp_d, p_i, nodeInfo_i, pInfo_i, pInfo_d, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(node_i, p_i, p_d, gp_d, nodeInfo_i, pInfo_i, pInfo_d, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(p_i, node_i, p_d, gp_d, gp_d, p_i, pInfo_i, nodeInfo_i, pInfo_d, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(p_i, node_i, p_d, gp_d, pInfo_i, nodeInfo_i, pInfo_d, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(p_i, p_d, node_i, gp_d, gp_d, p_i, pInfo_i, pInfo_d, nodeInfo_i, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(p_i, p_d, node_i, gp_d, pInfo_i, pInfo_d, nodeInfo_i, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(p_i, p_d, gp_d, node_i, gp_d, p_i, pInfo_i, pInfo_d, gpInfo_d, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(p_i, p_d, gp_d, node_i, pInfo_i, pInfo_d, gpInfo_d, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
 
                             else if (gp_d.key < p_i.key){
                                 if(node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(node_i, p_d, gp_d, p_i, gp_d, p_i, nodeInfo_i, pInfo_d, gpInfo_d, pInfo_i,
+                                    movInfo = new MoveFlag<V>(node_i, p_d, gp_d, p_i, nodeInfo_i, pInfo_d, gpInfo_d, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(p_d, node_i, gp_d, p_i, gp_d, p_i, pInfo_d, nodeInfo_i, gpInfo_d, pInfo_i,
+                                    movInfo = new MoveFlag<V>(p_d, node_i, gp_d, p_i, pInfo_d, nodeInfo_i, gpInfo_d, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(p_d, gp_d, node_i, p_i, gp_d, p_i, pInfo_d, gpInfo_d, nodeInfo_i, pInfo_i,
+                                    movInfo = new MoveFlag<V>(p_d, gp_d, node_i, p_i, pInfo_d, gpInfo_d, nodeInfo_i, pInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(p_d, gp_d, p_i, node_i, gp_d, p_i, pInfo_d, gpInfo_d, pInfo_i, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(p_d, gp_d, p_i, node_i, pInfo_d, gpInfo_d, pInfo_i, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
 
                             else{
                                 if(node_i.key < p_d.key)
-                                    movInfo = new Flag<V>(node_i, p_d, p_i, gp_d, gp_d, p_i, nodeInfo_i, pInfo_d, pInfo_i, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(node_i, p_d, p_i, gp_d, nodeInfo_i, pInfo_d, pInfo_i, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < p_i.key)
-                                    movInfo = new Flag<V>(p_d, node_i, p_i, gp_d, gp_d, p_i, pInfo_d, nodeInfo_i, pInfo_i, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(p_d, node_i, p_i, gp_d, pInfo_d, nodeInfo_i, pInfo_i, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else if (node_i.key < gp_d.key)
-                                    movInfo = new Flag<V>(p_d, p_i, node_i, gp_d, gp_d, p_i, pInfo_d, pInfo_i, nodeInfo_i, gpInfo_d,
+                                    movInfo = new MoveFlag<V>(p_d, p_i, node_i, gp_d, pInfo_d, pInfo_i, nodeInfo_i, gpInfo_d,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                                 else
-                                    movInfo = new Flag<V>(p_d, p_i, gp_d, node_i, gp_d, p_i, pInfo_d, pInfo_i, gpInfo_d, nodeInfo_i,
+                                    movInfo = new MoveFlag<V>(p_d, p_i, gp_d, node_i, pInfo_d, pInfo_i, gpInfo_d, nodeInfo_i,
                                             p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             }
                         }//p_d<gp_d
@@ -719,24 +1065,24 @@ public class PatriciaTree<V>{
 
                         if(gp_d.key < p_d.key){
                             if(node_i.key < gp_d.key)
-                                movInfo = new Flag<V>(node_i, gp_d, p_d, null, gp_d, null, nodeInfo_i, gpInfo_d, pInfo_d, null,
+                                movInfo = new MoveFlag<V>(node_i, gp_d, p_d, null, nodeInfo_i, gpInfo_d, pInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else if (p_d.key < node_i.key)
-                                movInfo = new Flag<V>(gp_d, p_d, node_i, null, gp_d, null, gpInfo_d, pInfo_d, nodeInfo_i, null,
+                                movInfo = new MoveFlag<V>(gp_d, p_d, node_i, null, gpInfo_d, pInfo_d, nodeInfo_i, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else
-                                movInfo = new Flag<V>(gp_d, node_i, p_d, null, gp_d, null, gpInfo_d, nodeInfo_i, pInfo_d, null,
+                                movInfo = new MoveFlag<V>(gp_d, node_i, p_d, null, gpInfo_d, nodeInfo_i, pInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                         }
                         else{
                             if(node_i.key < p_d.key)
-                                movInfo = new Flag<V>(node_i, p_d, gp_d, null, gp_d, null, nodeInfo_i, pInfo_d, gpInfo_d, null,
+                                movInfo = new MoveFlag<V>(node_i, p_d, gp_d, null, nodeInfo_i, pInfo_d, gpInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else if (gp_d.key < node_i.key)
-                                movInfo = new Flag<V>(p_d, gp_d, node_i, null, gp_d, null, pInfo_d, gpInfo_d, nodeInfo_i, null,
+                                movInfo = new MoveFlag<V>(p_d, gp_d, node_i, null, pInfo_d, gpInfo_d, nodeInfo_i, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else
-                                movInfo = new Flag<V>(p_d, node_i, gp_d, null, gp_d, null, pInfo_d, nodeInfo_i, gpInfo_d, null,
+                                movInfo = new MoveFlag<V>(p_d, node_i, gp_d, null, pInfo_d, nodeInfo_i, gpInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                         }
                     }//end of general case 1b
@@ -746,24 +1092,24 @@ public class PatriciaTree<V>{
 
                         if(gp_d.key < p_d.key){ // order gp_d, p_d and p_i to get flagged
                             if(p_i.key < gp_d.key)
-                                movInfo = new Flag<V>(p_i, gp_d, p_d, null, gp_d, p_i, pInfo_i, gpInfo_d, pInfo_d, null,
+                                movInfo = new MoveFlag<V>(p_i, gp_d, p_d, null, pInfo_i, gpInfo_d, pInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else if (p_d.key < p_i.key)
-                                movInfo = new Flag<V>(gp_d, p_d, p_i, null, gp_d, p_i, gpInfo_d, pInfo_d, pInfo_i, null,
+                                movInfo = new MoveFlag<V>(gp_d, p_d, p_i, null, gpInfo_d, pInfo_d, pInfo_i, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else
-                                movInfo = new Flag<V>(gp_d, p_i, p_d, null, gp_d, p_i, gpInfo_d, pInfo_i, pInfo_d, null,
+                                movInfo = new MoveFlag<V>(gp_d, p_i, p_d, null, gpInfo_d, pInfo_i, pInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                         }
                         else{
                             if(p_i.key < p_d.key)
-                                movInfo = new Flag<V>(p_i, p_d, gp_d, null, gp_d, p_i, pInfo_i, pInfo_d, gpInfo_d, null,
+                                movInfo = new MoveFlag<V>(p_i, p_d, gp_d, null, pInfo_i, pInfo_d, gpInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else if (gp_d.key < p_i.key)
-                                movInfo = new Flag<V>(p_d, gp_d, p_i, null, gp_d, p_i, pInfo_d, gpInfo_d, pInfo_i, null,
+                                movInfo = new MoveFlag<V>(p_d, gp_d, p_i, null, pInfo_d, gpInfo_d, pInfo_i, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                             else
-                                movInfo = new Flag<V>(p_d, p_i, gp_d, null, gp_d, p_i, pInfo_d, pInfo_i, gpInfo_d, null,
+                                movInfo = new MoveFlag<V>(p_d, p_i, gp_d, null, pInfo_d, pInfo_i, gpInfo_d, null,
                                         p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                         }
                     }//end of general case 2
@@ -772,15 +1118,15 @@ public class PatriciaTree<V>{
                     if((node_i.left==null)&&(gp_d==p_i)){ //order gp_d and p_d to get flagged
 
                         if(gp_d.key < p_d.key)
-                            movInfo = new Flag<V>(gp_d, p_d, null, null, gp_d, null, gpInfo_d, pInfo_d, null, null,
+                            movInfo = new MoveFlag<V>(gp_d, p_d, null, null, gpInfo_d, pInfo_d, null, null,
                                     p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                         else
-                            movInfo = new Flag<V>(p_d, gp_d, null, null, gp_d, null, pInfo_d, gpInfo_d, null, null,
+                            movInfo = new MoveFlag<V>(p_d, gp_d, null, null, pInfo_d, gpInfo_d, null, null,
                                     p_i, node_i, newInternal, gp_d, p_d, nodeSibling_d, node_d);
                     }//end of general case 2b
                 }
 
-                if((movInfo!=null)&&help(movInfo)) return key_d;
+                if((movInfo!=null)&&help(movInfo)) return true;
             }//end of creating Flag object
 
 
@@ -795,6 +1141,9 @@ public class PatriciaTree<V>{
 
     private boolean help(Flag<V> info){
 
+        if(info.unflagged) return info.flagDone;
+
+        final MoveFlag<V> movInfo = (info.getClass() == MoveFlag.class) ? (MoveFlag<V>) info : null;
         boolean doChildCAS = true;
 
         // flagging internal nodes
@@ -806,38 +1155,38 @@ public class PatriciaTree<V>{
             doChildCAS = (info.flagNode2.info == info);
         }
 
-        if((doChildCAS) && (info.flagNode3!=null)){
-            infoUpdater.compareAndSet(info.flagNode3, info.oldInfo3, info);
-            doChildCAS = (info.flagNode3.info == info);
+        if((doChildCAS) && (movInfo != null) && (movInfo.flagNode3!=null)){
+            infoUpdater.compareAndSet(movInfo.flagNode3, movInfo.oldInfo3, info);
+            doChildCAS = (movInfo.flagNode3.info == info);
         }
 
-        if((doChildCAS) && (info.flagNode4!=null)){
-            infoUpdater.compareAndSet(info.flagNode4, info.oldInfo4, info);
-            doChildCAS = (info.flagNode4.info == info);
+        if((doChildCAS) && (movInfo != null) && (movInfo.flagNode4!=null)){
+            infoUpdater.compareAndSet(movInfo.flagNode4, movInfo.oldInfo4, info);
+            doChildCAS = (movInfo.flagNode4.info == info);
         }
 
         //if successfully flag all internals
         if(doChildCAS){
             info.flagDone = true;
-            if(info.movLeaf != null) info.movLeaf.info = info; //flag the leaf node in Move operations
+            if(movInfo != null && movInfo.movLeaf != null) movInfo.movLeaf.info = info; //flag the leaf node in Move operations
             ((info.pNode1.left == info.oldChild1) ? leftUpdater : rightUpdater).compareAndSet(info.pNode1, info.oldChild1, info.newChild1);
-            if(info.pNode2 != null)
-                ((info.pNode2.left == info.oldChild2) ? leftUpdater : rightUpdater).compareAndSet(info.pNode2, info.oldChild2, info.newChild2);
+            if(movInfo != null && movInfo.pNode2 != null)
+                ((movInfo.pNode2.left == movInfo.oldChild2) ? leftUpdater : rightUpdater).compareAndSet(movInfo.pNode2, movInfo.oldChild2, movInfo.newChild2);
         }
 
-        // unflag internals
-        if(info.flagDone){
-            infoUpdater.compareAndSet(info.unflagNode1, info, new Unflag<V>());
-            if(info.unflagNode2 != null) infoUpdater.compareAndSet(info.unflagNode2, info, new Unflag<V>());
-            return true;
-        }
-        else{ //backtracking
-            if(info.flagNode4 != null) infoUpdater.compareAndSet(info.flagNode4, info, new Unflag<V>());
-            if(info.flagNode3 != null) infoUpdater.compareAndSet(info.flagNode3, info, new Unflag<V>());
-            if(info.flagNode2 != null) infoUpdater.compareAndSet(info.flagNode2, info, new Unflag<V>());
-            infoUpdater.compareAndSet(info.flagNode1, info, new Unflag());
-            return false;
-        }
+        // unflag internals, or backtrack if some node could not be flagged
+        info.unflagged = true;
+        return info.flagDone;
+    }
+
+    //check if a node is flagged by info: a finished flag only keeps flagged the nodes it replaced. Callers decide
+    //it when they read info, see Info
+    private static <V> boolean isFlagged(final Node<V> node, final Info<V> info) {
+        if (info == null) return false;
+        final Flag<V> flag = (Flag<V>) info;
+        if (!flag.unflagged) return true;
+        if (!flag.flagDone || node == flag.pNode1) return false;
+        return (flag.getClass() != MoveFlag.class) || (node != ((MoveFlag<V>) flag).pNode2);
     }
 
 }
\ No newline at end of file
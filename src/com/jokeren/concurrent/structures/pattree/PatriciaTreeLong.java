@@ -0,0 +1,72 @@
+package com.jokeren.concurrent.structures.pattree;
+
+
+/**
+ * PatriciaTree with primitive long keys, so that updates and searches
+ * neither allocate nor unbox Long keys. The operations report success as a
+ * boolean, and move keeps the value of the moved key.
+ *
+ * The trie is a PatriciaTree driven through its operations on primitive
+ * keys: the nodes, the flag descriptors and the helping are the same.
+ */
+public class PatriciaTreeLong<V>{
+
+    /**
+     * Note that we ignore the sign bit
+     * We assume keys 000...0 and 111...1 cannot be inserted or deleted from the trie
+     */
+
+    private final PatriciaTree<V> tree = new PatriciaTree<V>();
+
+    /**
+     * Returns the number of leaves, the two dummy leaves included, in O(1)
+     * from the striped counters. It is exact when no update is in progress.
+     */
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Counts the leaves, the two dummy leaves included, walking the trie.
+     * The walk is weakly consistent.
+     */
+    public int countLeaves() {
+        return tree.countLeaves();
+    }
+
+    /**
+     * The find operation tries to find a key in the tree.
+     *
+     */
+
+    public final boolean find(final long key) {
+        return tree.find(key);
+    }
+
+    /**
+     * The insert operation tries to add a key to the tree.
+     *
+     */
+
+    public final boolean insert(final long key, final V value) {
+        return tree.insert(key, value);
+    }
+
+    /**
+     * The delete operation tries to remove a key from the tree.
+     *
+     */
+
+    public final boolean delete(final long key) {
+        return tree.delete(key);
+    }
+
+    /**
+     * The move operation tries to remove key_d from the tree and add key_i with the value of key_d.
+     *
+     */
+
+    public final boolean move(final long key_d, final long key_i) {
+        return tree.move(key_d, key_i, null, true, null);
+    }
+}
@@ -60,6 +60,11 @@ public class CtriePerformance {
 
     public static void main(String args[]) {
         CtriePerformance ctriePerformance = new CtriePerformance();
+        if (args[0].equals("footprint")) {
+            //footprint <entries>
+            ctriePerformance.footprint(Integer.parseInt(args[1]));
+            return;
+        }
         //parse
         range = Integer.parseInt(args[0]);
         nThread = Integer.parseInt(args[1]);
@@ -75,6 +80,29 @@ public class CtriePerformance {
         }
     }
 
+    //bytes per entry and lookup depth of each width configuration
+    public void footprint(int entries) {
+        Random random = new Random();
+        long[] keys = new long[entries];
+        for (int i = 0; i < entries; ++i) {
+            keys[i] = random.nextLong();
+        }
+
+        for (int width = 1; width <= 6; ++width) {
+            ConcurrentHashTrie<Long, Object> concurrentHashTrie = new ConcurrentHashTrie<>(width);
+            footprint("width " + width, concurrentHashTrie, keys);
+        }
+        footprint("adaptive", ConcurrentHashTrie.<Long, Object>adaptive(), keys);
+    }
+
+    private void footprint(String name, ConcurrentHashTrie<Long, Object> concurrentHashTrie, long[] keys) {
+        Object value = new Object();
+        for (int i = 0; i < keys.length; ++i) {
+            concurrentHashTrie.put(keys[i], value);
+        }
+        logger.info(name + " footprint :" + concurrentHashTrie.footprint());
+    }
+
     public void run() {
         ConcurrentHashTrie<Long, Object> concurrentHashTrie = new ConcurrentHashTrie<>(2);
 
@@ -1,10 +1,14 @@
 package com.jokeren.concurrent.structures.performance;
 
+import com.jokeren.concurrent.structures.kary.KaryTree;
 import com.jokeren.concurrent.structures.kary.LockFree4ST;
+import com.jokeren.concurrent.structures.kary.LockFree4STLong;
+import com.jokeren.concurrent.structures.kary.LockFreeKST;
 import com.jokeren.concurrent.structures.kary.ThreadLoopTime;
 import com.jokeren.concurrent.structures.miscellaneous.ThreadMisc;
 import com.jokeren.concurrent.utils.Performance;
 import com.jokeren.concurrent.utils.PointTransform;
+import com.jokeren.concurrent.utils.ZipfDistribution;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.util.Random;
@@ -15,7 +19,7 @@ import java.util.logging.Logger;
  * Created by robin on 2015/11/17.
  */
 public class KaryPerformance implements Performance{
-    //choose which quadtree
+    //choose which kary tree, 4st by default
     private static String choose;
     //key range
     private static int range;
@@ -23,8 +27,9 @@ public class KaryPerformance implements Performance{
     private static int nThread;
     //enable miscelleuous? 0 or 1
     private static int miscelleuous;
-    //enable non-uniform? 0 or 1
+    //enable non-uniform? 0 uniform, 1 square, 2 zipfian with s = ZIPF_S
     private static int nonUniform;
+    private static final double ZIPF_S = 1.1;
     //ratios, total 100
     //insert, positive integer
     private static int insert;
@@ -59,6 +64,38 @@ public class KaryPerformance implements Performance{
         }
     }
 
+    private KaryTree<Long, Object> getKary() {
+        KaryTree<Long, Object> kary = null;
+        switch (choose) {
+            case "4st"://LockFree4ST
+                kary = new LockFree4ST<Long, Object>();
+                break;
+            case "4stlong"://LockFree4ST with primitive long keys
+                kary = new LockFree4STLong<Object>().boxed();
+                break;
+            case "4ste"://LockFree4ST with elimination
+                kary = new LockFree4ST<Long, Object>(false, true);
+                break;
+            case "kst4"://LockFreeKST, same fan-out as LockFree4ST
+                kary = new LockFreeKST<Long, Object>(4);
+                break;
+            case "kst8":
+                kary = new LockFreeKST<Long, Object>(8);
+                break;
+            case "kst16":
+                kary = new LockFreeKST<Long, Object>(16);
+                break;
+            case "kst32":
+                kary = new LockFreeKST<Long, Object>(32);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown tree " + choose
+                        + ", expected 4st, 4stlong, 4ste, kst4, kst8, kst16 or kst32");
+        }
+
+        return kary;
+    }
+
     public static void main(String args[]) {
         KaryPerformance karyPerformance = new KaryPerformance();
         //parse
@@ -69,6 +106,7 @@ public class KaryPerformance implements Performance{
         insert = Integer.parseInt(args[4]);
         remove = Integer.parseInt(args[5]);
         contain = Integer.parseInt(args[6]);
+        choose = args.length > 7 ? args[7] : "4st";
 
         //8 cases, 3 for warmup, 5 for test
         for (int i = 0; i < 8; ++i) {
@@ -77,7 +115,7 @@ public class KaryPerformance implements Performance{
     }
 
     public void run() {
-        LockFree4ST<Long, Object> kary = new LockFree4ST<>();
+        KaryTree<Long, Object> kary = getKary();
 
         final Random random = new Random();
         Long[] keySets = null;
@@ -88,7 +126,7 @@ public class KaryPerformance implements Performance{
 
         ExecutorService executorService = Executors.newFixedThreadPool(nThread);
 
-        if (nonUniform == 0) {
+        if (nonUniform != 1) {
             keySets = new Long[range + 1];
             generateKeySets(keySets);
 
@@ -112,11 +150,12 @@ public class KaryPerformance implements Performance{
             }
         }
 
+        final ZipfDistribution zipf = nonUniform == 2 ? new ZipfDistribution(range, ZIPF_S) : null;
         for (int i = 0; i < nThread; ++i) {
             final int threadId = i;
             final Long[] keys = keySets;
             threads[i] = new ThreadLoopTime(threadId, keySets, insert, remove, contain, move,
-                    nonUniform, range, gate, kary);
+                    nonUniform, range, gate, kary, zipf);
         }
 
         for (int i = 0; i < nThread; ++i) {
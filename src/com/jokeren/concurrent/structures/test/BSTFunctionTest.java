@@ -4,8 +4,17 @@ package com.jokeren.concurrent.structures.test;
 /**
  * Created by robin on 2015/11/15.
  */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jokeren.concurrent.structures.bst.*;
@@ -98,7 +107,7 @@ public class BSTFunctionTest implements FunctionTest{
                             if (tree.remove(key) != null)
                                 nCount.decrementAndGet();
                         } else if (operation < 100) {
-                            if (tree.put(key, key) != null)
+                            if (tree.put(key, key) == null)
                                 nCount.incrementAndGet();
                         } else {
                             tree.containsKey(key);
@@ -223,6 +232,255 @@ public class BSTFunctionTest implements FunctionTest{
 
     }
 
+    private List<ConcurrentNavigableMap<Integer, Integer>> trees() {
+        List<ConcurrentNavigableMap<Integer, Integer>> trees = new ArrayList<ConcurrentNavigableMap<Integer, Integer>>();
+        trees.add(new FlagNodeBST<Integer, Integer>());
+        trees.add(new FlagEdgeBST<Integer, Integer>());
+        trees.add(new FlagEdgeMarkedBST<Integer, Integer>());
+        trees.add(new TicketNodeBST<Integer, Integer>());
+        trees.add(new TicketNodeBST<Integer, Integer>(Collections.<Integer>reverseOrder()));
+        trees.add(new RelaxedAVLBST<Integer, Integer>());
+        trees.add(new RelaxedAVLBST<Integer, Integer>(Collections.<Integer>reverseOrder()));
+        return trees;
+    }
+
+    private void same(Object actual, Object expected, String what) {
+        if (!Objects.equals(actual, expected)) {
+            System.out.println("error!!! " + what + ": " + actual + " instead of " + expected);
+        }
+    }
+
+    // a sub map, head map or tail map of map, null if the bounds are out of its range
+    private NavigableMap<Integer, Integer> subMap(NavigableMap<Integer, Integer> map, int kind,
+                                                  int from, boolean fromInclusive, int to, boolean toInclusive) {
+        try {
+            switch (kind) {
+                case 0:
+                    return map.subMap(from, fromInclusive, to, toInclusive);
+                case 1:
+                    return map.headMap(to, toInclusive);
+                default:
+                    return map.tailMap(from, fromInclusive);
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // compares map with the TreeMap expected, then their sub maps and descending maps down to depth 3
+    private void compare(NavigableMap<Integer, Integer> map, NavigableMap<Integer, Integer> expected,
+                         Random random, int depth) {
+        same(new ArrayList<Map.Entry<Integer, Integer>>(map.entrySet()),
+                new ArrayList<Map.Entry<Integer, Integer>>(expected.entrySet()), "entries");
+        same(new ArrayList<Integer>(map.descendingKeySet()), new ArrayList<Integer>(expected.descendingKeySet()), "descending keys");
+        same(map.size(), expected.size(), "size");
+        same(map, expected, "equals");
+        same(map.firstEntry(), expected.firstEntry(), "first");
+        same(map.lastEntry(), expected.lastEntry(), "last");
+
+        for (int i = 0; i < 20; i++) {
+            int key = random.nextInt(120) - 10;
+            same(map.get(key), expected.get(key), "get " + key);
+            same(map.containsKey(key), expected.containsKey(key), "containsKey " + key);
+            same(map.lowerEntry(key), expected.lowerEntry(key), "lower " + key);
+            same(map.floorKey(key), expected.floorKey(key), "floor " + key);
+            same(map.ceilingEntry(key), expected.ceilingEntry(key), "ceiling " + key);
+            same(map.higherKey(key), expected.higherKey(key), "higher " + key);
+        }
+
+        if (depth < 3) {
+            int from = random.nextInt(120) - 10;
+            int to = from + random.nextInt(60);
+            if (map.comparator() != null) {
+                int swap = from;
+                from = to;
+                to = swap;
+            }
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            for (int kind = 0; kind < 3; kind++) {
+                NavigableMap<Integer, Integer> sub = subMap(map, kind, from, fromInclusive, to, toInclusive);
+                NavigableMap<Integer, Integer> expectedSub = subMap(expected, kind, from, fromInclusive, to, toInclusive);
+                if ((sub == null) != (expectedSub == null)) {
+                    System.out.println("error!!! sub map bounds " + from + " " + to);
+                } else if (sub != null) {
+                    compare(sub, expectedSub, random, depth + 1);
+                    // a put through the sub map is checked against its bounds
+                    int key = random.nextInt(120) - 10;
+                    String put;
+                    String expectedPut;
+                    try {
+                        put = String.valueOf(sub.put(key, key));
+                    } catch (IllegalArgumentException e) {
+                        put = "out of range";
+                    }
+                    try {
+                        expectedPut = String.valueOf(expectedSub.put(key, key));
+                    } catch (IllegalArgumentException e) {
+                        expectedPut = "out of range";
+                    }
+                    same(put, expectedPut, "sub map put " + key);
+                }
+            }
+            compare(map.descendingMap(), expected.descendingMap(), random, depth + 1);
+        }
+    }
+
+    /**
+     * Runs random updates on each tree and on a TreeMap, and compares their
+     * contents, navigation, sub maps and descending views.
+     */
+    public void navigationTest() {
+        Random random = new Random();
+        for (ConcurrentNavigableMap<Integer, Integer> map : trees()) {
+            TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>(map.comparator());
+            for (int i = 0; i < 3000; i++) {
+                int key = random.nextInt(100);
+                int value = random.nextInt(5);
+                switch (random.nextInt(8)) {
+                    case 0:
+                    case 1:
+                    case 2:
+                        same(map.put(key, value), expected.put(key, value), "put " + key);
+                        break;
+                    case 3:
+                    case 4:
+                        same(map.remove(key), expected.remove(key), "remove " + key);
+                        break;
+                    case 5:
+                        same(map.putIfAbsent(key, value), expected.putIfAbsent(key, value), "putIfAbsent " + key);
+                        break;
+                    case 6:
+                        same(map.replace(key, value, value + 1), expected.replace(key, value, value + 1), "replace " + key);
+                        same(map.remove(key, value), expected.remove(key, value), "remove " + key + " " + value);
+                        break;
+                    default:
+                        if (random.nextInt(10) == 0) {
+                            same(map.pollFirstEntry(), expected.pollFirstEntry(), "pollFirst");
+                            same(map.pollLastEntry(), expected.pollLastEntry(), "pollLast");
+                        }
+                }
+                if (i % 100 == 0) {
+                    compare(map, expected, random, 0);
+                }
+            }
+            map.clear();
+            same(map.isEmpty(), true, "clear");
+        }
+    }
+
+    /**
+     * Puts, removes and gets keys concurrently on each tree, each thread on
+     * its own keys, while a reader iterates over the tree. Each thread checks
+     * its results, and the final contents must be those of the threads.
+     */
+    public void concurrentTest() {
+        final int nThread = 3;
+        final int range = 300;
+        final int nTestCase = 100000;
+
+        for (final ConcurrentNavigableMap<Integer, Integer> map : trees()) {
+            // the value of key k * nThread + t for thread t, 0 if absent
+            final int[][] expected = new int[nThread][range];
+            final AtomicInteger nError = new AtomicInteger(0);
+            final AtomicInteger running = new AtomicInteger(nThread);
+            Thread[] thread = new Thread[nThread];
+
+            for (int i = 0; i < nThread; i++) {
+                final int idx = i;
+                thread[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random();
+                        int[] mine = expected[idx];
+                        for (int j = 1; j <= nTestCase; j++) {
+                            int k = random.nextInt(range);
+                            Integer key = k * nThread + idx;
+                            int operation = random.nextInt(4);
+                            Integer expectedOld = (mine[k] == 0) ? null : mine[k];
+                            Integer old;
+                            if (operation < 2) {
+                                old = map.put(key, j);
+                                mine[k] = j;
+                            } else if (operation < 3) {
+                                old = map.remove(key);
+                                mine[k] = 0;
+                            } else {
+                                old = map.get(key);
+                            }
+                            if (!Objects.equals(old, expectedOld)) {
+                                nError.incrementAndGet();
+                            }
+                        }
+                        running.decrementAndGet();
+                    }
+                });
+            }
+
+            for (int i = 0; i < nThread; i++) {
+                thread[i].start();
+            }
+
+            // iterations run concurrently with the updates, their keys must stay ordered
+            Comparator<? super Integer> order = map.comparator();
+            while (running.get() > 0) {
+                Integer previous = null;
+                for (Integer key : map.keySet()) {
+                    if (previous != null && ((order == null) ? previous.compareTo(key) : order.compare(previous, key)) >= 0) {
+                        nError.incrementAndGet();
+                    }
+                    previous = key;
+                }
+            }
+
+            for (int i = 0; i < nThread; i++) {
+                try {
+                    thread[i].join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            TreeMap<Integer, Integer> contents = new TreeMap<Integer, Integer>(map.comparator());
+            for (int t = 0; t < nThread; t++) {
+                for (int k = 0; k < range; k++) {
+                    if (expected[t][k] != 0) {
+                        contents.put(k * nThread + t, expected[t][k]);
+                    }
+                }
+            }
+            if (nError.get() != 0) {
+                System.out.println("error!!! " + map.getClass().getSimpleName() + ": " + nError.get() + " wrong results");
+            }
+            same(map, contents, map.getClass().getSimpleName() + " contents");
+            same(map.size(), contents.size(), map.getClass().getSimpleName() + " size");
+        }
+    }
+
+    /**
+     * Inserts increasing keys, the worst case of an unbalanced BST, into a
+     * RelaxedAVLBST: its depth must stay within the AVL bound.
+     */
+    public void balanceTest() {
+        final int ntestCase = 100000;
+        RelaxedAVLBST<Integer, Integer> avl = new RelaxedAVLBST<Integer, Integer>();
+
+        for (int i = 1; i <= ntestCase; i++) {
+            avl.put(i, i);
+        }
+
+        // 1.44 log2(n + 2) for the keys, plus the root and the sentinel leaf
+        int bound = (int) Math.ceil(1.44 * Math.log(ntestCase + 2) / Math.log(2)) + 2;
+        if (avl.depth() > bound) {
+            System.out.println("error!!! depth " + avl.depth() + " over " + bound);
+        }
+        for (int i = 1; i <= ntestCase; i++) {
+            if (!avl.containsKey(i)) {
+                System.out.println("error!!! key " + i + ". Not exist!");
+            }
+        }
+    }
+
     @Override
     public void testReport(int succCount, int actualSize) {
 
@@ -6,11 +6,17 @@ import com.jokeren.concurrent.utils.PointTransform;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.logging.Logger;
 
 /**
@@ -199,9 +205,254 @@ public class CtrieFunctionTest implements FunctionTest{
         testReport(succCount.get(), concurrentHashTrie.size());
     }
 
+    public void mergeTest() {
+        final int threadCount = 16;
+        final int iteration = 10000;
+        final int range = 1000;
+        final Long[] keySets = new Long[range];
+        final ConcurrentHashTrie<Long, Integer> counters = new ConcurrentHashTrie<>();
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        generateKeySets(keySets);
+
+        for (int i = 0; i < threadCount; ++i) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < iteration; ++i) {
+                        Long keySet = keySets[random.nextInt(range)];
+                        counters.merge(keySet, 1, Integer::sum);
+                    }
+                    logger.info("thread finish");
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        int total = 0;
+        for (Integer count : counters.values()) {
+            total += count;
+        }
+        testReport(threadCount * iteration, total);
+    }
+
+    /**
+     * Bulk loads an empty trie with more entries than the bulk build
+     * threshold, groups of keys sharing a hash code among them, and compares
+     * it with a HashMap, before and after further updates.
+     */
+    public void bulkTest() {
+        final int range = 10000;
+        final int collisions = 5;
+        final ConcurrentHashTrie<Object, Object> trie = new ConcurrentHashTrie<>();
+        final Map<Object, Object> expected = new HashMap<>();
+        Random random = new Random();
+        for (int i = 0; i < range; ++i) {
+            expected.put((long) random.nextInt(), i);
+            expected.put(new CollidingKey(i, i / collisions), i);
+        }
+        trie.putAll(expected);
+        int errorCount = compare(trie, expected);
+
+        for (int i = 0; i < range; ++i) {
+            Object key = new CollidingKey(random.nextInt(range), random.nextInt(range / collisions));
+            if (random.nextBoolean()) {
+                if (!Objects.equals(trie.put(key, -i), expected.put(key, -i))) ++errorCount;
+            } else {
+                if (!Objects.equals(trie.remove(key), expected.remove(key))) ++errorCount;
+            }
+        }
+        errorCount += compare(trie, expected);
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong bulk built entries");
+        }
+
+        testReport(expected.size(), trie.size());
+    }
+
+    /**
+     * Compares forEach, forEachInHashPrefix, reduce and search with a
+     * sequential iteration of the trie, for several parallelism thresholds
+     * and hash prefixes.
+     */
+    public void bulkOperationTest() {
+        final int range = 20000;
+        final ConcurrentHashTrie<Long, Long> trie = new ConcurrentHashTrie<>();
+        Random random = new Random();
+        for (int i = 0; i < range; ++i) {
+            long key = random.nextLong();
+            trie.put(key, key & 0xFFFF);
+        }
+        final Map<Long, Long> expected = new HashMap<>(trie);
+        long expectedSum = 0;
+        for (Long value : expected.values()) {
+            expectedSum += value;
+        }
+        final Long target = expected.keySet().iterator().next();
+
+        int errorCount = 0;
+        for (long threshold : new long[]{1, 64, 4096, Long.MAX_VALUE}) {
+            final Map<Long, Long> visited = new ConcurrentHashMap<>();
+            trie.forEach(threshold, new BiConsumer<Long, Long>() {
+                @Override
+                public void accept(Long key, Long value) {
+                    if (visited.put(key, value) != null) visited.put(key, -1L);
+                }
+            });
+            if (!visited.equals(expected)) ++errorCount;
+
+            for (int bits : new int[]{0, 1, 5, 6, 13, 32}) {
+                final int prefix = random.nextBoolean() ? random.nextInt() : ConcurrentHashTrie.hash(target);
+                final int mask = bits == 32 ? -1 : (1 << bits) - 1;
+                final Map<Long, Long> inPrefix = new ConcurrentHashMap<>();
+                trie.forEachInHashPrefix(threshold, prefix, bits, new BiConsumer<Long, Long>() {
+                    @Override
+                    public void accept(Long key, Long value) {
+                        if (inPrefix.put(key, value) != null) inPrefix.put(key, -1L);
+                    }
+                });
+                final Map<Long, Long> expectedInPrefix = new HashMap<>();
+                for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+                    if ((ConcurrentHashTrie.hash(entry.getKey()) & mask) == (prefix & mask)) {
+                        expectedInPrefix.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                if (!inPrefix.equals(expectedInPrefix)) ++errorCount;
+            }
+
+            Long sum = trie.reduce(threshold, new BiFunction<Long, Long, Long>() {
+                @Override
+                public Long apply(Long key, Long value) {
+                    return value;
+                }
+            }, Long::sum);
+            if (sum == null || sum != expectedSum) ++errorCount;
+
+            Long found = trie.search(threshold, new BiFunction<Long, Long, Long>() {
+                @Override
+                public Long apply(Long key, Long value) {
+                    return key.equals(target) ? value : null;
+                }
+            });
+            Long missing = trie.search(threshold, new BiFunction<Long, Long, Long>() {
+                @Override
+                public Long apply(Long key, Long value) {
+                    return value < 0 ? value : null;
+                }
+            });
+            if (!Objects.equals(found, expected.get(target)) || missing != null) ++errorCount;
+        }
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong bulk operation results");
+        }
+
+        testReport(expected.size(), trie.size());
+    }
+
+    /**
+     * Deletes most of the keys of a lazy compression trie concurrently, checks
+     * that lookups see through the tombed nodes left behind and that they are
+     * counted, then compacts it and checks nothing is pending or lost.
+     */
+    public void lazyCompressionTest() {
+        final int threadCount = 4;
+        final int range = 40000;
+        final ConcurrentHashTrie<Object, Object> trie = new ConcurrentHashTrie<>(new int[]{6, 5, 4, 3}, true);
+        final Map<Object, Object> expected = new HashMap<>();
+        for (long i = 0; i < range; ++i) {
+            trie.put(i, i);
+            if (i % 10 == 0) expected.put(i, i);
+        }
+
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch countDownLatch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (long key = id; key < range; key += threadCount) {
+                        if (key % 10 != 0 && !Long.valueOf(key).equals(trie.remove(key))) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        try {
+            countDownLatch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        executorService.shutdown();
+
+        // Only lookups here, iterating would clean the tombed nodes it goes through
+        int errors = errorCount.get();
+        for (long key = 0; key < range; ++key) {
+            if (!Objects.equals(trie.get(key), expected.get(key))) ++errors;
+        }
+        long pending = trie.pendingCompactions();
+        if (pending <= 0) {
+            System.out.println("error!!! no pending compaction after " + (range - expected.size()) + " deletes");
+        }
+
+        trie.compact();
+        errors += compare(trie, expected);
+        if (trie.pendingCompactions() != 0) {
+            System.out.println("error!!! " + trie.pendingCompactions() + " compactions left of " + pending);
+        }
+        if (errors != 0) {
+            System.out.println("error!!! " + errors + " wrong entries in lazy compression mode");
+        }
+
+        testReport(expected.size(), trie.size());
+    }
+
+    private static int compare(ConcurrentHashTrie<Object, Object> trie, Map<Object, Object> expected) {
+        int errorCount = 0;
+        for (Map.Entry<Object, Object> entry : expected.entrySet()) {
+            if (!Objects.equals(trie.get(entry.getKey()), entry.getValue())) ++errorCount;
+        }
+        if (trie.size() != expected.size() || !new HashMap<>(trie).equals(expected)) ++errorCount;
+        return errorCount;
+    }
+
     @Override
     public void testReport(int succCount, int actualSize) {
         logger.info("ctrie succ size: " + succCount);
         logger.info("ctrie actual size: " + actualSize);
     }
+    /**
+     * A key whose hash code is given, so that distinct keys can collide
+     */
+    private static final class CollidingKey {
+        final long id;
+        final int hash;
+
+        CollidingKey(long id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof CollidingKey) && ((CollidingKey) o).id == id && ((CollidingKey) o).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
@@ -1,16 +1,30 @@
 package com.jokeren.concurrent.structures.test;
 
 import com.jokeren.concurrent.structures.kary.FunctionTest;
+import com.jokeren.concurrent.structures.kary.KaryTree;
 import com.jokeren.concurrent.structures.kary.LockFree4ST;
+import com.jokeren.concurrent.structures.kary.LockFree4STLong;
+import com.jokeren.concurrent.structures.kary.LockFreeKST;
 import com.jokeren.concurrent.utils.PointTransform;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -54,6 +68,10 @@ public class KaryFunctionTest implements FunctionTest {
 
     @Override
     public void insertTest() {
+        insertTest(kary);
+    }
+
+    private void insertTest(final KaryTree<Long, Object> tree) {
         final int threadCount = 4;
         final int iteration = 100;
         final int range = 1000;
@@ -70,7 +88,7 @@ public class KaryFunctionTest implements FunctionTest {
                     Random random = new Random();
                     for (int i = 0; i < iteration; ++i) {
                         Long keySet = keySets[random.nextInt(range)];
-                        if (kary.putIfAbsent(keySet, new Object()) == null) {
+                        if (tree.putIfAbsent(keySet, new Object()) == null) {
                             succCount.incrementAndGet();
                         }
                     }
@@ -88,11 +106,15 @@ public class KaryFunctionTest implements FunctionTest {
             e.printStackTrace();
         }
 
-        testReport(succCount.get(), kary.size());
+        testReport(succCount.get(), tree.size());
     }
 
     @Override
     public void removeTest() {
+        removeTest(kary);
+    }
+
+    private void removeTest(final KaryTree<Long, Object> tree) {
         final int threadCount = 4;
         final int iteration = 100;
         final int range = 1000;
@@ -106,7 +128,7 @@ public class KaryFunctionTest implements FunctionTest {
         //set up initial nodes
         for (int i = 0; i < range / 2; ++i) {
             Long keySet = keySets[random.nextInt(range)];
-            if (kary.putIfAbsent(keySet, new Object()) == null) {
+            if (tree.putIfAbsent(keySet, new Object()) == null) {
                 succCount.incrementAndGet();
             }
         }
@@ -118,7 +140,7 @@ public class KaryFunctionTest implements FunctionTest {
                     Random random = new Random();
                     for (int i = 0; i < iteration; ++i) {
                         Long keySet = keySets[random.nextInt(range)];
-                        if (kary.remove(keySet) != null) {
+                        if (tree.remove(keySet) != null) {
                             succCount.decrementAndGet();
                         }
                     }
@@ -136,11 +158,15 @@ public class KaryFunctionTest implements FunctionTest {
             e.printStackTrace();
         }
 
-        testReport(succCount.get(), kary.size());
+        testReport(succCount.get(), tree.size());
     }
 
     @Override
     public void mixedTest() {
+        mixedTest(kary);
+    }
+
+    private void mixedTest(final KaryTree<Long, Object> tree) {
         final int threadCount = 16;
         final int iteration = 100;
         final int range = 1000;
@@ -154,7 +180,7 @@ public class KaryFunctionTest implements FunctionTest {
         //set up initial nodes
         for (int i = 0; i < range / 2; ++i) {
             Long keySet = keySets[random.nextInt(range)];
-            if (kary.putIfAbsent(keySet, new Object()) == null) {
+            if (tree.putIfAbsent(keySet, new Object()) == null) {
                 succCount.incrementAndGet();
             }
         }
@@ -169,15 +195,15 @@ public class KaryFunctionTest implements FunctionTest {
                         Long keySet = keySets[random.nextInt(range)];
                         operation = random.nextInt(100);
                         if (operation < 20) {
-                            if (kary.remove(keySet) != null) {
+                            if (tree.remove(keySet) != null) {
                                 succCount.decrementAndGet();
                             }
                         } else if (operation < 60){
-                            if (kary.putIfAbsent(keySet, new Object()) == null) {
+                            if (tree.putIfAbsent(keySet, new Object()) == null) {
                                 succCount.incrementAndGet();
                             }
                         } else {
-                            kary.containsKey(keySet);
+                            tree.containsKey(keySet);
                         }
                     }
                     logger.info("thread finish");
@@ -194,12 +220,449 @@ public class KaryFunctionTest implements FunctionTest {
             e.printStackTrace();
         }
 
-        testReport(succCount.get(), kary.size());
+        testReport(succCount.get(), tree.size());
+    }
+
+    /**
+     * Runs the insert, remove and mixed tests on LockFreeKST trees of
+     * several fan-outs, the smallest one included.
+     */
+    public void kstTest() {
+        for (int k : new int[]{2, 3, 4, 8, 32}) {
+            logger.info("kst k = " + k);
+            insertTest(new LockFreeKST<Long, Object>(k));
+            removeTest(new LockFreeKST<Long, Object>(k));
+            mixedTest(new LockFreeKST<Long, Object>(k));
+        }
+    }
+
+    /**
+     * Runs the insert, remove and mixed tests on LockFree4STLong, through
+     * its KaryTree view.
+     */
+    public void longTest() {
+        insertTest(new LockFree4STLong<Object>().boxed());
+        removeTest(new LockFree4STLong<Object>().boxed());
+        mixedTest(new LockFree4STLong<Object>().boxed());
+    }
+
+    /**
+     * Loads an augmented tree sequentially, with inserts and removes, and
+     * compares rank and select with the sorted keys.
+     */
+    public void rankTest() {
+        final int iteration = 100000;
+        final int range = 30000;
+        final LockFree4ST<Long, Object> ranked = new LockFree4ST<>(true);
+        final TreeSet<Long> reference = new TreeSet<>();
+        Random random = new Random();
+
+        for (int i = 0; i < iteration; ++i) {
+            Long key = (long) random.nextInt(range);
+            if (random.nextInt(4) == 0) {
+                ranked.remove(key);
+                reference.remove(key);
+            } else {
+                ranked.putIfAbsent(key, new Object());
+                reference.add(key);
+            }
+        }
+
+        final List<Long> sorted = new ArrayList<>(reference);
+        int errorCount = 0;
+        for (int index = 0; index < sorted.size(); ++index) {
+            if (!Objects.equals(ranked.select(index), sorted.get(index))
+                    || ranked.rank(sorted.get(index)) != index) {
+                ++errorCount;
+            }
+        }
+        for (long key = -1; key <= range; ++key) {
+            if (ranked.rank(key) != reference.headSet(key).size()) {
+                ++errorCount;
+            }
+        }
+        if (ranked.select(-1) != null || ranked.select(sorted.size()) != null) {
+            ++errorCount;
+        }
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong ranks");
+        }
+
+        testReport(sorted.size(), ranked.size());
+    }
+
+    /**
+     * Compares ceilingKey, floorKey, firstKey, lastKey and rangeScan with a
+     * TreeMap on an empty tree, a single key tree, and random trees holding
+     * the extreme keys, probing every key in and around the range.
+     */
+    public void navigationTest() {
+        final int iteration = 20000;
+        final int range = 5000;
+        final LockFree4ST<Long, Object> tree = new LockFree4ST<>();
+        final TreeMap<Long, Object> reference = new TreeMap<>();
+        Random random = new Random();
+
+        int errorCount = navigationErrors(tree, reference, range, random);
+        tree.put(range / 2L, range / 2L);
+        reference.put(range / 2L, range / 2L);
+        errorCount += navigationErrors(tree, reference, range, random);
+
+        for (long key : new long[]{Long.MIN_VALUE, Long.MAX_VALUE}) {
+            tree.put(key, key);
+            reference.put(key, key);
+        }
+        for (int i = 0; i < iteration; ++i) {
+            Long key = (long) random.nextInt(range);
+            if (random.nextInt(3) == 0) {
+                tree.remove(key);
+                reference.remove(key);
+            } else {
+                tree.put(key, -key);
+                reference.put(key, -key);
+            }
+        }
+        errorCount += navigationErrors(tree, reference, range, random);
+
+        tree.remove(Long.MIN_VALUE);
+        reference.remove(Long.MIN_VALUE);
+        tree.remove(Long.MAX_VALUE);
+        reference.remove(Long.MAX_VALUE);
+        errorCount += navigationErrors(tree, reference, range, random);
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong navigation results");
+        }
+
+        testReport(reference.size(), tree.size());
+    }
+
+    private static int navigationErrors(LockFree4ST<Long, Object> tree, TreeMap<Long, Object> reference,
+                                        int range, Random random) {
+        int errorCount = 0;
+        if (!Objects.equals(tree.firstKey(), reference.isEmpty() ? null : reference.firstKey())
+                || !Objects.equals(tree.lastKey(), reference.isEmpty() ? null : reference.lastKey())) {
+            ++errorCount;
+        }
+        final long[] extremes = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long key : extremes) {
+            if (!Objects.equals(tree.ceilingKey(key), reference.ceilingKey(key))
+                    || !Objects.equals(tree.floorKey(key), reference.floorKey(key))) {
+                ++errorCount;
+            }
+        }
+        for (long key = -2; key <= range + 2; ++key) {
+            if (!Objects.equals(tree.ceilingKey(key), reference.ceilingKey(key))
+                    || !Objects.equals(tree.floorKey(key), reference.floorKey(key))) {
+                ++errorCount;
+            }
+        }
+
+        final List<Long> bounds = new ArrayList<>();
+        for (long key : extremes) {
+            bounds.add(key);
+        }
+        for (int i = 0; i < 200; ++i) {
+            bounds.add((long) random.nextInt(range + 4) - 2);
+        }
+        for (int i = 0; i < 400; ++i) {
+            final long from = bounds.get(random.nextInt(bounds.size()));
+            final long to = i % 4 == 0 ? from : bounds.get(random.nextInt(bounds.size()));
+            final List<Object> actual = new ArrayList<>();
+            tree.rangeScan(from, to, new BiConsumer<Long, Object>() {
+                @Override
+                public void accept(Long key, Object value) {
+                    actual.add(key);
+                    actual.add(value);
+                }
+            });
+            final List<Object> expected = new ArrayList<>();
+            if (from < to) {
+                for (Map.Entry<Long, Object> entry : reference.subMap(from, to).entrySet()) {
+                    expected.add(entry.getKey());
+                    expected.add(entry.getValue());
+                }
+            }
+            if (!actual.equals(expected)) {
+                ++errorCount;
+            }
+        }
+        return errorCount;
+    }
+
+    /**
+     * Runs putBatch and putAll on an augmented tree concurrently with
+     * putIfAbsent and remove. Each thread owns the keys equal to its id
+     * modulo the thread count and checks the results of its single-key
+     * updates. The contents, the size, rank and select are then compared
+     * with the values each thread wrote last.
+     */
+    public void batchTest() {
+        final int threadCount = 4;
+        final int iteration = 2000;
+        final int range = 2000;
+        final LockFree4ST<Long, Object> tree = new LockFree4ST<>(true);
+        final List<TreeMap<Long, Object>> held = new ArrayList<>();
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            final TreeMap<Long, Object> mine = new TreeMap<>();
+            held.add(mine);
+            executorService.execute(new Runnable() {
+                private Long key(Random random) {
+                    return (long) random.nextInt(range) * threadCount + id;
+                }
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < iteration; ++i) {
+                        Long key = key(random);
+                        Object value = (long) i;
+                        if (id % 2 == 0 && i % 20 == 0) {
+                            // a batch, with duplicate keys whose last value wins
+                            final int size = 1 + random.nextInt(64);
+                            final Long[] keys = new Long[size];
+                            final Object[] values = new Object[size];
+                            final TreeMap<Long, Object> batch = new TreeMap<>();
+                            for (int j = 0; j < size; ++j) {
+                                keys[j] = key(random);
+                                values[j] = (long) i * 100 + j;
+                                batch.put(keys[j], values[j]);
+                            }
+                            if (random.nextBoolean()) tree.putBatch(keys, values);
+                            else tree.putAll(batch);
+                            mine.putAll(batch);
+                        } else if (random.nextBoolean()) {
+                            Object previous = tree.putIfAbsent(key, value);
+                            if (!Objects.equals(previous, mine.get(key))) errorCount.incrementAndGet();
+                            if (previous == null) mine.put(key, value);
+                        } else {
+                            if (!Objects.equals(tree.remove(key), mine.remove(key))) errorCount.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        final TreeMap<Long, Object> expected = new TreeMap<>();
+        for (TreeMap<Long, Object> mine : held) {
+            expected.putAll(mine);
+        }
+        final List<Long> actual = new ArrayList<>();
+        tree.rangeScan(Long.MIN_VALUE, Long.MAX_VALUE, new BiConsumer<Long, Object>() {
+            @Override
+            public void accept(Long key, Object value) {
+                actual.add(key);
+            }
+        });
+        if (!actual.equals(new ArrayList<>(expected.keySet()))) {
+            errorCount.incrementAndGet();
+        }
+        int index = 0;
+        for (Map.Entry<Long, Object> entry : expected.entrySet()) {
+            if (!Objects.equals(tree.get(entry.getKey()), entry.getValue())
+                    || tree.rank(entry.getKey()) != index
+                    || !Objects.equals(tree.select(index), entry.getKey())) {
+                errorCount.incrementAndGet();
+            }
+            ++index;
+        }
+        if (errorCount.get() != 0) {
+            System.out.println("error!!! " + errorCount.get() + " wrong batch results");
+        }
+
+        testReport(expected.size(), tree.size());
+    }
+
+    /**
+     * Runs putIfAbsent and remove from many threads on a few hot keys of a
+     * tree with an elimination array, so that updates of the same key meet
+     * there. Every inserted value is unique: each value removed must have
+     * been inserted and removed only once, and the values left must be the
+     * contents of the tree.
+     */
+    public void eliminationTest() {
+        final int threadCount = 16;
+        final int iteration = 20000;
+        final int range = 4;
+        final LockFree4ST<Long, Object> tree = new LockFree4ST<>(false, true);
+        final List<List<Object>> inserted = new ArrayList<>();
+        final List<List<Object>> removed = new ArrayList<>();
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            final List<Object> mineInserted = new ArrayList<>();
+            final List<Object> mineRemoved = new ArrayList<>();
+            inserted.add(mineInserted);
+            removed.add(mineRemoved);
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < iteration; ++i) {
+                        Long key = (long) random.nextInt(range);
+                        if (random.nextBoolean()) {
+                            // the value tells its key
+                            Long value = ((long) id * iteration + i) * range + key;
+                            Object previous = tree.putIfAbsent(key, value);
+                            if (previous == null) mineInserted.add(value);
+                            else if ((Long) previous % range != key) errorCount.incrementAndGet();
+                        } else {
+                            Object value = tree.remove(key);
+                            if (value != null) {
+                                if ((Long) value % range != key) errorCount.incrementAndGet();
+                                mineRemoved.add(value);
+                            }
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        final Set<Object> left = new HashSet<>();
+        for (List<Object> mine : inserted) {
+            left.addAll(mine);
+        }
+        for (List<Object> mine : removed) {
+            for (Object value : mine) {
+                if (!left.remove(value)) errorCount.incrementAndGet();
+            }
+        }
+        final Set<Object> contents = new HashSet<>();
+        for (long key = 0; key < range; ++key) {
+            if (tree.containsKey(key)) contents.add(tree.get(key));
+        }
+        if (!contents.equals(left)) {
+            errorCount.incrementAndGet();
+        }
+        if (errorCount.get() != 0) {
+            System.out.println("error!!! " + errorCount.get() + " inconsistent eliminations");
+        }
+
+        testReport(left.size(), tree.size());
+    }
+
+    /**
+     * Replays an update that reads the info of its parent while another
+     * update is in progress, and only tries its flag CAS once that update is
+     * done. The update in progress is planted in the tree, as if its thread
+     * had stopped between its flag CAS and its child CAS, and the replayed
+     * update stops in its first key comparison, after it checked the child
+     * pointer, until a size() completes the planted one.
+     */
+    @SuppressWarnings("unchecked")
+    public void descriptorTest() {
+        int errorCount = 0;
+        for (boolean insert : new boolean[]{true, false}) {
+            final LockFree4ST<PausingKey, Object> tree = new LockFree4ST<>();
+            tree.putIfAbsent(new PausingKey(10), 10L);
+            tree.putIfAbsent(new PausingKey(20), 20L);
+            try {
+                final Field rootField = LockFree4ST.class.getDeclaredField("root");
+                rootField.setAccessible(true);
+                final LockFree4ST.Node<PausingKey, Object> p =
+                        ((LockFree4ST.Node<PausingKey, Object>) rootField.get(tree)).c0;
+                final LockFree4ST.Node<PausingKey, Object> l = p.c0;
+                final Constructor<?> iinfo = Class.forName(LockFree4ST.class.getName() + "$IInfo")
+                        .getDeclaredConstructor(LockFree4ST.Node.class, LockFree4ST.Node.class,
+                                LockFree4ST.Node.class, int.class);
+                iinfo.setAccessible(true);
+                final LockFree4ST.Node<PausingKey, Object> grown =
+                        new LockFree4ST.Node<PausingKey, Object>(new PausingKey(40), 40L, l, false);
+                LockFree4ST.Node.class.getField("info").set(p, iinfo.newInstance(l, p, grown, 0));
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            final PausingKey key = insert ? new PausingKey(30) : new PausingKey(20);
+            key.pause = new CountDownLatch(1);
+            key.resume = new CountDownLatch(1);
+            final Object[] result = new Object[1];
+            final Thread update = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    result[0] = insert ? tree.putIfAbsent(key, 30L) : tree.remove(key);
+                }
+            });
+            update.start();
+            try {
+                key.pause.await();
+                tree.size();
+                key.resume.countDown();
+                update.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            final boolean updated = insert ? result[0] == null : Long.valueOf(20).equals(result[0]);
+            if (!updated || tree.containsKey(new PausingKey(20)) != insert
+                    || tree.containsKey(new PausingKey(30)) != insert
+                    || !tree.containsKey(new PausingKey(10)) || !tree.containsKey(new PausingKey(40))) {
+                ++errorCount;
+            }
+        }
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " updates lost after a stale flag");
+        }
     }
 
     @Override
     public void testReport(int succCount, int actualSize) {
         logger.info("kary succ size: " + succCount);
         logger.info("kary actual size: " + actualSize);
+        if (succCount != actualSize) {
+            System.out.println("error!!! kary succ size " + succCount + " differs from actual size " + actualSize);
+        }
+    }
+
+    /**
+     * A key whose first comparison stops until resumed, if pause is set
+     */
+    private static final class PausingKey implements Comparable<PausingKey> {
+        final long value;
+        CountDownLatch pause;
+        CountDownLatch resume;
+
+        PausingKey(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(PausingKey other) {
+            if (pause != null && pause.getCount() > 0) {
+                pause.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return Long.compare(value, other.value);
+        }
     }
 }
@@ -1,16 +1,29 @@
 package com.jokeren.concurrent.structures.test;
 
 import com.jokeren.concurrent.structures.pattree.FunctionTest;
+import com.jokeren.concurrent.structures.pattree.PatriciaPrefixTree;
 import com.jokeren.concurrent.structures.pattree.PatriciaTree;
+import com.jokeren.concurrent.structures.pattree.PatriciaTreeLong;
 import com.jokeren.concurrent.utils.PointTransform;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -249,6 +262,622 @@ public class PatriciaFunctionTest implements FunctionTest{
         testReport(succCount.get(), patriciaTree.size() - 2);
     }
 
+    /**
+     * Inserts, deletes and moves keys concurrently, with neighbouring keys
+     * owned by different threads so that the operations share parents. Each
+     * thread checks the results on its own keys, the final contents of the
+     * tree must be the keys the threads hold, and the striped size must
+     * agree with a walk of the trie.
+     */
+    public void stressTest() {
+        final int threadCount = 4;
+        final int iteration = 200000;
+        final int range = 2000;
+        final PatriciaTree<Object> tree = new PatriciaTree<>();
+        final List<TreeSet<Long>> held = new ArrayList<>();
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            final TreeSet<Long> mine = new TreeSet<>();
+            held.add(mine);
+            executorService.execute(new Runnable() {
+                private long key(Random random) {
+                    return 1 + (random.nextInt(range) * (long) threadCount + id) * 977;
+                }
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < iteration; ++i) {
+                        long key = key(random);
+                        boolean exist = mine.contains(key);
+                        boolean result;
+                        boolean expect;
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                result = tree.insert(key, new Object()) != null;
+                                expect = !exist;
+                                mine.add(key);
+                                break;
+                            case 1:
+                                result = tree.delete(key, new Object()) != null;
+                                expect = exist;
+                                mine.remove(key);
+                                break;
+                            case 2:
+                                long newKey = key(random);
+                                result = tree.move(key, new Object(), newKey, new Object()) != null;
+                                expect = exist && !mine.contains(newKey);
+                                if (result) {
+                                    mine.remove(key);
+                                    mine.add(newKey);
+                                }
+                                break;
+                            default:
+                                result = tree.find(key);
+                                expect = exist;
+                        }
+                        if (result != expect) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        TreeSet<Long> expected = new TreeSet<>();
+        for (TreeSet<Long> mine : held) {
+            expected.addAll(mine);
+        }
+        List<Long> actual = new ArrayList<>();
+        for (Iterator<Map.Entry<Long, Object>> it = tree.iterator(); it.hasNext(); ) {
+            actual.add(it.next().getKey());
+        }
+        if (errorCount.get() != 0 || !actual.equals(new ArrayList<>(expected))) {
+            System.out.println("error!!! " + errorCount.get() + " wrong results");
+        }
+        if (tree.size() != tree.countLeaves()) {
+            System.out.println("error!!! counted " + tree.size() + " leaves, found " + tree.countLeaves());
+        }
+
+        testReport(expected.size(), tree.size() - 2);
+    }
+
+    /**
+     * Runs moveAll batches on one tree and the same moves one by one, in
+     * from key order, on another, while the threads insert and delete keys
+     * in both. Each thread owns the keys equal to its id modulo the thread
+     * count, neighbouring keys of other threads change under the reused
+     * search paths. The success counts of each batch and the final contents
+     * of both trees must match the keys and values the threads hold.
+     */
+    public void moveAllTest() {
+        final int threadCount = 4;
+        final int rounds = 300;
+        final int batch = 100;
+        final int range = 3000;
+        final PatriciaTree<Object> batched = new PatriciaTree<>();
+        final PatriciaTree<Object> single = new PatriciaTree<>();
+        final List<TreeMap<Long, Object>> held = new ArrayList<>();
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            final TreeMap<Long, Object> mine = new TreeMap<>();
+            held.add(mine);
+            executorService.execute(new Runnable() {
+                private long key(Random random) {
+                    return 1 + (random.nextInt(range) * (long) threadCount + id) * 131;
+                }
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int round = 0; round < rounds; ++round) {
+                        for (int i = 0; i < batch / 2; ++i) {
+                            long key = key(random);
+                            Object value = new Object();
+                            boolean expect = !mine.containsKey(key);
+                            if ((batched.insert(key, value) != null) != expect
+                                    || (single.insert(key, value) != null) != expect) {
+                                errorCount.incrementAndGet();
+                            }
+                            if (expect) mine.put(key, value);
+                        }
+
+                        final long[] from = new long[batch], to = new long[batch];
+                        final Integer[] order = new Integer[batch];
+                        for (int i = 0; i < batch; ++i) {
+                            from[i] = key(random);
+                            to[i] = random.nextInt(4) == 0 ? from[i] + threadCount * 131 : key(random);
+                            order[i] = i;
+                        }
+                        Arrays.sort(order, new Comparator<Integer>() {
+                            @Override
+                            public int compare(Integer a, Integer b) {
+                                return Long.compare(from[a], from[b]);
+                            }
+                        });
+                        int expected = 0, moved = 0;
+                        for (int j : order) {
+                            if (single.move(from[j], null, to[j], null) != null) ++moved;
+                            if (mine.containsKey(from[j]) && !mine.containsKey(to[j])) {
+                                mine.put(to[j], mine.remove(from[j]));
+                                ++expected;
+                            }
+                        }
+                        if (batched.moveAll(from, to) != expected || moved != expected) {
+                            errorCount.incrementAndGet();
+                        }
+
+                        for (int i = 0; i < batch / 3; ++i) {
+                            long key = key(random);
+                            boolean expect = mine.remove(key) != null;
+                            if ((batched.delete(key, null) != null) != expect
+                                    || (single.delete(key, null) != null) != expect) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        TreeMap<Long, Object> expected = new TreeMap<>();
+        for (TreeMap<Long, Object> mine : held) {
+            expected.putAll(mine);
+        }
+        List<Map.Entry<Long, Object>> actual = new ArrayList<>();
+        for (Iterator<Map.Entry<Long, Object>> it = batched.iterator(); it.hasNext(); ) {
+            actual.add(it.next());
+        }
+        List<Long> singleKeys = new ArrayList<>();
+        for (Iterator<Map.Entry<Long, Object>> it = single.iterator(); it.hasNext(); ) {
+            singleKeys.add(it.next().getKey());
+        }
+        if (!actual.equals(new ArrayList<>(expected.entrySet()))
+                || !singleKeys.equals(new ArrayList<>(expected.keySet()))) {
+            errorCount.incrementAndGet();
+        }
+        if (errorCount.get() != 0) {
+            System.out.println("error!!! " + errorCount.get() + " wrong moveAll results");
+        }
+
+        testReport(expected.size(), batched.size() - 2);
+    }
+
+    /**
+     * Runs insert, delete, find and move on primitive keys of a
+     * PatriciaTreeLong, first sequentially against a TreeSet, with the
+     * lowest and highest keys that are not dummies, then concurrently with
+     * each thread owning the keys equal to its id modulo the thread count.
+     */
+    public void longTest() {
+        final int threadCount = 4;
+        final int iteration = 100000;
+        final int range = 2000;
+        final PatriciaTreeLong<Object> tree = new PatriciaTreeLong<>();
+        final TreeSet<Long> reference = new TreeSet<>();
+        final List<Long> keys = new ArrayList<>();
+        keys.add(1L);
+        keys.add(Long.MAX_VALUE - 1);
+        for (int i = 0; i < range; ++i) {
+            keys.add(1 + i * 977L);
+        }
+        Random random = new Random();
+
+        int errorCount = 0;
+        for (int i = 0; i < iteration; ++i) {
+            long key = keys.get(random.nextInt(keys.size()));
+            boolean exist = reference.contains(key);
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (tree.insert(key, key) != !exist) ++errorCount;
+                    reference.add(key);
+                    break;
+                case 1:
+                    if (tree.delete(key) != exist) ++errorCount;
+                    reference.remove(key);
+                    break;
+                case 2:
+                    long newKey = keys.get(random.nextInt(keys.size()));
+                    boolean expect = exist && !reference.contains(newKey);
+                    if (tree.move(key, newKey) != expect) ++errorCount;
+                    if (expect) {
+                        reference.remove(key);
+                        reference.add(newKey);
+                    }
+                    break;
+                default:
+                    if (tree.find(key) != exist) ++errorCount;
+            }
+        }
+        for (long key : keys) {
+            if (tree.find(key) != reference.contains(key)) ++errorCount;
+        }
+        if (tree.size() - 2 != reference.size() || tree.countLeaves() != tree.size()) ++errorCount;
+        for (long key : keys) {
+            tree.delete(key);
+        }
+
+        final List<TreeSet<Long>> held = new ArrayList<>();
+        final AtomicInteger concurrentErrors = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        for (int i = 0; i < threadCount; ++i) {
+            final int id = i;
+            final TreeSet<Long> mine = new TreeSet<>();
+            held.add(mine);
+            executorService.execute(new Runnable() {
+                private long key(Random random) {
+                    return 1 + (random.nextInt(range / threadCount) * (long) threadCount + id) * 977;
+                }
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int i = 0; i < iteration; ++i) {
+                        long key = key(random);
+                        boolean exist = mine.contains(key);
+                        boolean result;
+                        boolean expect;
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                result = tree.insert(key, key);
+                                expect = !exist;
+                                mine.add(key);
+                                break;
+                            case 1:
+                                result = tree.delete(key);
+                                expect = exist;
+                                mine.remove(key);
+                                break;
+                            case 2:
+                                long newKey = key(random);
+                                result = tree.move(key, newKey);
+                                expect = exist && !mine.contains(newKey);
+                                if (result) {
+                                    mine.remove(key);
+                                    mine.add(newKey);
+                                }
+                                break;
+                            default:
+                                result = tree.find(key);
+                                expect = exist;
+                        }
+                        if (result != expect) {
+                            concurrentErrors.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        TreeSet<Long> expected = new TreeSet<>();
+        for (TreeSet<Long> mine : held) {
+            expected.addAll(mine);
+        }
+        errorCount += concurrentErrors.get();
+        for (long key : keys) {
+            if (tree.find(key) != expected.contains(key)) ++errorCount;
+        }
+        if (tree.countLeaves() != tree.size()) ++errorCount;
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong results");
+        }
+
+        testReport(expected.size(), tree.size() - 2);
+    }
+
+    /**
+     * Compares rectangleQuery with a brute-force filter of the points, on
+     * random rectangles, rectangles with negative bounds that get clamped
+     * or empty the query, and the whole plane. The points are mostly in a
+     * small grid, so that subtrees are both pruned and reported whole, plus
+     * a few with coordinates up to Integer.MAX_VALUE.
+     */
+    public void rectangleTest() {
+        final int count = 5000;
+        final int grid = 256;
+        final PatriciaTree<Object> tree = new PatriciaTree<>();
+        final TreeMap<Long, int[]> points = new TreeMap<>();
+        Random random = new Random();
+
+        int errorCount = 0;
+        for (int i = 0; i < count; ++i) {
+            final boolean far = i % 50 == 0;
+            final int x = far ? Integer.MAX_VALUE - random.nextInt(grid) : random.nextInt(grid);
+            final int y = far && random.nextBoolean() ? Integer.MAX_VALUE - random.nextInt(grid) : random.nextInt(grid);
+            final long key = PatriciaTree.zOrder(x, y);
+            if (key != PointTransform.getLong(x, y)) ++errorCount;
+            if (key == 0) continue;
+            tree.insert(key, key);
+            points.put(key, new int[]{x, y});
+        }
+
+        final List<int[]> rectangles = new ArrayList<>();
+        rectangles.add(new int[]{Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE});
+        rectangles.add(new int[]{-10, -10, grid / 2, grid / 2});
+        rectangles.add(new int[]{-10, grid / 4, -1, grid});
+        rectangles.add(new int[]{grid / 4, -10, grid, -1});
+        rectangles.add(new int[]{grid / 2, grid / 2, grid / 4, grid});
+        rectangles.add(new int[]{0, Integer.MAX_VALUE - grid, Integer.MAX_VALUE, Integer.MAX_VALUE});
+        for (int i = 0; i < 500; ++i) {
+            final int x = random.nextInt(grid + 20) - 20, y = random.nextInt(grid + 20) - 20;
+            rectangles.add(new int[]{x, y, x + random.nextInt(grid / 2), y + random.nextInt(grid / 2)});
+        }
+
+        for (final int[] r : rectangles) {
+            final List<Long> actual = new ArrayList<>();
+            tree.rectangleQuery(r[0], r[1], r[2], r[3], new BiConsumer<Long, Object>() {
+                @Override
+                public void accept(Long key, Object value) {
+                    actual.add(key);
+                    if (!key.equals(value)) actual.add(null);
+                }
+            });
+            final List<Long> expected = new ArrayList<>();
+            for (Map.Entry<Long, int[]> entry : points.entrySet()) {
+                final int[] point = entry.getValue();
+                if (point[0] >= r[0] && point[0] <= r[2] && point[1] >= r[1] && point[1] <= r[3]) {
+                    expected.add(entry.getKey());
+                }
+            }
+            if (!actual.equals(expected)) ++errorCount;
+        }
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong rectangle queries");
+        }
+
+        testReport(points.size(), tree.size() - 2);
+    }
+
+    /**
+     * Compares prefixScan, ceiling, floor and the iterator with a TreeSet,
+     * on clustered keys including the lowest and highest keys that are not
+     * dummies. The probes include the dummy keys and negative keys, and the
+     * prefixes range from 0 bits, every key, to 63 bits, a single key.
+     */
+    public void navigationTest() {
+        final int count = 5000;
+        final long allOnes = Long.MAX_VALUE;
+        final PatriciaTree<Object> tree = new PatriciaTree<>();
+        final TreeSet<Long> reference = new TreeSet<>();
+        Random random = new Random();
+
+        int errorCount = 0;
+        if (tree.ceiling(0) != null || tree.floor(allOnes) != null || tree.iterator().hasNext()) ++errorCount;
+        for (int i = 0; i < count; ++i) {
+            final long cluster = (random.nextInt(16) * 0x0123456789ABCDEFL) & allOnes;
+            final long key = i < 2 ? (i == 0 ? 1 : allOnes - 1) : cluster ^ random.nextInt(1 << 12);
+            if (key == 0 || key == allOnes) continue;
+            tree.insert(key, key);
+            reference.add(key);
+        }
+
+        final List<Long> probes = new ArrayList<>();
+        for (long key : new long[]{Long.MIN_VALUE, -1, 0, 1, 2, allOnes - 2, allOnes - 1, allOnes}) {
+            probes.add(key);
+        }
+        for (Long key : reference) {
+            probes.add(key - 1);
+            probes.add(key);
+            probes.add(key + 1);
+        }
+        for (long key : probes) {
+            if (!Objects.equals(tree.ceiling(key), reference.ceiling(key))
+                    || !Objects.equals(tree.floor(key), reference.floor(key))) {
+                ++errorCount;
+            }
+        }
+
+        final List<Long> actual = new ArrayList<>();
+        for (Iterator<Map.Entry<Long, Object>> it = tree.iterator(); it.hasNext(); ) {
+            final Map.Entry<Long, Object> entry = it.next();
+            actual.add(entry.getKey());
+            if (!entry.getKey().equals(entry.getValue())) ++errorCount;
+        }
+        if (!actual.equals(new ArrayList<>(reference))) ++errorCount;
+
+        for (int i = 0; i < 1000; ++i) {
+            final int bits = i < 64 ? i : random.nextInt(64);
+            final long prefix = i % 2 == 0 ? probes.get(random.nextInt(probes.size())) : random.nextLong();
+            final long mask = bits == 0 ? 0 : allOnes >>> (63 - bits) << (63 - bits);
+            final List<Long> scanned = new ArrayList<>();
+            tree.prefixScan(prefix, bits, new BiConsumer<Long, Object>() {
+                @Override
+                public void accept(Long key, Object value) {
+                    scanned.add(key);
+                }
+            });
+            final List<Long> expected = new ArrayList<>();
+            for (Long key : reference) {
+                if ((key & mask) == (prefix & mask)) expected.add(key);
+            }
+            if (!scanned.equals(expected)) ++errorCount;
+        }
+        for (int bits : new int[]{-1, 64}) {
+            try {
+                tree.prefixScan(0, bits, new BiConsumer<Long, Object>() {
+                    @Override
+                    public void accept(Long key, Object value) {
+                    }
+                });
+                ++errorCount;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong navigation results");
+        }
+
+        testReport(reference.size(), tree.size() - 2);
+    }
+
+    private static long prefixMask(int length) {
+        return Long.MAX_VALUE >>> (63 - length) << (63 - length);
+    }
+
+    // longest prefix match of addr against prefixes kept by length, as a reference for PatriciaPrefixTree
+    private static Object referenceMatch(List<Map<Long, Object>> prefixes, long addr) {
+        for (int length = 63; length >= 0; --length) {
+            Object value = prefixes.get(length).get(addr & prefixMask(length));
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static List<Map<Long, Object>> referencePrefixes() {
+        List<Map<Long, Object>> prefixes = new ArrayList<>();
+        for (int length = 0; length < 64; ++length) {
+            prefixes.add(new HashMap<Long, Object>());
+        }
+        return prefixes;
+    }
+
+    /**
+     * Announces and withdraws random prefixes, checking put, remove, get and
+     * longestPrefixMatch against a map of the prefixes of each length.
+     */
+    public void prefixTest() {
+        final int iteration = 20000;
+        Random random = new Random();
+        int errorCount = 0;
+
+        for (int round = 0; round < 30; ++round) {
+            PatriciaPrefixTree<Object> tree = new PatriciaPrefixTree<>();
+            List<Map<Long, Object>> prefixes = referencePrefixes();
+            // short prefixes share most of their bits, long ones few of them
+            int bits = (round % 3 == 0) ? 8 : 63;
+
+            for (int i = 0; i < iteration; ++i) {
+                long addr = random.nextLong() & prefixMask(bits);
+                int length = random.nextInt(bits + 1);
+                long prefix = addr & prefixMask(length);
+                int operation = random.nextInt(10);
+                if (operation < 5) {
+                    Object value = i;
+                    if (!Objects.equals(tree.put(addr, length, value), prefixes.get(length).put(prefix, value))) {
+                        ++errorCount;
+                    }
+                } else if (operation < 8) {
+                    if (!Objects.equals(tree.remove(addr, length), prefixes.get(length).remove(prefix))) {
+                        ++errorCount;
+                    }
+                } else if (!Objects.equals(tree.get(addr, length), prefixes.get(length).get(prefix))) {
+                    ++errorCount;
+                }
+
+                long lookup = random.nextLong() & Long.MAX_VALUE;
+                if (random.nextBoolean()) {
+                    lookup = prefix | (lookup & ~prefixMask(length));
+                }
+                if (!Objects.equals(tree.longestPrefixMatch(lookup), referenceMatch(prefixes, lookup))) {
+                    ++errorCount;
+                }
+            }
+        }
+
+        if (errorCount != 0) {
+            System.out.println("error!!! " + errorCount + " wrong prefix results");
+        }
+    }
+
+    /**
+     * Announces and withdraws prefixes concurrently under a shared default
+     * route, each thread below its own 3 bit prefix, and checks the longest
+     * prefix matches of each thread against its own reference.
+     */
+    public void prefixConcurrentTest() {
+        final int threadCount = 4;
+        final int iteration = 200000;
+        final PatriciaPrefixTree<Object> tree = new PatriciaPrefixTree<>();
+        final Object defaultRoute = new Object();
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        tree.put(0, 0, defaultRoute);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final long base = ((long) i) << 60;
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    List<Map<Long, Object>> prefixes = referencePrefixes();
+                    for (int i = 0; i < iteration; ++i) {
+                        int length = 3 + random.nextInt(14);
+                        long addr = base | (random.nextLong() & ~prefixMask(3) & Long.MAX_VALUE);
+                        long prefix = addr & prefixMask(length);
+                        if (random.nextBoolean()) {
+                            Object value = i;
+                            if (!Objects.equals(tree.put(addr, length, value), prefixes.get(length).put(prefix, value))) {
+                                errorCount.incrementAndGet();
+                            }
+                        } else if (!Objects.equals(tree.remove(addr, length), prefixes.get(length).remove(prefix))) {
+                            errorCount.incrementAndGet();
+                        }
+
+                        long lookup = base | (random.nextLong() & ~prefixMask(3) & Long.MAX_VALUE);
+                        Object expect = referenceMatch(prefixes, lookup);
+                        if (!Objects.equals(tree.longestPrefixMatch(lookup), (expect == null) ? defaultRoute : expect)) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        executorService.shutdown();
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        if (errorCount.get() != 0 || tree.longestPrefixMatch(Long.MAX_VALUE) != defaultRoute) {
+            System.out.println("error!!! " + errorCount.get() + " wrong prefix results");
+        }
+    }
+
     @Override
     public void testReport(int succCount, int actualSize) {
         logger.info("patricia succ size: " + succCount);
@@ -0,0 +1,40 @@
+package com.jokeren.concurrent.utils;
+
+import java.util.Random;
+
+/**
+ * Samples ranks 0 .. n - 1 following a Zipf distribution with exponent s,
+ * where rank i has a probability proportional to 1 / (i + 1)^s.
+ * The cumulative distribution is computed once, so one instance can be
+ * shared by all the threads of a benchmark.
+ */
+public class ZipfDistribution {
+    private final double[] cdf;
+
+    public ZipfDistribution(int n, double s) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive: " + n);
+        cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; ++i) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; ++i) {
+            cdf[i] /= sum;
+        }
+    }
+
+    /**
+     * @return a rank, 0 being the most frequent
+     */
+    public int next(Random random) {
+        final double u = random.nextDouble();
+        int lo = 0, hi = cdf.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}